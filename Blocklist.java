@@ -0,0 +1,443 @@
+package SpamDetector;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Known-bad phrases, URL domains and phone numbers, matched on the raw message in one pass
+ * before the classifier sees it (predict.py strips URLs, so the model never can).
+ *
+ * - Every entry is compiled into one Aho-Corasick automaton. match() walks the text once,
+ *   whatever the number of entries, and stops at the first entry found.
+ * - Phrases are matched on words: letters and digits, lower-cased, with every run of other
+ *   characters read as one space. "Claim your PRIZE!!" matches the phrase "claim your prize"
+ *   but "freedom" does not match "free".
+ * - Domains are matched on host characters (ASCII letters, digits, "." and "-", lower-cased).
+ *   An entry must be preceded by a "." or a non-host character and followed by a non-host
+ *   character, so win-prize.com matches "http://promo.win-prize.com/x" and "win-prize.com."
+ *   at the end of a sentence, but not "my-win-prize.com", "win-prize.com.example.org" or
+ *   the words "win prize com".
+ * - Phone numbers are matched on their digits; spaces, dashes, dots, brackets and "+" inside
+ *   a number are skipped, so "0906-170-1461" and "0906 170 1461" match 09061701461. Any other
+ *   character, or the start or end of the text, is read as PHONE_EDGE, which pads phone
+ *   entries the way spaces pad phrases: "0906 170 14612" and "+44 906 170 1461" do not match
+ *   0906 170 1461 or 906 170 1461.
+ * - The three streams use disjoint alphabets in the same automaton, each with its own cursor.
+ * - watch() polls the file every POLL_SECONDS and, once a change has held still for one
+ *   poll (as ModelRegistry does), builds a new automaton and swaps it in with one volatile
+ *   write. A file that cannot be read changes nothing; a missing file blocks nothing.
+ *
+ * File format (UTF-8), one entry per line, # starts a comment:
+ *   claim your prize              a phrase
+ *   domain: win-prize.com         also "http://www.win-prize.com/claim"
+ *   phone: 0906 170 1461          at least MIN_PHONE_DIGITS digits
+ *
+ * Listeners get one line per reload or rejected file (stderr if there are none).
+ */
+public final class Blocklist implements Closeable {
+
+    // ========== CONFIG ==========
+    private static final long POLL_SECONDS = 5;
+    private static final int MIN_PHONE_DIGITS = 6;   // shorter numbers would match too much
+    private static final char DIGIT_BASE = '\uE000'; // phone digits, apart from word characters
+    private static final char PHONE_EDGE = (char) (DIGIT_BASE + 10); // either end of a phone number
+    private static final char HOST_BASE = '\uE100';  // host characters, apart from words and digits
+    private static final char HOST_EDGE = HOST_BASE;  // either end of a host name ('\0' is not one)
+
+    public enum Kind { PHRASE, DOMAIN, PHONE }
+
+    /** The entry a message matched. */
+    public static final class Hit {
+        public final Kind kind;
+        public final String entry;   // as written in the file
+
+        Hit(Kind kind, String entry) {
+            this.kind = kind;
+            this.entry = entry;
+        }
+
+        @Override
+        public String toString() {
+            return kind.name().toLowerCase() + " \"" + entry + "\"";
+        }
+    }
+
+    private final File file;
+    private volatile Automaton automaton = Automaton.EMPTY;
+    private volatile long lastStamp;                  // the file as last loaded or rejected
+    private long pendingStamp;                        // loader thread only
+    private ScheduledExecutorService loader;          // guarded by this; created by watch()
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder[] hits = new LongAdder[Kind.values().length];
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /** Loads file now if it exists; watch() picks up later changes. */
+    public Blocklist(File file) {
+        this.file = file;
+        for (int k = 0; k < hits.length; k++) hits[k] = new LongAdder();
+        load();
+    }
+
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<String> listener) {
+        listeners.remove(listener);
+    }
+
+    private void notify(String text) {
+        if (listeners.isEmpty()) System.err.println(text);
+        for (Consumer<String> l : listeners) {
+            try {
+                l.accept(text);
+            } catch (RuntimeException e) {
+                System.err.println("Blocklist: listener failed: " + e);
+            }
+        }
+    }
+
+    // ----------------- Matching -----------------
+
+    /** The first entry found in text, or null. One pass over text, no allocation on a miss. */
+    public Hit match(String text) {
+        checks.increment();
+        Automaton a = automaton;
+        if (a.patterns.length == 0 || text == null) return null;
+        int words = a.step(0, ' ');          // word stream: a phrase may start at the first word
+        int digits = a.step(0, PHONE_EDGE);  // phone stream: a number may start the text
+        int host = a.step(0, HOST_EDGE);     // domain stream
+        boolean space = true;                // last character fed to the word stream was ' '
+        boolean dot = false;                 // a '.' not fed to the domain stream yet
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                words = a.step(words, Character.toLowerCase(c));
+                space = false;
+            } else if (!space) {
+                words = a.step(words, ' ');
+                space = true;
+            }
+            if (c >= '0' && c <= '9') {
+                digits = a.step(digits, (char) (DIGIT_BASE + (c - '0')));
+            } else if (!isPhoneSeparator(c)) {
+                digits = a.step(digits, PHONE_EDGE);
+            }
+            // a '.' waits for the next character: "win-prize.com." ends a sentence, not a host
+            if (c == '.') {
+                if (dot) host = a.step(host, (char) (HOST_BASE + '.'));
+                dot = true;
+            } else if (isHostChar(c)) {
+                if (dot) host = a.step(host, (char) (HOST_BASE + '.'));
+                host = a.step(host, (char) (HOST_BASE + Character.toLowerCase(c)));
+                dot = false;
+            } else {
+                host = a.step(host, HOST_EDGE);
+                dot = false;
+            }
+            int found = a.match[words] >= 0 ? a.match[words] : a.match[digits] >= 0 ? a.match[digits] : a.match[host];
+            if (found >= 0) return hit(a, found);
+        }
+        int found = a.match[a.step(host, HOST_EDGE)];
+        if (found >= 0) return hit(a, found);
+        if (!space) {
+            found = a.match[a.step(words, ' ')];
+            if (found >= 0) return hit(a, found);
+        }
+        found = a.match[a.step(digits, PHONE_EDGE)];
+        return found >= 0 ? hit(a, found) : null;
+    }
+
+    private Hit hit(Automaton a, int pattern) {
+        hits[a.kinds[pattern].ordinal()].increment();
+        return new Hit(a.kinds[pattern], a.patterns[pattern]);
+    }
+
+    /** Entries in the automaton being used. */
+    public int size() {
+        return automaton.patterns.length;
+    }
+
+    public long checkCount() {
+        return checks.sum();
+    }
+
+    public long hitCount(Kind kind) {
+        return hits[kind.ordinal()].sum();
+    }
+
+    public long reloadCount() {
+        return reloads.sum();
+    }
+
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Blocklist[").append(file).append(", entries=").append(size())
+                .append(", checks=").append(checkCount());
+        for (Kind k : Kind.values()) sb.append(", ").append(k.name().toLowerCase()).append('=').append(hitCount(k));
+        return sb.append(']').toString();
+    }
+
+    // ----------------- Loading -----------------
+
+    /** Polls the file every POLL_SECONDS and swaps in a new automaton when it changes. Idempotent. */
+    public synchronized void watch() {
+        if (loader != null) return;
+        loader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Blocklist-Loader");
+            t.setDaemon(true);
+            return t;
+        });
+        loader.scheduleWithFixedDelay(this::poll, POLL_SECONDS, POLL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (loader != null) loader.shutdownNow();
+    }
+
+    private void poll() {
+        long stamp = stamp();
+        if (stamp == lastStamp) {
+            pendingStamp = stamp;
+            return;
+        }
+        if (stamp != pendingStamp) {      // changed since the last poll: may still be written
+            pendingStamp = stamp;
+            return;
+        }
+        if (load()) reloads.increment();
+    }
+
+    // constructor or loader thread; false if nothing changed or the file was rejected
+    private boolean load() {
+        lastStamp = stamp();
+        if (!file.exists()) {
+            if (automaton.patterns.length > 0) {
+                automaton = Automaton.EMPTY;
+                notify("Blocklist " + file + " removed, nothing is blocked by it");
+                return true;
+            }
+            return false;
+        }
+        long start = System.nanoTime();
+        List<String> entries = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        List<Kind> kinds = new ArrayList<>();
+        int skipped = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            for (String line; (line = in.readLine()) != null; ) {
+                int hash = line.indexOf('#');
+                String entry = (hash >= 0 ? line.substring(0, hash) : line).trim();
+                if (entry.isEmpty()) continue;
+                Kind kind = Kind.PHRASE;
+                String value = entry;
+                int colon = entry.indexOf(':');
+                if (colon > 0) {
+                    String prefix = entry.substring(0, colon).trim().toLowerCase();
+                    if (prefix.equals("domain") || prefix.equals("phone") || prefix.equals("phrase")) {
+                        kind = Kind.valueOf(prefix.toUpperCase());
+                        value = entry.substring(colon + 1).trim();
+                    }
+                }
+                String[] spelled = keys(kind, value);
+                if (spelled == null) {
+                    skipped++;
+                    System.err.println("Blocklist: skipped \"" + entry + "\"");
+                    continue;
+                }
+                for (String key : spelled) {
+                    keys.add(key);
+                    owners.add(entries.size());
+                }
+                entries.add(value);
+                kinds.add(kind);
+            }
+        } catch (IOException | RuntimeException e) {
+            rejected.increment();
+            notify("Blocklist " + file + " not loaded, " + size() + " entries stay: " + e.getMessage());
+            return false;
+        }
+        automaton = new Automaton(entries, kinds, keys, owners);
+        notify(String.format("Blocklist %s: %d entries%s, %d states, %.1f ms", file, entries.size(),
+                skipped > 0 ? " (" + skipped + " skipped)" : "", automaton.fail.length, (System.nanoTime() - start) / 1e6));
+        return true;
+    }
+
+    private long stamp() {
+        return file.exists() ? file.lastModified() * 31 + file.length() : 0;
+    }
+
+    // the entry as the automaton spells it (a domain twice), or null if it cannot match anything
+    private static String[] keys(Kind kind, String value) {
+        if (kind == Kind.PHONE) {
+            StringBuilder sb = new StringBuilder().append(PHONE_EDGE);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= '0' && c <= '9') sb.append((char) (DIGIT_BASE + (c - '0')));
+                else if (!isPhoneSeparator(c)) return null;
+            }
+            return sb.length() > MIN_PHONE_DIGITS ? new String[] { sb.append(PHONE_EDGE).toString() } : null;
+        }
+        if (kind == Kind.DOMAIN) {
+            String d = value.toLowerCase();
+            int scheme = d.indexOf("://");
+            if (scheme >= 0) d = d.substring(scheme + 3);
+            int end = 0;
+            while (end < d.length() && d.charAt(end) != '/' && d.charAt(end) != ':' && d.charAt(end) != '?') end++;
+            d = d.substring(0, end);
+            if (d.startsWith("www.")) d = d.substring(4);
+            if (d.isEmpty() || d.startsWith(".") || d.endsWith(".") || d.contains("..")) return null;
+            // "win-prize.com" after the start of a host or after a '.', then the end of the host
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < d.length(); i++) {
+                if (!isHostChar(d.charAt(i))) return null;
+                sb.append((char) (HOST_BASE + d.charAt(i)));
+            }
+            sb.append(HOST_EDGE);
+            return new String[] { HOST_EDGE + sb.toString(), (char) (HOST_BASE + '.') + sb.toString() };
+        }
+        // " claim your prize ": word characters, one space between words and at both ends
+        StringBuilder sb = new StringBuilder(" ");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isLetterOrDigit(c)) sb.append(Character.toLowerCase(c));
+            else if (sb.charAt(sb.length() - 1) != ' ') sb.append(' ');
+        }
+        if (sb.length() == 1) return null;
+        if (sb.charAt(sb.length() - 1) != ' ') sb.append(' ');
+        return new String[] { sb.toString() };
+    }
+
+    private static boolean isHostChar(char c) {
+        return c < 0x80 && (Character.isLetterOrDigit(c) || c == '.' || c == '-');
+    }
+
+    private static boolean isPhoneSeparator(char c) {
+        return c == ' ' || c == '-' || c == '.' || c == '(' || c == ')' || c == '+' || c == '\u00A0';
+    }
+
+    /**
+     * The automaton: a trie of the keys with failure links. Transitions out of a state are
+     * a sorted run of labels[first[s]..first[s+1]) (binary search); match[s] is a key that
+     * ends at s or at one of its failure-link suffixes, so a hit is found without walking
+     * the output chain. Immutable once built.
+     */
+    private static final class Automaton {
+        static final Automaton EMPTY = new Automaton(new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+
+        final String[] patterns;
+        final Kind[] kinds;
+        final int[] first;
+        final char[] labels;
+        final int[] targets;
+        final int[] fail;
+        final int[] match;
+
+        // keys.get(k) spells entries.get(owners.get(k))
+        Automaton(List<String> entries, List<Kind> kinds, List<String> keys, List<Integer> owners) {
+            this.patterns = entries.toArray(new String[0]);
+            this.kinds = kinds.toArray(new Kind[0]);
+
+            List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+            List<Integer> terminal = new ArrayList<>();
+            trie.add(new TreeMap<>());
+            terminal.add(-1);
+            for (int p = 0; p < keys.size(); p++) {
+                int s = 0;
+                for (char c : keys.get(p).toCharArray()) {
+                    Integer next = trie.get(s).get(c);
+                    if (next == null) {
+                        next = trie.size();
+                        trie.add(new TreeMap<>());
+                        terminal.add(-1);
+                        trie.get(s).put(c, next);
+                    }
+                    s = next;
+                }
+                if (terminal.get(s) < 0) terminal.set(s, owners.get(p));   // a duplicate keeps the first entry
+            }
+
+            int states = trie.size(), edges = 0;
+            for (TreeMap<Character, Integer> t : trie) edges += t.size();
+            first = new int[states + 1];
+            labels = new char[edges];
+            targets = new int[edges];
+            for (int s = 0, e = 0; s < states; s++) {
+                first[s] = e;
+                for (Map.Entry<Character, Integer> t : trie.get(s).entrySet()) {
+                    labels[e] = t.getKey();
+                    targets[e++] = t.getValue();
+                }
+                first[s + 1] = e;
+            }
+
+            // breadth first, so a state's failure link is finished before its children need it
+            fail = new int[states];
+            match = new int[states];
+            match[0] = -1;
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int e = first[0]; e < first[1]; e++) {
+                fail[targets[e]] = 0;
+                match[targets[e]] = terminal.get(targets[e]);
+                queue.add(targets[e]);
+            }
+            while (!queue.isEmpty()) {
+                int s = queue.poll();
+                for (int e = first[s]; e < first[s + 1]; e++) {
+                    int child = targets[e];
+                    int f = fail[s];
+                    int next;
+                    while ((next = next(f, labels[e])) < 0 && f != 0) f = fail[f];
+                    fail[child] = next < 0 ? 0 : next;
+                    match[child] = terminal.get(child) >= 0 ? terminal.get(child) : match[fail[child]];
+                    queue.add(child);
+                }
+            }
+        }
+
+        int step(int state, char c) {
+            while (true) {
+                int next = next(state, c);
+                if (next >= 0) return next;
+                if (state == 0) return 0;
+                state = fail[state];
+            }
+        }
+
+        private int next(int state, char c) {
+            int lo = first[state], hi = first[state + 1] - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char l = labels[mid];
+                if (l < c) lo = mid + 1;
+                else if (l > c) hi = mid - 1;
+                else return targets[mid];
+            }
+            return -1;
+        }
+    }
+}
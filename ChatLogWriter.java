@@ -0,0 +1,401 @@
+package SpamDetector;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous chat log: producers drop records into a ring, one writer thread writes them.
+ *
+ * - The ring is a fixed array of preallocated slots. A producer claims a sequence number
+ *   with a CAS, fills the slot's fields and publishes it with one volatile write; no lock,
+ *   no allocation (the tag and text are references to strings the caller already has).
+ * - The writer takes every published record, formats the whole batch into one reusable
+ *   buffer, frees the slots, then issues a single FileChannel write for the batch.
+ * - Records can also (or instead, with file == null) go to a RecordSink such as the
+ *   MessageStore; the sink gets each record, then one flush per batch, on this thread.
+ * - SyncPolicy decides durability: NONE leaves it to the OS, GROUP_COMMIT fsyncs at most
+ *   once per syncIntervalMillis covering every batch since the last one, EVERY_BATCH
+ *   fsyncs after each write. Syncs cover the sink too.
+ * - The file is rotated to name-yyyyMMdd-HHmmss.ext when it reaches maxBytes or has been
+ *   open for rotateIntervalMillis (0 disables either).
+ * - A producer that finds the ring full waits up to offerTimeoutMicros for room (counted
+ *   as delayed), then gives up (counted as dropped). It never waits on disk I/O itself.
+ *
+ * Line format is unchanged: [yyyy-MM-dd HH:mm:ss] TAG | conf=0.0000 | text
+ */
+public class ChatLogWriter implements AutoCloseable {
+
+    /** Structured destination for records; only ever called on the writer thread. */
+    public interface RecordSink extends Closeable {
+        void append(long timestamp, String tag, String peer, double confidence, String text) throws IOException;
+        /** End of a batch: make the appended records durable-to-OS and visible. */
+        void flush() throws IOException;
+        void sync() throws IOException;
+    }
+
+    public enum SyncPolicy {
+        NONE,
+        GROUP_COMMIT,
+        EVERY_BATCH
+    }
+
+    // ========== CONFIG ==========
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BATCH_RECORDS = 4096;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final DateTimeFormatter LINE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter ROTATED_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private static final class Slot {
+        volatile long sequence = -1;   // == the claimed sequence once the fields are filled
+        long timestamp;
+        String tag;
+        String peer;
+        String text;
+        double confidence;
+    }
+
+    private final File file;          // text log, or null
+    private final RecordSink sink;    // or null
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+    private final long maxBytes;
+    private final long rotateIntervalMillis;
+    private final long offerTimeoutNanos;
+
+    private final Slot[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();   // next sequence to hand out
+    private volatile long consumed;                        // every sequence below this is free
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+    private final Thread writer;
+
+    // writer thread only
+    private final StringBuilder batch = new StringBuilder(WRITE_BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ZoneId zone = ZoneId.systemDefault();
+    private FileChannel channel;
+    private long fileSize;
+    private long openedAt;
+    private long lastSync;
+    private boolean unsynced;
+    private boolean sinkFailed;
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTime;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+    private volatile int maxBatch;
+
+    /**
+     * @param file     text log in chat_log.txt format, or null for none
+     * @param sink     structured store, or null for none; closed by close()
+     * @param capacity records the ring holds (rounded up to a power of two)
+     */
+    public ChatLogWriter(File file, RecordSink sink, int capacity, SyncPolicy syncPolicy, long syncIntervalMillis,
+                         long maxBytes, long rotateIntervalMillis, long offerTimeoutMicros) {
+        this.file = file;
+        this.sink = sink;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.maxBytes = maxBytes;
+        this.rotateIntervalMillis = rotateIntervalMillis;
+        this.offerTimeoutNanos = TimeUnit.MICROSECONDS.toNanos(offerTimeoutMicros);
+        this.lastSync = System.currentTimeMillis();
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new Slot[size];
+        for (int i = 0; i < size; i++) ring[i] = new Slot();
+        this.mask = size - 1;
+        this.writer = new Thread(this::runWriter, "ChatLogWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue one record; peer (may be null) is kept by the sink only. Returns false if it
+     * was dropped (ring full past the timeout, or closed).
+     */
+    public boolean append(String tag, String peer, String text, double confidence) {
+        long timestamp = System.currentTimeMillis();
+        long seq = claim();
+        if (seq < 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        Slot slot = ring[(int) (seq & mask)];
+        slot.timestamp = timestamp;
+        slot.tag = tag;
+        slot.peer = peer;
+        slot.text = text;
+        slot.confidence = confidence;
+        slot.sequence = seq;   // publish
+        if (writerParked) LockSupport.unpark(writer);
+        return true;
+    }
+
+    // a free sequence number, or -1 when the ring stayed full for offerTimeoutNanos
+    private long claim() {
+        long deadline = 0;
+        boolean waited = false;
+        while (!closed) {
+            long seq = claimed.get();
+            if (seq - consumed < ring.length) {
+                if (claimed.compareAndSet(seq, seq + 1)) return seq;
+                continue;
+            }
+            // full: the writer is behind
+            long now = System.nanoTime();
+            if (!waited) {
+                waited = true;
+                deadline = now + offerTimeoutNanos;
+                delayed.incrementAndGet();
+            }
+            if (now - deadline >= 0) return -1;
+            if (writerParked) LockSupport.unpark(writer);
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        return -1;
+    }
+
+    /** Writes and syncs everything queued, then closes the file and the sink. */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long writtenCount() { return written.get(); }
+    public long droppedCount() { return dropped.get(); }
+    public long delayedCount() { return delayed.get(); }
+    public long failedCount() { return failed.get(); }
+
+    /** Records published but not yet taken by the writer. */
+    public long backlog() {
+        return Math.max(0, claimed.get() - consumed);
+    }
+
+    /** Age of the oldest record not yet taken by the writer, in milliseconds; 0 when caught up. */
+    public long lagMillis() {
+        long next = consumed;
+        if (claimed.get() <= next) return 0;
+        Slot slot = ring[(int) (next & mask)];
+        if (slot.sequence != next) return 0;   // claimed, not yet published
+        return Math.max(0, System.currentTimeMillis() - slot.timestamp);
+    }
+
+    @Override
+    public String toString() {
+        long b = batches.get();
+        return String.format("ChatLogWriter %s: written=%d dropped=%d delayed=%d failed=%d batches=%d "
+                        + "(mean %.1f, max %d) syncs=%d rotations=%d backlog=%d",
+                (file == null ? "-" : file.getName()) + (sink == null ? "" : " + " + sink), written.get(), dropped.get(), delayed.get(), failed.get(), b,
+                b == 0 ? 0.0 : (written.get() + failed.get()) / (double) b, maxBatch,
+                syncs.get(), rotations.get(), backlog());
+    }
+
+    // ----------------- Writer -----------------
+
+    private void runWriter() {
+        long next = 0;
+        while (true) {
+            int n = 0;
+            batch.setLength(0);
+            Slot slot;
+            while ((slot = ring[(int) (next & mask)]).sequence == next) {
+                if (file != null) format(slot);
+                if (sink != null) toSink(slot);
+                slot.tag = null;   // drop references so logged strings can be collected
+                slot.peer = null;
+                slot.text = null;
+                next++;
+                n++;
+                if (batch.length() >= WRITE_BUFFER_SIZE || n == MAX_BATCH_RECORDS) break;
+            }
+            if (n > 0) {
+                consumed = next;   // slots are free before the disk is touched
+                writeBatch(n);
+                continue;
+            }
+            if (closed && claimed.get() == next) break;
+            maintain(false);
+            writerParked = true;
+            if (ring[(int) (next & mask)].sequence != next && !closed) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            writerParked = false;
+        }
+        maintain(true);
+        closeFile();
+        if (sink != null) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                System.err.println("ChatLogWriter: closing " + sink + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void toSink(Slot slot) {
+        if (sinkFailed) return;   // the rest of this batch is lost with it
+        try {
+            sink.append(slot.timestamp, slot.tag, slot.peer, slot.confidence, slot.text);
+        } catch (IOException e) {
+            sinkFailed = true;
+            System.err.println("ChatLogWriter: " + sink + ": " + e.getMessage());
+        }
+    }
+
+    private void format(Slot slot) {
+        long second = slot.timestamp / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = LINE_TIME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(slot.timestamp), zone));
+        }
+        batch.append('[').append(cachedTime).append("] ").append(slot.tag).append(" | conf=");
+        appendFixed4(batch, slot.confidence);
+        batch.append(" | ").append(slot.text).append(System.lineSeparator());
+    }
+
+    /** %.4f without a Formatter; MessageStore's export uses it too so lines match exactly. */
+    static void appendFixed4(StringBuilder sb, double v) {
+        if (v < 0) sb.append('-');
+        long scaled = Math.round(Math.abs(v) * 10_000);
+        long frac = scaled % 10_000;
+        sb.append(scaled / 10_000).append('.');
+        for (long d = 1000; d > 0; d /= 10) sb.append((char) ('0' + (frac / d) % 10));
+    }
+
+    private void writeBatch(int records) {
+        batches.incrementAndGet();
+        if (records > maxBatch) maxBatch = records;
+        boolean ok = true;
+        if (file != null) {
+            try {
+                openIfNeeded();
+                CharBuffer chars = CharBuffer.wrap(batch);
+                encoder.reset();
+                while (encoder.encode(chars, bytes, true).isOverflow()) drainBytes();
+                while (encoder.flush(bytes).isOverflow()) drainBytes();
+                drainBytes();
+            } catch (IOException e) {
+                ok = false;
+                System.err.println("ChatLogWriter: " + records + " records lost: " + e.getMessage());
+                bytes.clear();
+                closeFile();   // reopened on the next batch
+            }
+        }
+        if (sink != null) {
+            try {
+                if (!sinkFailed) sink.flush();
+            } catch (IOException e) {
+                sinkFailed = true;
+                System.err.println("ChatLogWriter: " + sink + ": " + e.getMessage());
+            }
+            ok &= !sinkFailed;
+            sinkFailed = false;
+        }
+        unsynced = true;
+        (ok ? written : failed).addAndGet(records);
+        if (syncPolicy == SyncPolicy.EVERY_BATCH) {
+            try {
+                sync();
+            } catch (IOException e) {
+                System.err.println("ChatLogWriter: " + e.getMessage());
+            }
+        }
+        maintain(false);
+    }
+
+    private void drainBytes() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) fileSize += channel.write(bytes);
+        bytes.clear();
+    }
+
+    // group commit and rotation; on close everything pending is synced
+    private void maintain(boolean closing) {
+        try {
+            long now = System.currentTimeMillis();
+            if (unsynced && syncPolicy != SyncPolicy.NONE
+                    && (closing || now - lastSync >= syncIntervalMillis)) {
+                sync();
+            }
+            if (channel == null) return;
+            boolean tooBig = maxBytes > 0 && fileSize >= maxBytes;
+            boolean tooOld = rotateIntervalMillis > 0 && now - openedAt >= rotateIntervalMillis && fileSize > 0;
+            if (!closing && (tooBig || tooOld)) rotate();
+        } catch (IOException e) {
+            System.err.println("ChatLogWriter: " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    private void sync() throws IOException {
+        if (channel != null) channel.force(false);
+        if (sink != null) sink.sync();
+        syncs.incrementAndGet();
+        lastSync = System.currentTimeMillis();
+        unsynced = false;
+    }
+
+    private void openIfNeeded() throws IOException {
+        if (channel != null) return;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void rotate() throws IOException {
+        if (unsynced && syncPolicy != SyncPolicy.NONE) sync();
+        closeFile();
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        String stamp = ROTATED_SUFFIX.format(LocalDateTime.now(zone));
+        File target = new File(file.getAbsoluteFile().getParentFile(), base + "-" + stamp + ext);
+        for (int i = 1; target.exists(); i++) {
+            target = new File(file.getAbsoluteFile().getParentFile(), base + "-" + stamp + "-" + i + ext);
+        }
+        if (!file.renameTo(target)) throw new IOException("cannot rotate " + file + " to " + target);
+        rotations.incrementAndGet();
+    }
+
+    private void closeFile() {
+        if (channel == null) return;
+        try {
+            if (unsynced && syncPolicy != SyncPolicy.NONE) channel.force(false);
+        } catch (IOException ignored) {}
+        try { channel.close(); } catch (IOException ignored) {}
+        channel = null;
+    }
+}
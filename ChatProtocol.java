@@ -0,0 +1,279 @@
+package SpamDetector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chat wire protocol, version 2, and its mapping onto the original writeUTF protocol (v1).
+ *
+ * Negotiation: a v2 server opens every connection with OFFER, a writeUTF string. A client
+ * that reads OFFER as the server's first string may send HELLO (writeUTF); the server answers
+ * HELLO_OK, still as writeUTF, and from then on both directions use v2 frames. Everything
+ * the server sends before HELLO_OK is v1, so a client reads writeUTF strings until it sees
+ * it. A client that never says HELLO stays on v1 and gets every message as a plain string.
+ *
+ * A v1 server never sends OFFER, so it is never sent HELLO, which it would show and broadcast
+ * as chat; a client writes v1 until it has seen OFFER, so nothing waits for the answer. The
+ * one visible cost: a v1 client of a v2 server shows OFFER as a line from the server once
+ * per connection.
+ *
+ * v2 frame (big-endian):
+ *   u32 length of what follows
+ *   u16 record count        (a burst packs into one frame)
+ *   per record:
+ *     u8  type              CHAT, VERDICT, SYSTEM or ACK
+ *     u8  flags             FLAG_BLOCKED
+ *     i64 message id        server-assigned; on client frames the client's own sequence number
+ *     i64 timestamp         server time, epoch millis (0 on client frames)
+ *     u8  label             0 none, 1 ham, 2 spam, 3 error
+ *     u16 confidence        confidence * 65535
+ *     u32 text length, then the text in UTF-8 (no 64 KB cap)
+ *
+ * Record types:
+ * - CHAT:    a message; relayed ones carry the server's verdict, so clients don't re-classify
+ * - VERDICT: a blocked-spam notice, text = who tried to send it ("Client" / "Server")
+ * - SYSTEM:  a server notice
+ * - ACK:     server -> sender, echoes the client's id with the verdict (FLAG_BLOCKED if dropped)
+ */
+public final class ChatProtocol {
+
+    // ========== CONFIG ==========
+    public static final String OFFER = "\u0000SDP/2?";
+    public static final String HELLO = "\u0000SDP/2";
+    public static final String HELLO_OK = "\u0000SDP/2 OK";
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    public static final int V1 = 1;
+    public static final int V2 = 2;
+
+    public static final byte CHAT = 1;
+    public static final byte VERDICT = 2;
+    public static final byte SYSTEM = 3;
+    public static final byte ACK = 4;
+
+    public static final int FLAG_BLOCKED = 1;
+
+    private static final String[] LABELS = {null, "ham", "spam", "error"};
+    private static final String LEGACY_BLOCKED_PREFIX = "[BLOCKED SPAM - Outgoing from ";
+    private static final int RECORD_HEADER = 1 + 1 + 8 + 8 + 1 + 2 + 4;
+
+    /** OFFER as a v1 frame, the first thing a server queues for a connection. */
+    public static final Frame OFFER_FRAME = utfOrFail(OFFER);
+
+    /** HELLO_OK as a v1 frame, queued ahead of the first v2 frame. */
+    public static final Frame HELLO_OK_FRAME = utfOrFail(HELLO_OK);
+
+    private ChatProtocol() {}
+
+    /** One record. Immutable. */
+    public static final class Message {
+        public final byte type;
+        public final int flags;
+        public final long id;
+        public final long timestamp;
+        public final String label;        // "ham" / "spam" / "error", or null when not classified
+        public final double confidence;
+        public final String text;
+
+        public Message(byte type, int flags, long id, long timestamp, String label, double confidence, String text) {
+            this.type = type;
+            this.flags = flags;
+            this.id = id;
+            this.timestamp = timestamp;
+            this.label = label;
+            this.confidence = confidence;
+            this.text = text == null ? "" : text;
+        }
+
+        /** A client-originated chat message (no timestamp or verdict yet). */
+        public static Message chat(long id, String text) {
+            return new Message(CHAT, 0, id, 0L, null, 0.0, text);
+        }
+
+        /** A blocked-spam notice; origin is "Client" or "Server". */
+        public static Message blocked(long id, long timestamp, String origin, double confidence) {
+            return new Message(VERDICT, FLAG_BLOCKED, id, timestamp, "spam", confidence, origin);
+        }
+
+        public boolean isBlocked() {
+            return (flags & FLAG_BLOCKED) != 0;
+        }
+
+        /** "label (0.97)" for the UI, or null when there is no verdict. */
+        public String classification() {
+            return label == null ? null : String.format("%s (%.2f)", label, confidence);
+        }
+    }
+
+    /**
+     * One outgoing message, encoded at most once per protocol version however many
+     * recipients it has. frame() returns null when the message has no form in that
+     * version (ACK on v1, or text too long for writeUTF).
+     */
+    public static final class Encoded {
+        private final Message message;
+        private Frame v1, v2;
+        private boolean v1Done;
+
+        public Encoded(Message message) {
+            this.message = message;
+        }
+
+        public Message message() {
+            return message;
+        }
+
+        public synchronized Frame frame(int version) {
+            if (version >= V2) {
+                if (v2 == null) v2 = encode(Collections.singletonList(message));
+                return v2;
+            }
+            if (!v1Done) {
+                v1Done = true;
+                String legacy = toLegacy(message);
+                if (legacy != null) {
+                    try {
+                        v1 = Frame.utf(legacy);
+                    } catch (UTFDataFormatException e) {
+                        System.err.println("ChatProtocol: message " + message.id + " too long for v1 clients, not sent to them");
+                    }
+                }
+            }
+            return v1;
+        }
+    }
+
+    // ----------------- v2 encoding -----------------
+
+    /** All messages in one frame. */
+    public static Frame encode(List<Message> batch) {
+        return Frame.wrap(ByteBuffer.wrap(toBytes(batch)));
+    }
+
+    /** Writes one frame holding the whole batch (the caller flushes). */
+    public static void write(OutputStream out, List<Message> batch) throws IOException {
+        out.write(toBytes(batch));
+    }
+
+    private static byte[] toBytes(List<Message> batch) {
+        if (batch.isEmpty() || batch.size() > 0xffff) throw new IllegalArgumentException("batch size " + batch.size());
+        byte[][] texts = new byte[batch.size()][];
+        int length = 2;
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = batch.get(i).text.getBytes(StandardCharsets.UTF_8);
+            length += RECORD_HEADER + texts[i].length;
+        }
+        if (length > MAX_FRAME) throw new IllegalArgumentException("frame too large: " + length + " bytes");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(length);
+            out.writeShort(batch.size());
+            for (int i = 0; i < texts.length; i++) {
+                Message m = batch.get(i);
+                out.writeByte(m.type);
+                out.writeByte(m.flags);
+                out.writeLong(m.id);
+                out.writeLong(m.timestamp);
+                out.writeByte(labelCode(m.label));
+                out.writeShort((int) Math.round(Math.max(0.0, Math.min(1.0, m.confidence)) * 0xffff));
+                out.writeInt(texts[i].length);
+                out.write(texts[i]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);   // ByteArrayOutputStream does not throw
+        }
+        return bytes.toByteArray();
+    }
+
+    // ----------------- v2 decoding -----------------
+
+    /** Reads one frame from a blocking stream. */
+    public static List<Message> read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    /** Rejects a frame length before anything is allocated for it. */
+    public static void checkLength(int length) throws ProtocolException {
+        if (length < 2 || length > MAX_FRAME) throw new ProtocolException("bad frame length " + length);
+    }
+
+    /** Decodes a frame body (everything after the u32 length). */
+    public static List<Message> decode(ByteBuffer body) throws ProtocolException {
+        try {
+            int count = body.getShort() & 0xffff;
+            List<Message> batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte type = body.get();
+                int flags = body.get() & 0xff;
+                long id = body.getLong();
+                long timestamp = body.getLong();
+                int label = body.get() & 0xff;
+                double confidence = (body.getShort() & 0xffff) / (double) 0xffff;
+                int textLength = body.getInt();
+                if (textLength < 0 || textLength > body.remaining()) throw new ProtocolException("bad text length " + textLength);
+                if (label >= LABELS.length) throw new ProtocolException("bad label " + label);
+                byte[] text = new byte[textLength];
+                body.get(text);
+                batch.add(new Message(type, flags, id, timestamp, LABELS[label], confidence,
+                        new String(text, StandardCharsets.UTF_8)));
+            }
+            return batch;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("truncated frame");
+        }
+    }
+
+    // ----------------- v1 mapping -----------------
+
+    /** The string a v1 peer sends or sees for this message; null if v1 has no equivalent. */
+    public static String toLegacy(Message m) {
+        switch (m.type) {
+            case VERDICT: return LEGACY_BLOCKED_PREFIX + m.text + "]";
+            case ACK:     return null;
+            default:      return m.text;
+        }
+    }
+
+    /** A string from a v1 peer; its blocked-spam notice becomes a VERDICT record. */
+    public static Message fromLegacy(String s) {
+        if (s.startsWith("[BLOCKED SPAM - Outgoing")) {
+            String origin = "Client";
+            if (s.startsWith(LEGACY_BLOCKED_PREFIX) && s.endsWith("]")) {
+                origin = s.substring(LEGACY_BLOCKED_PREFIX.length(), s.length() - 1);
+            }
+            return Message.blocked(0L, 0L, origin, 0.0);
+        }
+        return Message.chat(0L, s);
+    }
+
+    private static int labelCode(String label) {
+        for (int i = 1; i < LABELS.length; i++) {
+            if (LABELS[i].equals(label)) return i;
+        }
+        return 0;
+    }
+
+    private static Frame utfOrFail(String s) {
+        try {
+            return Frame.utf(s);
+        } catch (UTFDataFormatException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
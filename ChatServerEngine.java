@@ -0,0 +1,1117 @@
+package SpamDetector;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The chat server without a UI: it accepts clients, classifies their messages, relays
+ * them and logs them.
+ *
+ * - Everything a window would show is published to Listeners. The Swing window (Server)
+ *   is one optional subscriber. With --headless the engine runs with only a console
+ *   logger and needs no display (java.awt.headless=true works).
+ * - Listeners are called on network and classification threads, in delivery order for
+ *   each client. They must return quickly and build nothing on that thread; Server
+ *   hands every event to the EDT.
+ * - If a listener throws, the error is logged and delivery carries on.
+ * - close() stops accepting and closes every client. It then drains the classification
+ *   stage and the chat log. It never exits the JVM.
+ */
+public class ChatServerEngine implements Closeable {
+
+    // ========== CONFIG ==========
+    public static final int DEFAULT_PORT = 6001;
+    private static final String PYTHON_CMD = "python";// or "python3" on some systems
+    private static final String PREDICT_SCRIPT = "predict.py";
+    private static final String MODEL_PKL = "spam_nb_model.pkl";      // what predict.py loads
+    private static final int VERDICT_CACHE_SIZE = 10_000;
+    private static final File VERDICT_CACHE_FILE = new File("verdict_cache_server.txt"); // null = memory only
+    private static final double SPAM_CONF_THRESHOLD = 0.80; // block if confidence >= threshold
+    private static final File CHAT_STORE_DIR = new File("chat_store"); // indexed message store (null = text log only)
+    private static final File CHAT_LOG = new File("chat_log.txt");     // text log, used if the store is off or fails
+    private static final boolean CHAT_LOG_TEXT_TOO = false;             // write chat_log.txt next to the store
+    private static final int CHAT_LOG_RING_SIZE = 8192;         // log records waiting for the writer
+    private static final ChatLogWriter.SyncPolicy CHAT_LOG_SYNC = ChatLogWriter.SyncPolicy.GROUP_COMMIT;
+    private static final long CHAT_LOG_SYNC_INTERVAL_MILLIS = 1000;
+    private static final long CHAT_LOG_MAX_BYTES = 64L * 1024 * 1024;  // rotate at this size (0 = never)
+    private static final long CHAT_LOG_ROTATE_MILLIS = 24L * 60 * 60 * 1000; // and at this age (0 = never)
+    private static final long CHAT_LOG_OFFER_TIMEOUT_MICROS = 1000; // wait for a full ring, then drop
+    private static final int CLASSIFY_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int CLASSIFY_QUEUE_CAPACITY = 1024;  // readers block when this many are waiting
+    private static final int CLASSIFY_MAX_BATCH = 32;          // 1 = no batching
+    private static final long CLASSIFY_BATCH_WINDOW_MICROS = 2000; // max extra wait to fill a batch
+    private static final double[] BATCH_SIZE_BUCKETS = {1, 2, 4, 8, 16, 32, 64, 128};   // spam_classify_batch_size
+    private static final int OUTBOUND_QUEUE_CAPACITY = 256;    // messages waiting per client
+    private static final int[] OUTBOUND_DEPTH_BUCKETS = {0, 1, 16, 64, 128, OUTBOUND_QUEUE_CAPACITY - 1};
+    private static final int OUTBOUND_DEPTH_TOP = 5;          // deepest client queues exported by rank
+    private static final OutboundQueue.SlowConsumerPolicy SLOW_CONSUMER_POLICY = OutboundQueue.SlowConsumerPolicy.DROP_OLDEST;
+    private static final int METRICS_PORT = 9464;             // Prometheus /metrics on 127.0.0.1 (0 = off)
+    private static final String METRICS_MBEAN = "SpamDetector:type=ChatServerEngine";   // JMX name (null = off)
+    private static final boolean MODEL_HOT_RELOAD = true;      // reload spam_nb_model.bin when it changes
+    private static final int NEAR_DUP_CAPACITY = 8192;         // recent blocked spam matched by similarity (0 = off)
+    private static final long NEAR_DUP_WINDOW_MILLIS = 10 * 60 * 1000;   // how long a campaign is remembered
+    private static final double NEAR_DUP_SIMILARITY = 0.80;    // estimated Jaccard of character 4-grams
+    private static final File BLOCKLIST_FILE = new File("blocklist.txt"); // phrases, domains, phones (null = off)
+
+    /**
+     * Server events. Every method has an empty default, so a subscriber overrides only
+     * the ones it shows. res is null when the spam filter is off.
+     */
+    public interface Listener {
+        /** Server notices: listening, stopped, spam filter switched. */
+        default void onStatus(String text) {}
+        default void onClientConnected(String peer) {}
+        default void onClientDisconnected(String peer) {}
+        /** A client connection failed (includes malformed v2 frames). */
+        default void onClientError(String peer, String error) {}
+        /** A classified client message; a blocked one was not relayed. */
+        default void onIncoming(String peer, String text, SpamFilter.Result res, boolean blocked) {}
+        /** A message the server itself sent with send(); a blocked one went out as a notice only. */
+        default void onOutgoing(String text, SpamFilter.Result res, boolean blocked) {}
+        /** A client blocked its own outgoing spam; the notice was relayed, never the content. */
+        default void onBlockedNotice(String peer, String origin, double confidence) {}
+    }
+
+    // Networking
+    private final int port;
+    private final boolean useNio;          // --nio: selector event loop instead of a thread per client
+    private ServerSocket serverSocket;
+    private NioChatServer nioServer;
+    private final ThreadMode threadMode;   // --virtual: client handlers and writes on virtual threads
+    private final ExecutorService clientPool;
+    private final List<OutboundQueue> outputs = new CopyOnWriteArrayList<>();
+    private volatile int[] depthSnapshot;        // outboundDepths(), reused for a second
+    private volatile long depthSnapshotAt;
+    private final ChatLogWriter chatLog = openChatLog();
+    private final AtomicLong messageIds = new AtomicLong();   // ids of messages the server sends
+    private final ClassificationStage<SpamFilter.Result> classifier = new ClassificationStage<>(
+            "Classifier", this::classifyBatch, CLASSIFY_THREADS, CLASSIFY_QUEUE_CAPACITY,
+            CLASSIFY_MAX_BATCH, CLASSIFY_BATCH_WINDOW_MICROS);
+    // variants of spam blocked in the last NEAR_DUP_WINDOW_MILLIS get its verdict without the classifier
+    private final NearDuplicateIndex<SpamFilter.Result> nearDuplicates = NEAR_DUP_CAPACITY <= 0 ? null
+            : new NearDuplicateIndex<>(NEAR_DUP_CAPACITY, NEAR_DUP_WINDOW_MILLIS, NEAR_DUP_SIMILARITY);
+    // known-bad phrases, domains and phone numbers: blocked in one scan of the raw text, no model call
+    private final Blocklist blocklist = BLOCKLIST_FILE == null ? null : new Blocklist(BLOCKLIST_FILE);
+
+    // Metrics: counted lock-free on socket and classification threads, gauges read when scraped
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter accepted = metrics.counter("chat_connections_accepted_total", "Client connections accepted");
+    private final Metrics.Counter received = metrics.counter("chat_messages_received_total",
+            "Chat messages and blocked notices received from clients");
+    private final Metrics.Counter broadcasts = metrics.counter("chat_messages_broadcast_total",
+            "Messages broadcast to the connected clients");
+    private final Metrics.Counter blockedIncoming = metrics.counter("chat_messages_blocked_total",
+            "Spam blocked, by who sent it (client_filter: the client's own filter, only the notice arrived)", "origin", "client");
+    private final Metrics.Counter blockedOutgoing = metrics.counter("chat_messages_blocked_total", "", "origin", "server");
+    private final Metrics.Counter blockedNotices = metrics.counter("chat_messages_blocked_total", "", "origin", "client_filter");
+    private final Metrics.Counter readPauses = metrics.counter("chat_read_pauses_total",
+            "Times the NIO server stopped reading a client because the classification queue was full");
+    private HttpServer metricsServer;
+    private ObjectName metricsMBean;
+
+    // State
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean spamFilterEnabled = true;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    public ChatServerEngine(int port, boolean useNio, ThreadMode threadMode) {
+        this.port = port;
+        this.useNio = useNio;
+        this.threadMode = threadMode;
+        this.clientPool = threadMode.newExecutor("Server-Client");
+
+        metrics.gauge("chat_connections_active", "Connected clients", this::clientCount);
+        metrics.gauge("chat_outbound_queue_depth", "Messages queued for all clients", () -> outboundDepth(true));
+        metrics.gauge("chat_outbound_queue_depth_max", "Messages queued for the most backed-up client", () -> outboundDepth(false));
+        // per client without a label per connection (the peer's port changes on every reconnect)
+        String clients = "Clients with at most depth_le messages queued";
+        for (int le : OUTBOUND_DEPTH_BUCKETS) {
+            metrics.gauge("chat_outbound_queue_clients", clients, () -> clientsWithDepthAtMost(le), "depth_le", String.valueOf(le));
+        }
+        metrics.gauge("chat_outbound_queue_clients", clients, () -> outboundDepths().length, "depth_le", "+Inf");
+        String top = "Messages queued for the rank-th most backed-up client (0 if fewer clients)";
+        for (int rank = 1; rank <= OUTBOUND_DEPTH_TOP; rank++) {
+            int r = rank;
+            metrics.gauge("chat_outbound_queue_depth_top", top, () -> depthAtRank(r), "rank", String.valueOf(r));
+        }
+        metrics.gauge("spam_classify_queue_depth", "Messages waiting for the classification stage", classifier::backlog);
+        metrics.sizeHistogram("spam_classify_batch_size", "Messages per batch handed to the classifier",
+                classifier.batchSizes(), BATCH_SIZE_BUCKETS);
+        metrics.histogram("spam_classify_stage_seconds", "Time from submit to verdict on the classification stage, queueing included",
+                classifier.latencyMicros());
+        metrics.gauge("chat_connections_read_paused", "NIO clients not being read until the classification queue has room",
+                () -> nioServer == null ? 0 : nioServer.pausedCount());
+        metrics.gauge("chat_log_backlog_records", "Log records waiting for the writer thread", chatLog::backlog);
+        metrics.gauge("chat_log_lag_seconds", "Age of the oldest log record waiting for the writer", () -> chatLog.lagMillis() / 1000.0);
+        metrics.counter("chat_log_written_total", "Log records written", chatLog::writtenCount);
+        metrics.counter("chat_log_dropped_total", "Log records dropped because the ring stayed full", chatLog::droppedCount);
+        SpamFilter.registerMetrics(metrics);
+        if (nearDuplicates != null) {
+            metrics.counter("spam_near_duplicate_lookups_total", "Messages checked against recently blocked spam",
+                    nearDuplicates::lookupCount);
+            metrics.counter("spam_near_duplicate_hits_total", "Messages blocked as a near-duplicate, without the classifier",
+                    nearDuplicates::hitCount);
+            metrics.counter("spam_near_duplicate_evictions_total", "Entries dropped because the index was full",
+                    nearDuplicates::evictionCount);
+            metrics.gauge("spam_near_duplicate_entries", "Blocked spam messages in the near-duplicate index", nearDuplicates::size);
+        }
+        if (blocklist != null) {
+            metrics.counter("spam_blocklist_checks_total", "Messages scanned for blocklist entries", blocklist::checkCount);
+            String hits = "Messages blocked by a blocklist entry, without the classifier";
+            for (Blocklist.Kind k : Blocklist.Kind.values()) {
+                metrics.counter("spam_blocklist_hits_total", hits, () -> blocklist.hitCount(k), "kind", k.name().toLowerCase());
+            }
+            metrics.gauge("spam_blocklist_entries", "Entries in the blocklist being used", blocklist::size);
+            String reloads = "Blocklist reloads by outcome (rejected: the old list kept being used)";
+            metrics.counter("spam_blocklist_reloads_total", reloads, blocklist::reloadCount, "result", "ok");
+            metrics.counter("spam_blocklist_reloads_total", reloads, blocklist::rejectedCount, "result", "rejected");
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean isSpamFilterEnabled() {
+        return spamFilterEnabled;
+    }
+
+    public void setSpamFilterEnabled(boolean enabled) {
+        spamFilterEnabled = enabled;
+        fire(l -> l.onStatus("Spam filter turned " + (enabled ? "ON" : "OFF")));
+    }
+
+    // ----------------- Events -----------------
+
+    private void fire(Consumer<Listener> event) {
+        for (Listener l : listeners) {
+            try {
+                event.accept(l);
+            } catch (RuntimeException e) {
+                System.err.println("ChatServerEngine: listener failed: " + e);
+            }
+        }
+    }
+
+    // ------------------- Sending -------------------
+
+    /**
+     * Classify a message from the server operator and broadcast it, or only a blocked
+     * notice if it is spam. Classifies on the calling thread.
+     */
+    public void send(String text) {
+        if (text == null || text.trim().isEmpty()) return;
+
+        SpamFilter.Result known = spamFilterEnabled ? prefilter(text) : null;
+        SpamFilter.Result res = known != null ? known : SpamFilter.classifyIfEnabled(text, spamFilterEnabled);
+        boolean isSpamAndBlock = (res != null && "spam".equals(res.label) && res.confidence >= SPAM_CONF_THRESHOLD);
+
+        if (isSpamAndBlock) {
+            blockedOutgoing.inc();
+            rememberSpam(text, res);
+            fire(l -> l.onOutgoing(text, res, true));
+            writeLog("BLOCKED_OUTGOING", "server", text, res.confidence);
+            // Notify connected clients that the server attempted to send a blocked message
+            broadcast(stamped(ChatProtocol.VERDICT, ChatProtocol.FLAG_BLOCKED, res, "Server"), null);
+            return;
+        }
+
+        fire(l -> l.onOutgoing(text, res, false));
+        // broadcast server's outgoing message to all clients
+        broadcast(stamped(ChatProtocol.CHAT, 0, res, text), null);
+        writeLog("SERVER", "server", text, (res == null ? -1.0 : res.confidence));
+    }
+
+    /**
+     * Broadcast a message to all connected clients.
+     * If `exclude` is non-null the matching client queue will NOT receive the message
+     * (used to avoid echoing a client's own message back to them).
+     * The message is encoded once per protocol version and every recipient queues a view
+     * of the same Frame. Each client's OutboundQueue writes on its own; with
+     * SlowConsumerPolicy.BLOCK this call waits while a recipient's queue is full.
+     */
+    private void broadcast(ChatProtocol.Encoded message, OutboundQueue exclude) {
+        broadcasts.inc();
+        if (nioServer != null) {
+            nioServer.broadcast(message, null);
+            return;
+        }
+        for (OutboundQueue q : outputs) {
+            if (exclude != null && q == exclude) continue;
+            try {
+                if (!q.offer(message)) outputs.remove(q);   // closed: write error or slow consumer
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** A server-stamped record: next message id, server time, and the verdict (res may be null). */
+    private ChatProtocol.Encoded stamped(byte type, int flags, SpamFilter.Result res, String text) {
+        return stamped(type, flags, messageIds.incrementAndGet(), res, text);
+    }
+
+    private static ChatProtocol.Encoded stamped(byte type, int flags, long id, SpamFilter.Result res, String text) {
+        return new ChatProtocol.Encoded(new ChatProtocol.Message(type, flags, id, System.currentTimeMillis(),
+                res == null ? null : res.label, res == null ? 0.0 : res.confidence, text));
+    }
+
+    /** Per-client outbound queue depth, high-water mark, sent and dropped counts. */
+    public String outboundReport() {
+        if (nioServer != null) return nioServer.outboundReport();
+        StringBuilder sb = new StringBuilder("Outbound queues (" + outputs.size() + " clients)");
+        for (OutboundQueue q : outputs) sb.append("\n  ").append(q);
+        return sb.toString();
+    }
+
+    /**
+     * Moderator feedback: folds text into the native model as label ("spam" or "ham") right
+     * away, without a retrain. The corrected message's cached verdict is dropped at once, the
+     * rest of the cache only once enough feedback has shifted the tables (OnlineLearner).
+     * Marking ham also forgets near-duplicates of text.
+     * Returns false when there is no native model (Python backend) or the label is unknown.
+     */
+    public boolean learn(String text, String label) {
+        int features = SpamFilter.learn(text, label);
+        if (features < 0) {
+            fire(l -> l.onStatus("Feedback ignored: the native model is not loaded or '" + label + "' is not a class"));
+            return false;
+        }
+        if ("spam".equals(label)) {
+            rememberSpam(text, new SpamFilter.Result(label, 1.0, SpamFilter.currentModelTag()));
+        } else if (nearDuplicates != null) {
+            nearDuplicates.remove(text);   // its variants are classified again
+        }
+        fire(l -> l.onStatus("Learned message as " + label + " (" + features + " known words)"));
+        return true;
+    }
+
+    // the classification stage's batch function: prefiltered verdicts first, the model for the rest
+    private List<SpamFilter.Result> classifyBatch(List<String> messages) {
+        List<SpamFilter.Result> out = new ArrayList<>(messages.size());
+        List<String> misses = new ArrayList<>();
+        for (String m : messages) {
+            SpamFilter.Result known = prefilter(m);
+            out.add(known);
+            if (known == null) misses.add(m);
+        }
+        if (misses.isEmpty()) return out;
+        Iterator<SpamFilter.Result> fresh = SpamFilter.classifyBatch(misses).iterator();
+        for (int i = 0; i < out.size(); i++) {
+            if (out.get(i) == null) out.set(i, fresh.next());
+        }
+        return out;
+    }
+
+    // a verdict without the classifier: a blocklist entry in the raw text, or a variant of recent spam
+    private SpamFilter.Result prefilter(String text) {
+        Blocklist.Hit hit = blocklist == null ? null : blocklist.match(text);
+        if (hit != null) return new SpamFilter.Result("spam", 1.0, "blocklist:" + hit.kind.name().toLowerCase());
+        if (nearDuplicates == null) return null;
+        nearDuplicates.setModelId(SpamFilter.currentFileModelId());
+        return nearDuplicates.get(text);
+    }
+
+    // blocked or reported spam: its variants are blocked without the classifier for a while
+    private void rememberSpam(String text, SpamFilter.Result res) {
+        if (nearDuplicates == null) return;
+        nearDuplicates.setModelId(SpamFilter.currentFileModelId());
+        nearDuplicates.put(text, res);
+    }
+
+    /** Live counters, gauges and histograms; also served on METRICS_PORT and over JMX. */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    // messages queued right now: for all clients (total) or the most backed-up one
+    private int outboundDepth(boolean total) {
+        if (nioServer != null) return nioServer.outboundDepth(total);
+        int depth = 0;
+        for (OutboundQueue q : outputs) depth = total ? depth + q.depth() : Math.max(depth, q.depth());
+        return depth;
+    }
+
+    // every client's queue depth, ascending; one snapshot serves all the gauges of a scrape
+    private int[] outboundDepths() {
+        long now = System.nanoTime();
+        int[] depths = depthSnapshot;
+        if (depths != null && now - depthSnapshotAt < 1_000_000_000L) return depths;
+        if (nioServer != null) {
+            depths = nioServer.outboundDepths();
+        } else {
+            List<OutboundQueue> queues = new ArrayList<>(outputs);
+            depths = new int[queues.size()];
+            for (int i = 0; i < depths.length; i++) depths[i] = queues.get(i).depth();
+        }
+        Arrays.sort(depths);
+        depthSnapshot = depths;
+        depthSnapshotAt = now;
+        return depths;
+    }
+
+    private int clientsWithDepthAtMost(int depth) {
+        int[] depths = outboundDepths();
+        int n = 0;
+        while (n < depths.length && depths[n] <= depth) n++;
+        return n;
+    }
+
+    private int depthAtRank(int rank) {
+        int[] depths = outboundDepths();
+        return rank <= depths.length ? depths[depths.length - rank] : 0;
+    }
+
+    /** Connected clients: entries in outputs, or NIO connections. For leak checks. */
+    int clientCount() {
+        return nioServer != null ? nioServer.connectionCount() : outputs.size();
+    }
+
+    /** Client pool threads running a task, or -1 when the pool cannot tell (virtual threads). */
+    int activeClientThreads() {
+        return clientPool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) clientPool).getActiveCount() : -1;
+    }
+
+    // ------------------- Networking / Server -------------------
+
+    /** Bind the port and start accepting clients; throws if the port cannot be bound. */
+    public void start() throws IOException {
+        if (useNio) {
+            startNioServer();
+            return;
+        }
+        // accepted through a (blocking) channel so OutboundQueue can do gathering writes
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            ssc.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            ssc.close();
+            throw e;
+        }
+        ServerSocket ss = ssc.socket();
+        serverSocket = ss;
+        startMetrics();
+        watchFiles();
+        fire(l -> l.onStatus("Server listening on port " + port + " (" + threadMode.describe() + ")"));
+        Thread t = new Thread(() -> {
+            try (ssc) {
+                while (!ss.isClosed()) {
+                    Socket client = ssc.accept().socket();
+                    clientPool.submit(new ClientHandler(client));
+                }
+            } catch (IOException e) {
+                // close() closes the socket: that is a stop, not an error
+                fire(l -> l.onStatus(closed.get() ? "Server stopped" : "Server stopped: " + e.getMessage()));
+            }
+        }, "Server-Accept-Thread");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // a busy metrics port or a duplicate MBean is logged, never fatal
+    private void startMetrics() {
+        if (METRICS_PORT > 0) {
+            try {
+                metricsServer = metrics.serve(METRICS_PORT);
+                installModelAdmin(metricsServer);
+                fire(l -> l.onStatus("Metrics on http://127.0.0.1:" + METRICS_PORT + "/metrics"));
+            } catch (IOException e) {
+                System.err.println("Metrics endpoint unavailable: " + e.getMessage());
+            }
+        }
+        if (METRICS_MBEAN != null) {
+            try {
+                metricsMBean = metrics.registerMBean(METRICS_MBEAN);
+            } catch (JMException e) {
+                System.err.println("Metrics MBean unavailable: " + e.getMessage());
+            }
+        }
+    }
+
+    // ----------------- Model versions -----------------
+
+    // swaps, rollbacks and rejected reloads go to the listeners and into the chat log, so
+    // every logged verdict can be traced to the model version that was serving
+    private final Consumer<String> modelEvents = text -> {
+        fire(l -> l.onStatus(text));
+        writeLog("MODEL", "server", text, -1.0);
+    };
+
+    // blocklist reloads likewise, so a block by an entry can be traced to the list that had it
+    private final Consumer<String> blocklistEvents = text -> {
+        fire(l -> l.onStatus(text));
+        writeLog("BLOCKLIST", "server", text, -1.0);
+    };
+
+    // blocklist.txt always, spam_nb_model.bin unless MODEL_HOT_RELOAD is off
+    private void watchFiles() {
+        if (blocklist != null) {
+            blocklist.addListener(blocklistEvents);
+            blocklist.watch();
+        }
+        if (!MODEL_HOT_RELOAD) return;
+        ModelRegistry.shared().addListener(modelEvents);
+        ModelRegistry.shared().watch();
+    }
+
+    /**
+     * Loads spam_nb_model.bin again in the background, checks and warms it up, then swaps it
+     * in; classifications already running finish on the old version. Completes exceptionally
+     * if the file is rejected (the old version keeps serving). Also done automatically when
+     * the file changes, unless MODEL_HOT_RELOAD is off.
+     */
+    public CompletableFuture<ModelRegistry.Version> reloadModel() {
+        return ModelRegistry.shared().reload();
+    }
+
+    /** Instantly serves the previous model version again; null if there is none. */
+    public ModelRegistry.Version rollbackModel() {
+        return ModelRegistry.shared().rollback();
+    }
+
+    /** Model versions being served and kept for rollback, and reload counts. */
+    public String modelStatus() {
+        ModelRegistry models = ModelRegistry.shared();
+        ModelRegistry.Version current = models.current(), previous = models.previous();
+        return "current:  " + (current == null ? "none (Python bridge)" : current) + "\n"
+                + "previous: " + (previous == null ? "none" : previous) + "\n"
+                + "reloads " + models.reloadCount() + ", rejected " + models.rejectedCount()
+                + ", rollbacks " + models.rollbackCount() + "\n";
+    }
+
+    /**
+     * Admin commands next to /metrics (loopback only):
+     *   GET /model, POST /model/reload (waits for the result), POST /model/rollback
+     */
+    private void installModelAdmin(HttpServer http) {
+        http.createContext("/model", exchange -> {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                boolean post = "POST".equals(exchange.getRequestMethod());
+                int status = 200;
+                String body;
+                if ("/model".equals(path)) {
+                    body = modelStatus();
+                } else if ("/model/reload".equals(path) && post) {
+                    try {
+                        body = "active: " + reloadModel().join() + "\n";
+                    } catch (CompletionException e) {
+                        status = 409;
+                        body = "rejected: " + e.getCause().getMessage() + "\n";
+                    }
+                } else if ("/model/rollback".equals(path) && post) {
+                    ModelRegistry.Version v = rollbackModel();
+                    status = v == null ? 409 : 200;
+                    body = v == null ? "no previous version\n" : "active: " + v + "\n";
+                } else {
+                    status = path.startsWith("/model/") && !post ? 405 : 404;
+                    body = "GET /model, POST /model/reload, POST /model/rollback\n";
+                }
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(status, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    private void startNioServer() throws IOException {
+        nioServer = new NioChatServer(port, new NioChatServer.Handler() {
+            @Override
+            public void onConnect(NioChatServer.Connection c) {
+                accepted.inc();
+                // per-connection delivery chain, same ordering rule as ClientHandler
+                c.attachment = CompletableFuture.<Void>completedFuture(null);
+                String peer = String.valueOf(c.remoteAddress());
+                fire(l -> l.onClientConnected(peer));
+                writeLog("CONNECT", peer, peer, -1.0);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean onMessage(NioChatServer.Connection c, ChatProtocol.Message msg) {
+                // never parks the event loop: a full classification queue pauses this connection
+                CompletableFuture<Void> next = tryReceive(msg, (CompletableFuture<Void>) c.attachment,
+                        String.valueOf(c.remoteAddress()), m -> nioServer.broadcast(m, c), m -> nioServer.send(c, m));
+                if (next == null) {
+                    readPauses.inc();
+                    classifier.whenRoom(() -> nioServer.resume(c));
+                    return false;
+                }
+                c.attachment = next;
+                return true;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onDisconnect(NioChatServer.Connection c) {
+                ((CompletableFuture<Void>) c.attachment).whenComplete((v, e) -> {
+                    String peer = String.valueOf(c.remoteAddress());
+                    fire(l -> l.onClientDisconnected(peer));
+                    writeLog("DISCONNECT", peer, peer, -1.0);
+                });
+            }
+        }, OUTBOUND_QUEUE_CAPACITY, SLOW_CONSUMER_POLICY);
+        nioServer.start();
+        startMetrics();
+        watchFiles();
+        fire(l -> l.onStatus("Server listening on port " + port + " (NIO)"));
+    }
+
+    /**
+     * Handle one record from a client, chained after the previous delivery so messages
+     * leave in arrival order; returns the new end of the chain. CHAT is classified on the
+     * classification stage, VERDICT (the client blocked its own spam) is published and
+     * relayed; ACK and SYSTEM only travel server -> client and are ignored.
+     * relay sends to everyone except the sender, reply to the sender only.
+     * This one waits while the classification queue is full (reader threads).
+     */
+    private CompletableFuture<Void> receive(ChatProtocol.Message msg, CompletableFuture<Void> delivered, String from,
+                                            Consumer<ChatProtocol.Encoded> relay,
+                                            Consumer<ChatProtocol.Encoded> reply) throws InterruptedException {
+        if (msg.type == ChatProtocol.CHAT && spamFilterEnabled) {
+            return receive(msg, delivered, from, relay, reply, classifier.submit(msg.text));
+        }
+        return receive(msg, delivered, from, relay, reply, null);
+    }
+
+    /** The same without waiting (the NIO event loop): null, and nothing done, while the queue is full. */
+    private CompletableFuture<Void> tryReceive(ChatProtocol.Message msg, CompletableFuture<Void> delivered, String from,
+                                               Consumer<ChatProtocol.Encoded> relay, Consumer<ChatProtocol.Encoded> reply) {
+        CompletableFuture<SpamFilter.Result> queued = null;
+        if (msg.type == ChatProtocol.CHAT && spamFilterEnabled) {
+            queued = classifier.offer(msg.text);
+            if (queued == null) return null;
+        }
+        return receive(msg, delivered, from, relay, reply, queued);
+    }
+
+    // queued: the message's classification, already submitted (null when the filter is off)
+    private CompletableFuture<Void> receive(ChatProtocol.Message msg, CompletableFuture<Void> delivered, String from,
+                                            Consumer<ChatProtocol.Encoded> relay, Consumer<ChatProtocol.Encoded> reply,
+                                            CompletableFuture<SpamFilter.Result> queued) {
+        CompletableFuture<Void> next;
+        if (msg.type == ChatProtocol.VERDICT) {
+            received.inc();
+            next = delivered.thenRun(() -> deliverNotice(msg, from, relay));
+        } else if (msg.type == ChatProtocol.CHAT) {
+            received.inc();
+            CompletableFuture<SpamFilter.Result> verdict;
+            if (queued != null) {
+                verdict = queued.exceptionally(e -> {
+                    SpamFilter.STAGE_ERRORS.inc();
+                    return new SpamFilter.Result("error", 0.0);
+                });
+            } else {
+                verdict = CompletableFuture.completedFuture(null);
+            }
+            next = delivered.thenCombine(verdict, (prev, res) -> res)
+                    .thenAccept(res -> deliverIncoming(msg, from, res, relay, reply));
+        } else {
+            return delivered;
+        }
+        return next.exceptionally(e -> {
+            System.err.println("Delivery failed for " + from + ": " + e);
+            return null;
+        });
+    }
+
+    /**
+     * Publish, log and relay one classified client message, then ACK it to the sender
+     * with the verdict. Blocked spam is published but never relayed.
+     */
+    private void deliverIncoming(ChatProtocol.Message msg, String from, SpamFilter.Result res,
+                                 Consumer<ChatProtocol.Encoded> relay, Consumer<ChatProtocol.Encoded> reply) {
+        boolean isSpamAndBlock = (res != null && "spam".equals(res.label) && res.confidence >= SPAM_CONF_THRESHOLD);
+
+        if (isSpamAndBlock) {
+            // blocked: published as blocked and NOT broadcast
+            blockedIncoming.inc();
+            rememberSpam(msg.text, res);
+            fire(l -> l.onIncoming(from, msg.text, res, true));
+            writeLog("BLOCKED_INCOMING", from, msg.text, res.confidence);
+            reply.accept(stamped(ChatProtocol.ACK, ChatProtocol.FLAG_BLOCKED, msg.id, res, ""));
+            return;
+        }
+
+        // normal message: publish and broadcast (do not echo back to sender)
+        fire(l -> l.onIncoming(from, msg.text, res, false));
+        relay.accept(stamped(ChatProtocol.CHAT, 0, res, msg.text));
+        reply.accept(stamped(ChatProtocol.ACK, 0, msg.id, res, ""));
+        writeLog("CLIENT", from, msg.text, (res == null ? -1.0 : res.confidence));
+    }
+
+    /** A client blocked its own outgoing spam: publish the notice and pass it on (never the content). */
+    private void deliverNotice(ChatProtocol.Message msg, String from, Consumer<ChatProtocol.Encoded> relay) {
+        blockedNotices.inc();
+        SpamFilter.Result res = new SpamFilter.Result("spam", msg.confidence);
+        ChatProtocol.Encoded notice = stamped(ChatProtocol.VERDICT, ChatProtocol.FLAG_BLOCKED, res, "Client");
+        fire(l -> l.onBlockedNotice(from, "Client", msg.confidence));
+        relay.accept(notice);
+        writeLog("BLOCKED_NOTICE", from, "Client", msg.confidence);
+    }
+
+    private class ClientHandler implements Runnable {
+        private final Socket socket;
+        private DataInputStream din;
+        private OutboundQueue outbound;
+
+        ClientHandler(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            String remoteAddr = socket.getRemoteSocketAddress().toString();
+            accepted.inc();
+            // messages leave in arrival order: each delivery waits for the one before it
+            CompletableFuture<Void> delivered = CompletableFuture.completedFuture(null);
+            try {
+                din = new DataInputStream(socket.getInputStream());
+                // closing the socket on a failed or slow queue ends this read loop too
+                outbound = new OutboundQueue(remoteAddr, socket, OUTBOUND_QUEUE_CAPACITY,
+                        SLOW_CONSUMER_POLICY, clientPool, () -> {
+                            try { socket.close(); } catch (IOException ignored) {}
+                        });
+                outbound.offer(ChatProtocol.OFFER_FRAME);   // ahead of any broadcast
+                outputs.add(outbound);
+
+                fire(l -> l.onClientConnected(remoteAddr));
+                writeLog("CONNECT", remoteAddr, remoteAddr, -1.0);
+
+                // v1 (writeUTF strings) until the client says HELLO, v2 frames after that
+                int protocol = ChatProtocol.V1;
+                while (!socket.isClosed()) {
+                    List<ChatProtocol.Message> batch;
+                    try {
+                        if (protocol == ChatProtocol.V2) {
+                            batch = ChatProtocol.read(din);
+                        } else {
+                            String msg = din.readUTF();
+                            if (ChatProtocol.HELLO.equals(msg)) {
+                                protocol = ChatProtocol.V2;
+                                outbound.switchProtocol(ChatProtocol.V2, ChatProtocol.HELLO_OK_FRAME);
+                                continue;
+                            }
+                            batch = Collections.singletonList(ChatProtocol.fromLegacy(msg));
+                        }
+                    } catch (EOFException | SocketException se) {
+                        break;
+                    }
+
+                    // the reader only frames and enqueues; classification runs on its own stage
+                    for (ChatProtocol.Message msg : batch) {
+                        delivered = receive(msg, delivered, remoteAddr, m -> broadcast(m, outbound), this::reply);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // includes ProtocolException for a malformed v2 frame
+                fire(l -> l.onClientError(remoteAddr, e.getMessage()));
+            } finally {
+                if (outbound != null) {
+                    outputs.remove(outbound);
+                    if (outbound.droppedCount() > 0) System.err.println("Outbound queue closed: " + outbound);
+                    outbound.close();
+                }
+                try { if (!socket.isClosed()) socket.close(); } catch (IOException ignored) {}
+                // after the messages still being classified have been published
+                delivered.whenComplete((v, e) -> {
+                    fire(l -> l.onClientDisconnected(remoteAddr));
+                    writeLog("DISCONNECT", remoteAddr, remoteAddr, -1.0);
+                });
+            }
+        }
+
+        private void reply(ChatProtocol.Encoded message) {
+            try {
+                outbound.offer(message);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ----------------- Spam Filter Bridge -----------------
+
+    /**
+     * SpamFilter classifies with the in-JVM NaiveBayesModel when spam_nb_model.bin exists,
+     * otherwise it asks a pool of persistent predict.py workers and parses label|confidence output.
+     * The native model is the version ModelRegistry serves at the start of each call, and every
+     * Result names it (Result.model).
+     * If the filter is disabled, classifyIfEnabled returns null quickly (no blocking).
+     */
+    public static class SpamFilter {
+        public static class Result {
+            public final String label;
+            public final double confidence;
+            public final String model;   // ModelRegistry tag ("v3-3f19c246"), "python", or null
+            public Result(String label, double confidence) {
+                this(label, confidence, null);
+            }
+            public Result(String label, double confidence, String model) {
+                this.label = label;
+                this.confidence = confidence;
+                this.model = model;
+            }
+        }
+
+        private static final String PYTHON = "python";   // Result.model for predict.py verdicts
+
+        // metrics, static like the model and the workers they measure; latency is per classifier call
+        private static final Histogram NATIVE_LATENCY = new Histogram();
+        private static final Histogram PYTHON_LATENCY = new Histogram();
+        private static final Metrics.Counter PYTHON_ERRORS = new Metrics.Counter();
+        static final Metrics.Counter STAGE_ERRORS = new Metrics.Counter();   // the classifier threw
+        private static volatile PythonWorkerPool startedPool;               // null until Python is used
+        private static final Metrics.Counter FEEDBACK_SPAM = new Metrics.Counter();
+        private static final Metrics.Counter FEEDBACK_HAM = new Metrics.Counter();
+
+        static void registerMetrics(Metrics m) {
+            String latency = "Classifier call latency by backend (one call may classify a batch)";
+            m.histogram("spam_classify_seconds", latency, NATIVE_LATENCY, "backend", "native");
+            m.histogram("spam_classify_seconds", latency, PYTHON_LATENCY, "backend", "python");
+            String errors = "Messages classified as Result(\"error\", 0.0), let through unfiltered";
+            m.counter("spam_classify_errors_total", errors, PYTHON_ERRORS, "backend", "python");
+            m.counter("spam_classify_errors_total", errors, STAGE_ERRORS, "backend", "stage");
+            m.counter("spam_classify_timeouts_total", "Python worker requests given up after the request timeout",
+                    () -> startedPool == null ? 0 : startedPool.timeoutCount(), "backend", "python");
+            m.counter("spam_verdict_cache_hits_total", "Verdicts answered from the cache", () -> Verdicts.CACHE.hitCount());
+            m.counter("spam_verdict_cache_misses_total", "Verdicts the cache did not have", () -> Verdicts.CACHE.missCount());
+            String feedback = "Moderator corrections learned by the native model";
+            m.counter("spam_feedback_total", feedback, FEEDBACK_SPAM, "label", "spam");
+            m.counter("spam_feedback_total", feedback, FEEDBACK_HAM, "label", "ham");
+            ModelRegistry models = ModelRegistry.shared();
+            m.gauge("spam_model_version", "Native model version being served (0: none, Python bridge)", () -> {
+                ModelRegistry.Version v = models.current();
+                return v == null ? 0 : v.number;
+            });
+            String reloads = "Model reloads by outcome (rejected: the old version kept serving)";
+            m.counter("spam_model_reloads_total", reloads, models::reloadCount, "result", "ok");
+            m.counter("spam_model_reloads_total", reloads, models::rejectedCount, "result", "rejected");
+            m.counter("spam_model_rollbacks_total", "Rollbacks to the previous model version", models::rollbackCount);
+        }
+
+        /**
+         * Online update of the native model (see OnlineLearner). Returns how many known words
+         * the message contributed, or -1 if there is no native model or no such label.
+         */
+        static int learn(String message, String label) {
+            NaiveBayesModel model = NaiveBayesModel.shared();
+            if (model == null) return -1;
+            int c = model.classIndex(label);
+            if (c < 0) return -1;
+            int features = model.learner().learn(message, c);
+            // the model id only moves after enough updates; this message's verdict is stale now
+            Verdicts.CACHE.remove(TextNormalizer.normalize(message));
+            (c == model.classIndex("spam") ? FEEDBACK_SPAM : FEEDBACK_HAM).inc();
+            return features;
+        }
+
+        /**
+         * If enabled==false -> returns null (no classification performed).
+         * If enabled==true -> calls external script and returns a Result (never null unless error).
+         */
+        public static Result classifyIfEnabled(String message, boolean enabled) {
+            if (!enabled) return null;
+            // one version for the whole call, even if a reload swaps in another meanwhile
+            ModelRegistry.Version version = ModelRegistry.shared().current();
+            // repeated messages (greetings, spam blasts) are answered from the verdict cache
+            VerdictCache<Result> cache = Verdicts.CACHE;
+            long id = modelId(version);
+            cache.setModelId(id);
+            String key = TextNormalizer.normalize(message);
+            Result res = cache.get(key);
+            if (res != null) return res;
+            res = classify(version, message);
+            if (!"error".equals(res.label) && cacheable(version, id)) cache.put(key, res, id);
+            return res;
+        }
+
+        /**
+         * Batch form used by the classification stage: cached verdicts are answered directly
+         * and the rest go to the model together (one predict_proba call in a Python worker).
+         */
+        public static List<Result> classifyBatch(List<String> messages) {
+            ModelRegistry.Version version = ModelRegistry.shared().current();
+            VerdictCache<Result> cache = Verdicts.CACHE;
+            long id = modelId(version);
+            cache.setModelId(id);
+            Result[] results = new Result[messages.size()];
+            String[] keys = new String[messages.size()];
+            List<String> misses = new ArrayList<>();
+            List<Integer> missAt = new ArrayList<>();
+            for (int i = 0; i < messages.size(); i++) {
+                keys[i] = TextNormalizer.normalize(messages.get(i));
+                results[i] = cache.get(keys[i]);
+                if (results[i] == null) {
+                    misses.add(messages.get(i));
+                    missAt.add(i);
+                }
+            }
+            if (!misses.isEmpty()) {
+                Result[] fresh = classifyAll(version, misses);
+                boolean cacheable = cacheable(version, id);
+                for (int j = 0; j < fresh.length; j++) {
+                    int i = missAt.get(j);
+                    results[i] = fresh[j];
+                    if (!"error".equals(fresh[j].label) && cacheable) cache.put(keys[i], fresh[j], id);
+                }
+            }
+            return Arrays.asList(results);
+        }
+
+        private static Result[] classifyAll(ModelRegistry.Version version, List<String> messages) {
+            Result[] out = new Result[messages.size()];
+            long start = System.nanoTime();
+            if (version != null) {
+                NaiveBayesModel model = version.model;
+                String tag = version.tag();
+                int[] labels = new int[messages.size()];
+                double[] proba = new double[messages.size() * model.classCount()];
+                model.predictBatch(messages, labels, proba);
+                NATIVE_LATENCY.record((System.nanoTime() - start) / 1000);
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = new Result(model.label(labels[i]), proba[i * model.classCount() + labels[i]], tag);
+                }
+                return out;
+            }
+            if (messages.size() == 1) {
+                out[0] = classifyPython(messages.get(0));
+                return out;
+            }
+            String[] lines = PythonWorkers.POOL.classifyBatch(messages);
+            PYTHON_LATENCY.record((System.nanoTime() - start) / 1000);
+            if (lines == null) PYTHON_ERRORS.add(out.length);
+            for (int i = 0; i < out.length; i++) {
+                out[i] = lines != null ? parseResult(lines[i], PYTHON) : new Result("error", 0.0, PYTHON);
+            }
+            return out;
+        }
+
+        // created on first use; reloads the saved entries and saves them again on exit
+        private static final class Verdicts {
+            static final VerdictCache<Result> CACHE = new VerdictCache<>(VERDICT_CACHE_SIZE);
+
+            static {
+                if (VERDICT_CACHE_FILE != null) {
+                    // saved for the same model id, so the verdicts came from the version serving now
+                    ModelRegistry.Version version = ModelRegistry.shared().current();
+                    String tag = version == null ? PYTHON : version.tag();
+                    CACHE.setModelId(modelId(version));
+                    try {
+                        CACHE.load(VERDICT_CACHE_FILE, line -> parseResult(line, tag));
+                    } catch (IOException e) {
+                        System.err.println("Cannot load verdict cache: " + e.getMessage());
+                    }
+                }
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    System.err.println(CACHE);
+                    if (VERDICT_CACHE_FILE == null) return;
+                    try {
+                        CACHE.save(VERDICT_CACHE_FILE, r -> r.label + "|" + r.confidence);
+                    } catch (IOException e) {
+                        System.err.println("Cannot save verdict cache: " + e.getMessage());
+                    }
+                }, "VerdictCache-Save"));
+            }
+        }
+
+        /**
+         * Id of the model file serving now (native version, or predict.py's pickle), unchanged
+         * by online updates: near-duplicate entries stay valid while a moderator teaches the model.
+         */
+        static long currentFileModelId() {
+            ModelRegistry.Version version = ModelRegistry.shared().current();
+            return version == null ? modelId(null) : version.model.fileModelId();
+        }
+
+        static String currentModelTag() {
+            ModelRegistry.Version version = ModelRegistry.shared().current();
+            return version == null ? PYTHON : version.tag();
+        }
+
+        // verdicts are only valid for the model that produced them; the pool watches the pickle
+        private static long modelId(ModelRegistry.Version version) {
+            if (version != null) return version.model.modelId();
+            return PythonWorkers.POOL.modelStamp();
+        }
+
+        // a worker restarted onto a new pickle during the call may have answered: not under the old id
+        private static boolean cacheable(ModelRegistry.Version version, long id) {
+            return id != 0 && modelId(version) == id;
+        }
+
+        // per-thread predict_proba buffer for the native engine
+        private static final ThreadLocal<double[]> PROBA = ThreadLocal.withInitial(() -> new double[2]);
+
+        private static Result classify(ModelRegistry.Version version, String message) {
+            // prefer the in-JVM model when the exported tables are present
+            if (version != null) return classifyNative(version, message);
+            return classifyPython(message);
+        }
+
+        private static Result classifyNative(ModelRegistry.Version version, String message) {
+            NaiveBayesModel model = version.model;
+            long start = System.nanoTime();
+            double[] proba = PROBA.get();
+            if (proba.length < model.classCount()) {
+                proba = new double[model.classCount()];
+                PROBA.set(proba);
+            }
+            int c = model.predict(message, proba);
+            NATIVE_LATENCY.record((System.nanoTime() - start) / 1000);
+            return new Result(model.label(c), proba[c], version.tag());
+        }
+
+        // started on first use so the native path never spawns Python at all
+        private static final class PythonWorkers {
+            static final PythonWorkerPool POOL =
+                    new PythonWorkerPool(PYTHON_CMD, PREDICT_SCRIPT, new File(MODEL_PKL), PythonWorkerPool.defaultSize());
+
+            static {
+                startedPool = POOL;
+            }
+        }
+
+        private static Result classifyPython(String message) {
+            // long-lived predict.py workers; the message goes over stdin, not argv
+            long start = System.nanoTime();
+            String line = PythonWorkers.POOL.classify(message);
+            PYTHON_LATENCY.record((System.nanoTime() - start) / 1000);
+            if (line == null) PYTHON_ERRORS.inc();
+            return line != null ? parseResult(line, PYTHON) : new Result("error", 0.0, PYTHON);
+        }
+
+        // expected format: label|confidence  e.g. spam|0.9943
+        private static Result parseResult(String line, String model) {
+            String[] parts = line.trim().split("\\|");
+            if (parts.length >= 2) {
+                String label = parts[0].trim();
+                double conf = 0.0;
+                try { conf = Double.parseDouble(parts[1]); } catch (NumberFormatException ignore) {}
+                return new Result(label, conf, model);
+            }
+            // if output just label, assume confidence 1.0
+            return new Result(line.trim(), 1.0, model);
+        }
+    }
+
+    // ----------------- Shutdown -----------------
+
+    /** Stop accepting, close every client, then drain classification and the chat log. */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
+        } catch (IOException ignored) {}
+        if (nioServer != null) nioServer.close();
+        if (metricsServer != null) metricsServer.stop(0);
+        ModelRegistry.shared().removeListener(modelEvents);
+        if (blocklist != null) {
+            blocklist.removeListener(blocklistEvents);
+            blocklist.close();
+            System.err.println(blocklist);
+        }
+        if (metricsMBean != null) Metrics.unregisterMBean(metricsMBean);
+        System.err.println(outboundReport());
+        for (OutboundQueue q : outputs) q.close();
+        outputs.clear();
+        classifier.shutdown();
+        System.err.println(classifier);
+        if (nearDuplicates != null) System.err.println(nearDuplicates);
+        chatLog.close();
+        System.err.println(chatLog);
+        clientPool.shutdownNow();
+        terminated.countDown();
+    }
+
+    /** Blocks until close() has finished. */
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    // Chat log (append): queued for the ChatLogWriter thread, never blocks on disk
+    private void writeLog(String tag, String peer, String text, double confidence) {
+        chatLog.append(tag, peer, text, confidence);
+    }
+
+    // message store (plus the text log if asked for); the text log alone if the store won't open
+    private static ChatLogWriter openChatLog() {
+        MessageStore store = null;
+        if (CHAT_STORE_DIR != null) {
+            try {
+                store = new MessageStore(CHAT_STORE_DIR);
+            } catch (IOException e) {
+                System.err.println("Message store unavailable, logging to " + CHAT_LOG + ": " + e.getMessage());
+            }
+        }
+        File text = (store == null || CHAT_LOG_TEXT_TOO) ? CHAT_LOG : null;
+        return new ChatLogWriter(text, store, CHAT_LOG_RING_SIZE, CHAT_LOG_SYNC, CHAT_LOG_SYNC_INTERVAL_MILLIS,
+                CHAT_LOG_MAX_BYTES, CHAT_LOG_ROTATE_MILLIS, CHAT_LOG_OFFER_TIMEOUT_MICROS);
+    }
+
+    // ----------------- Headless -----------------
+
+    /** Logs server and connection events to stderr; messages themselves go to the chat log only. */
+    static final class ConsoleListener implements Listener {
+        @Override public void onStatus(String text) { System.err.println(text); }
+        @Override public void onClientConnected(String peer) { System.err.println("Client connected: " + peer); }
+        @Override public void onClientDisconnected(String peer) { System.err.println("Client disconnected: " + peer); }
+        @Override public void onClientError(String peer, String error) {
+            System.err.println("Client error: " + peer + " (" + error + ")");
+        }
+    }
+
+    /** Runs until the JVM is stopped (Ctrl-C / SIGTERM); the shutdown hook closes the engine. */
+    static void runHeadless(int port, boolean nio, ThreadMode mode) throws InterruptedException {
+        ChatServerEngine engine = new ChatServerEngine(port, nio, mode);
+        engine.addListener(new ConsoleListener());
+        try {
+            engine.start();
+        } catch (IOException e) {
+            System.err.println("Server stopped: " + e.getMessage());
+            engine.close();
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(engine::close, "ChatServerEngine-Shutdown"));
+        engine.awaitTermination();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // java SpamDetector.ChatServerEngine [--nio] [--virtual]   (same as Server --headless)
+        runHeadless(DEFAULT_PORT, Arrays.asList(args).contains("--nio"), ThreadMode.fromArgs(args));
+    }
+}
@@ -0,0 +1,235 @@
+package SpamDetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Classification as its own pipeline stage.
+ *
+ * - Readers call submit() and get a CompletableFuture back instead of running the
+ *   classifier on the socket thread.
+ * - The queue is bounded: when it is full submit() blocks, so a flood of messages stops
+ *   the reader (and through TCP, the sender) instead of growing memory. A thread that must
+ *   not block (an event loop) uses offer(), which returns null when full, and whenRoom()
+ *   to hear when to try again.
+ * - Micro-batching: a worker takes whatever is queued (up to maxBatch) and, if the batch is
+ *   not full, keeps collecting until maxWait has passed since the first message arrived.
+ *   The whole batch goes to the classifier in one call. maxBatch = 1 turns this off;
+ *   a larger maxWait buys bigger batches (throughput) with added latency.
+ * - Batch sizes and submit-to-result latency (microseconds) are recorded in two Histograms,
+ *   which the server exports as metrics, so bursts can be tuned for p99.
+ * - Results complete in whatever order the workers finish; callers that need ordering
+ *   chain the futures (see ChatServerEngine.ClientHandler).
+ * - Every future completes. If the classifier throws anything, Errors included, the batch
+ *   fails and the worker carries on; a message submitted while the stage shuts down fails
+ *   instead of waiting in a queue nobody reads.
+ */
+public class ClassificationStage<R> {
+
+    /** Classifies a batch; must return exactly one result per message, in the same order. */
+    public interface BatchClassifier<R> {
+        List<R> classify(List<String> messages);
+    }
+
+    private final BatchClassifier<R> classifier;
+    private final BlockingQueue<Task<R>> queue;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final Thread[] workers;
+    private volatile boolean running = true;
+    private final ConcurrentLinkedQueue<Runnable> roomWaiters = new ConcurrentLinkedQueue<>();
+
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram latencyMicros = new Histogram();
+
+    /** One message per classifier call. */
+    public ClassificationStage(String name, Function<String, R> classifier, int threads, int capacity) {
+        this(name, messages -> {
+            List<R> out = new ArrayList<>(messages.size());
+            for (String m : messages) out.add(classifier.apply(m));
+            return out;
+        }, threads, capacity, 1, 0);
+    }
+
+    public ClassificationStage(String name, BatchClassifier<R> classifier, int threads, int capacity,
+                               int maxBatch, long maxWaitMicros) {
+        this.classifier = classifier;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxWaitMicros));
+        this.workers = new Thread[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::workLoop, name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queue a message for classification, waiting while the queue is full.
+     * The future fails if the classifier throws or the stage is shut down.
+     */
+    public CompletableFuture<R> submit(String message) throws InterruptedException {
+        Task<R> task = new Task<>(message);
+        if (!running) {
+            task.future.completeExceptionally(stopped());
+            return task.future;
+        }
+        queue.put(task);
+        // shutdown() may have drained the queue between the check and the put
+        if (!running && queue.remove(task)) task.future.completeExceptionally(stopped());
+        return task.future;
+    }
+
+    /**
+     * Queue a message without waiting: null when the queue is full (try again after
+     * whenRoom()). The future fails if the classifier throws or the stage is shut down.
+     */
+    public CompletableFuture<R> offer(String message) {
+        Task<R> task = new Task<>(message);
+        if (!running) {
+            task.future.completeExceptionally(stopped());
+            return task.future;
+        }
+        if (!queue.offer(task)) return null;
+        if (!running && queue.remove(task)) task.future.completeExceptionally(stopped());
+        return task.future;
+    }
+
+    /**
+     * Runs callback once, on a worker thread, after the queue next has room (right away if
+     * it has room now). It must be quick: it delays that worker's batch.
+     */
+    public void whenRoom(Runnable callback) {
+        roomWaiters.add(callback);
+        // a worker may have taken the last batch before the callback was added
+        if (queue.remainingCapacity() > 0 || !running) runRoomWaiters();
+    }
+
+    private void runRoomWaiters() {
+        Runnable r;
+        while ((r = roomWaiters.poll()) != null) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                System.err.println("ClassificationStage: room callback failed: " + e);
+            }
+        }
+    }
+
+    /** Messages waiting for a worker. */
+    public int backlog() {
+        return queue.size();
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Thread w : workers) w.interrupt();
+        Task<R> task;
+        while ((task = queue.poll()) != null) task.future.completeExceptionally(stopped());
+        runRoomWaiters();   // offer() now fails their messages instead of refusing them
+    }
+
+    private static IllegalStateException stopped() {
+        return new IllegalStateException("classification stage stopped");
+    }
+
+    private void workLoop() {
+        List<Task<R>> batch = new ArrayList<>(maxBatch);
+        List<String> messages = new ArrayList<>(maxBatch);
+        while (running) {
+            batch.clear();
+            messages.clear();
+            try {
+                Task<R> first = queue.take();
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                // window is measured from the first message, so no message waits longer than maxWait
+                long deadline = first.submittedAt + maxWaitNanos;
+                while (batch.size() < maxBatch) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    Task<R> next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+            } catch (InterruptedException e) {
+                for (Task<R> t : batch) t.future.completeExceptionally(e);
+                return;
+            }
+
+            if (!roomWaiters.isEmpty()) runRoomWaiters();
+            for (Task<R> t : batch) messages.add(t.message);
+            batchSizes.record(batch.size());
+            try {
+                List<R> results = classifier.classify(messages);
+                if (results == null || results.size() != batch.size()) {
+                    throw new IllegalStateException("classifier returned " + (results == null ? 0 : results.size())
+                            + " results for " + batch.size() + " messages");
+                }
+                for (int i = 0; i < batch.size(); i++) batch.get(i).future.complete(results.get(i));
+            } catch (Throwable e) {
+                // an Error too (InternalError from a damaged mapping, StackOverflowError): the callers
+                // chain their next delivery on these futures, so they must complete either way
+                for (Task<R> t : batch) t.future.completeExceptionally(e);
+            }
+            long now = System.nanoTime();
+            for (Task<R> t : batch) latencyMicros.record((now - t.submittedAt) / 1000);
+        }
+    }
+
+    // ----------------- Metrics -----------------
+
+    /** Size of every batch handed to the classifier. */
+    public Histogram batchSizes() {
+        return batchSizes;
+    }
+
+    /** Submit-to-result latency of every message, in microseconds. */
+    public Histogram latencyMicros() {
+        return latencyMicros;
+    }
+
+    public long batchCount() {
+        return batchSizes.count();
+    }
+
+    /** Batch size at percentile p (0..100) over all batches so far. */
+    public int batchSizePercentile(double p) {
+        return (int) batchSizes.valueAt(p);
+    }
+
+    public double meanBatchSize() {
+        return batchSizes.mean();
+    }
+
+    /** Submit-to-result latency at percentile p, in microseconds (within 1/128). */
+    public long latencyPercentileMicros(double p) {
+        return latencyMicros.valueAt(p);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ClassificationStage[batches=%d, meanBatch=%.2f, p50Batch=%d, p99Batch=%d, maxBatch=%d,"
+                        + " p50<=%dus, p99<=%dus]",
+                batchCount(), meanBatchSize(), batchSizePercentile(50), batchSizePercentile(99), maxBatch,
+                latencyPercentileMicros(50), latencyPercentileMicros(99));
+    }
+
+    private static final class Task<R> {
+        final String message;
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        final long submittedAt = System.nanoTime();
+
+        Task(String message) {
+            this.message = message;
+        }
+    }
+}
@@ -1,31 +1,43 @@
 package SpamDetector;
 import javax.swing.*;
-import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.concurrent.TimeUnit;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Robust Client with Spam Filter (Outgoing only).
  * - Implements a toggle button for the spam filter.
  * - Uses the SpamFilter bridge to classify outgoing messages before sending.
  * - Blocks messages identified as high-confidence spam locally.
+ * - Speaks ChatProtocol v2 (typed records with ids, server timestamps and the server's
+ *   verdict) with a server that opens with OFFER: the client answers HELLO and switches at
+ *   once. Until then, and with a server that never offers (v1 only), messages go out as
+ *   writeUTF strings without waiting, and HELLO never reaches a server that would show it
+ *   as chat. --v1 never asks.
  */
 public class Client {
 
     // ========== CONFIG (Matching Server's Python bridge configuration) ==========
     private static final String PYTHON_CMD = "python";
     private static final String PREDICT_SCRIPT = "predict.py";
+    private static final String MODEL_PKL = "spam_nb_model.pkl";
+    private static final int VERDICT_CACHE_SIZE = 2_000;
+    private static final File VERDICT_CACHE_FILE = new File("verdict_cache_client.txt");
     private static final double SPAM_CONF_THRESHOLD = 0.80; // block if confidence >= threshold
 
     private final JFrame frame = new JFrame("Client Chat - Farwah");
-    private final JPanel messagesPanel = new JPanel();
+    private final MessageListView messages = new MessageListView(SCROLLBACK, FLOOD_POLICY, FLOOD_THRESHOLD);
     private final JScrollPane scrollPane;
     private final JTextField messageField = new JTextField();
     private final JButton sendButton = new JButton("Send");
@@ -37,17 +49,38 @@ public class Client {
 
     private final String host;
     private final int port;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
-
-    private static final int MAX_MESSAGES = 500;
-    private final DefaultCaretEnforcer caretEnforcer;
+    private final ThreadMode threadMode;   // --virtual: networking tasks on virtual threads
+    private final boolean legacyProtocol;  // --v1: never ask for ChatProtocol v2
+    private final ExecutorService executor;
+    // guards dout; ReentrantLock so a blocked write parks a virtual thread instead of pinning it
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // outgoing records; whoever holds sendLock writes all of them as one frame
+    private final ConcurrentLinkedQueue<ChatProtocol.Message> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong messageIds = new AtomicLong();
+    private final Map<Long, String> unacked = new ConcurrentHashMap<>();   // sent, no ACK yet
+    private int outProtocol;               // guarded by sendLock: V1 until the server offers v2
+
+    private static final int SCROLLBACK = 20_000;   // messages kept in the window
+    private static final MessageListView.FloodPolicy FLOOD_POLICY = MessageListView.FloodPolicy.COLLAPSE_BLOCKED;
+    private static final int FLOOD_THRESHOLD = 50;   // messages per second before FLOOD_POLICY collapses them
 
     // State
     private volatile boolean spamFilterEnabled = true; // Client's local filter state
 
     public Client(String host, int port) {
+        this(host, port, ThreadMode.PLATFORM);
+    }
+
+    public Client(String host, int port, ThreadMode threadMode) {
+        this(host, port, threadMode, false);
+    }
+
+    public Client(String host, int port, ThreadMode threadMode, boolean legacyProtocol) {
         this.host = host;
         this.port = port;
+        this.threadMode = threadMode;
+        this.legacyProtocol = legacyProtocol;
+        this.executor = threadMode.newExecutor("Client-Net");
 
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         frame.setSize(480, 780); // Adjusted size to match Server's new size
@@ -99,14 +132,8 @@ public class Client {
         closeBtn.addActionListener(e -> shutdown());
         header.add(closeBtn);
         
-        // messagesPanel setup
-        messagesPanel.setLayout(new BoxLayout(messagesPanel, BoxLayout.Y_AXIS));
-        messagesPanel.setBackground(Color.WHITE);
-        JPanel holder = new JPanel(new BorderLayout());
-        holder.setBackground(Color.WHITE);
-        holder.add(messagesPanel, BorderLayout.NORTH);
-
-        scrollPane = new JScrollPane(holder);
+        // message list
+        scrollPane = new JScrollPane(messages);
         scrollPane.setBounds(10, 90, frame.getWidth() - 30, 610); // Adjusted height
         scrollPane.setBorder(BorderFactory.createEmptyBorder());
         frame.add(scrollPane);
@@ -122,8 +149,6 @@ public class Client {
         sendButton.setBorderPainted(false);
         frame.add(sendButton);
 
-        caretEnforcer = new DefaultCaretEnforcer(scrollPane);
-
         sendButton.addActionListener(e -> sendMessage());
         messageField.addActionListener(e -> sendMessage());
 
@@ -145,7 +170,7 @@ public class Client {
         spamFilterEnabled = !spamFilterEnabled;
         toggleSpamBtn.setText("Spam Filter: " + (spamFilterEnabled ? "ON" : "OFF"));
         // FIX: Pass null for classification
-        appendMessage(formatMessagePanel("Spam filter turned " + (spamFilterEnabled ? "ON" : "OFF") + " (Local)", true, false, null));
+        appendMessage("Spam filter turned " + (spamFilterEnabled ? "ON" : "OFF") + " (Local)", true, false, null);
     }
     
     // User sends a message from Client UI
@@ -163,198 +188,163 @@ public class Client {
         
         if (isSpamAndBlock) {
             // BLOCKED: Show in UI as blocked (right, red) and do NOT send
-            appendMessage(formatMessagePanel("[BLOCKED SPAM - Outgoing] " + out, true, true, classification));
+            appendMessage("[BLOCKED SPAM - Outgoing] " + out, true, true, classification);
             messageField.setText("");
             // Notify server (so other clients see a blocked-notification)
-            executor.submit(() -> {
-                if (dout != null) {
-                    try {
-                        synchronized (dout) {
-                            // send a short notification — do NOT include blocked content
-                            dout.writeUTF("[BLOCKED SPAM - Outgoing from Client]");
-                            dout.flush();
-                        }
-                    } catch (IOException e) {
-                        appendMessage(formatMessagePanel("Notify failed: " + e.getMessage(), false, false, null));
-                    }
-                }
-            });
+            // send a short notification — do NOT include blocked content
+            send(ChatProtocol.Message.blocked(messageIds.incrementAndGet(), 0L, "Client", res.confidence));
             return;
         }
         
         // 2. Not blocked: Show locally as sent (right-side)
-        appendMessage(formatMessagePanel(out, true, false, classification));
+        appendMessage(out, true, false, classification);
 
         // 3. Send to server off-EDT
-        executor.submit(() -> {
-            if (dout != null) {
-                // ... (rest of networking code is the same)
-                try {
-                    synchronized (dout) {
-                        dout.writeUTF(out);
-                        dout.flush();
-                    }
-                } catch (IOException e) {
-                    // FIX: Pass null for classification
-                    appendMessage(formatMessagePanel("Send failed: " + e.getMessage(), false, false, null));
-                }
-            } else {
-                // FIX: Pass null for classification
-                appendMessage(formatMessagePanel("Not connected to server.", false, false, null));
-            }
-        });
+        send(ChatProtocol.Message.chat(messageIds.incrementAndGet(), out));
 
         messageField.setText("");
     }
 
-    private void appendMessage(JPanel panel) {
-        SwingUtilities.invokeLater(() -> {
-            if (messagesPanel.getComponentCount() / 2 > MAX_MESSAGES) {
-                if (messagesPanel.getComponentCount() > 0) messagesPanel.remove(0);
-                if (messagesPanel.getComponentCount() > 0) messagesPanel.remove(0);
+    private void send(ChatProtocol.Message message) {
+        pending.add(message);
+        executor.submit(this::flushPending);
+    }
+
+    // everything queued goes out as one v2 frame, so a burst costs one write
+    private void flushPending() {
+        sendLock.lock();
+        try {
+            if (pending.isEmpty()) return;   // an earlier flush already took it
+            if (dout == null) {
+                pending.clear();
+                // FIX: Pass null for classification
+                appendMessage("Not connected to server.", false, false, null);
+                return;
             }
-            messagesPanel.add(panel);
-            messagesPanel.add(Box.createVerticalStrut(8)); // Consistent with Server
-            messagesPanel.revalidate();
-            messagesPanel.repaint();
-            caretEnforcer.scrollToBottom();
-        });
+            List<ChatProtocol.Message> batch = new ArrayList<>();
+            ChatProtocol.Message m;
+            while ((m = pending.poll()) != null) batch.add(m);
+            if (outProtocol == ChatProtocol.V1) {
+                for (ChatProtocol.Message legacy : batch) dout.writeUTF(ChatProtocol.toLegacy(legacy));
+            } else {
+                for (ChatProtocol.Message sent : batch) {
+                    if (sent.type == ChatProtocol.CHAT) unacked.put(sent.id, sent.text);
+                }
+                ChatProtocol.write(dout, batch);
+            }
+            dout.flush();
+        } catch (IOException e) {
+            // FIX: Pass null for classification
+            appendMessage("Send failed: " + e.getMessage(), false, false, null);
+        } finally {
+            sendLock.unlock();
+        }
     }
 
     /**
-     * Create a message bubble panel.
+     * Add a message bubble; callable from any thread. The list applies posted messages
+     * on the EDT in frame-rate batches.
      *
      * @param text message text
      * @param sentByClient true -> right aligned (client), false -> left aligned (server)
      * @param blocked true -> render as blocked spam (red)
      * @param classification Optional result from spam classification (label|confidence)
      */
-    private JPanel formatMessagePanel(String text, boolean sentByClient, boolean blocked, String classification) {
-        // 1. Message Content
-        JLabel label = new JLabel("<html>" + escapeHtml(text).replaceAll("\n", "<br>") + "</html>");
-        label.setFont(new Font("Tahoma", Font.PLAIN, 15));
-        label.setOpaque(true);
-        label.setBorder(new EmptyBorder(10, 12, 10, 12));
-        label.setMaximumSize(new Dimension(320, Integer.MAX_VALUE));
-        
-        Color bubbleColor, textColor;
-        if (blocked) {
-            bubbleColor = new Color(220, 40, 40); // red for blocked
-            textColor = Color.WHITE;
-        } else {
-            bubbleColor = sentByClient ? new Color(37, 211, 102) : new Color(236, 229, 221);
-            textColor = Color.BLACK;
-        }
-        label.setBackground(bubbleColor);
-        label.setForeground(textColor);
-
-        // 2. Time Stamp
-        Calendar cal = Calendar.getInstance();
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
-        JLabel time = new JLabel(sdf.format(cal.getTime()));
-        time.setFont(new Font("Tahoma", Font.PLAIN, 10));
-        time.setForeground(Color.GRAY);
-
-        // 3. Optional Spam/Ham Classification Info (NEW)
-        JLabel classificationLabel = null;
-        if (classification != null) {
-            classificationLabel = new JLabel(classification);
-            classificationLabel.setFont(new Font("Tahoma", Font.ITALIC, 10));
-            classificationLabel.setForeground(blocked ? Color.LIGHT_GRAY : Color.DARK_GRAY);
-            classificationLabel.setAlignmentX(Component.RIGHT_ALIGNMENT);
-            classificationLabel.setBorder(new EmptyBorder(0, 12, 0, 12)); // Match padding
-        }
-        
-        // 4. Inner Panel (Message + Classification Stacked)
-        JPanel bubbleContent = new JPanel();
-        bubbleContent.setLayout(new BoxLayout(bubbleContent, BoxLayout.Y_AXIS));
-        bubbleContent.setBackground(bubbleColor);
-        
-        label.setAlignmentX(Component.RIGHT_ALIGNMENT);
-        
-        // Add message label
-        bubbleContent.add(label);
-        
-        // Add classification info
-        if (classificationLabel != null) {
-             bubbleContent.add(Box.createVerticalStrut(2)); 
-             bubbleContent.add(classificationLabel);
-        }
-        
-        bubbleContent.setMaximumSize(bubbleContent.getPreferredSize());
-
-
-        // 5. Outer Panel (Positioning the Bubble Left/Right)
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(Color.WHITE);
-        
-        JPanel timePanel = new JPanel(new BorderLayout());
-        timePanel.setBackground(Color.WHITE);
-        
-        if (sentByClient) {
-            panel.add(bubbleContent, BorderLayout.LINE_END);
-            timePanel.add(time, BorderLayout.LINE_END);
-        } else {
-            // Note: Clients don't run spam filters on incoming server messages, 
-            // but we use the general bubble color
-            panel.add(bubbleContent, BorderLayout.LINE_START);
-            timePanel.add(time, BorderLayout.LINE_START);
-        }
-        
-        // 6. Overall Vertical Stack (Message Row + Time Row)
-        JPanel outerStack = new JPanel();
-        outerStack.setLayout(new BoxLayout(outerStack, BoxLayout.Y_AXIS));
-        outerStack.setBackground(Color.WHITE);
-        outerStack.add(panel);
-        outerStack.add(timePanel);
-        
-        return outerStack;
+    private void appendMessage(String text, boolean sentByClient, boolean blocked, String classification) {
+        messages.post(text, sentByClient, blocked, classification);
     }
 
-    // Keep the two-parameter convenience method (formatMessagePanel(String, boolean))
-    // FIX: This now acts as a convenience wrapper calling the new four-parameter version
-    private JPanel formatMessagePanel(String text, boolean sentByClient) {
-        return formatMessagePanel(text, sentByClient, false, null);
-    }
-    
     // ----------------- Networking / Connection -----------------
     
     private void connect() {
         executor.submit(() -> {
             try {
                 socket = new Socket(host, port);
-                din = new DataInputStream(socket.getInputStream());
-                dout = new DataOutputStream(socket.getOutputStream());
+                din = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                sendLock.lock();
+                try {
+                    dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    outProtocol = ChatProtocol.V1;   // until the server offers v2
+                } finally {
+                    sendLock.unlock();
+                }
 
                 // FIX: Pass null for classification
-                appendMessage(formatMessagePanel("Connected to server: " + host + ":" + port, false, false, null));
+                appendMessage("Connected to server: " + host + ":" + port, false, false, null);
 
-                // Persistent read loop: continuously read messages from server
+                // Persistent read loop: continuously read messages from server.
+                // The server answers v1 strings until HELLO_OK, v2 frames after it.
+                boolean v2 = false, first = true;
                 while (!socket.isClosed()) {
-                    String msg;
+                    List<ChatProtocol.Message> batch;
                     try {
-                        msg = din.readUTF(); // This thread blocks here waiting for data
+                        if (v2) {
+                            batch = ChatProtocol.read(din); // This thread blocks here waiting for data
+                        } else {
+                            String msg = din.readUTF();
+                            if (first && ChatProtocol.OFFER.equals(msg)) {
+                                first = false;
+                                if (!legacyProtocol) acceptOffer(socket);
+                                continue;
+                            }
+                            first = false;
+                            if (!legacyProtocol && ChatProtocol.HELLO_OK.equals(msg)) {
+                                v2 = true;
+                                continue;
+                            }
+                            batch = Collections.singletonList(ChatProtocol.fromLegacy(msg));
+                        }
                     } catch (EOFException | SocketException ex) {
                         break; // Server closed or network error
                     }
-                    if (msg == null) break;
-
-                    // Show received message on client UI
-                    // If server sent a blocked-outgoing notification, render it red (blocked)
-                    boolean blockedNotification = (msg != null && msg.startsWith("[BLOCKED SPAM - Outgoing"));
-                    appendMessage(formatMessagePanel(msg, false, blockedNotification, null));
+                    for (ChatProtocol.Message msg : batch) receive(msg);
                 }
             } catch (IOException e) {
                 // FIX: Pass null for classification
-                appendMessage(formatMessagePanel("Connection failed: " + e.getMessage(), false, false, null));
+                appendMessage("Connection failed: " + e.getMessage(), false, false, null);
             } finally {
                 // FIX: Pass null for classification
-                appendMessage(formatMessagePanel("Disconnected from server", false, false, null));
+                appendMessage("Disconnected from server", false, false, null);
                 closeResources();
             }
         });
     }
 
+    // Show one record from the server; the verdict comes with it, nothing is re-classified
+    private void receive(ChatProtocol.Message msg) {
+        switch (msg.type) {
+            case ChatProtocol.CHAT:
+                appendMessage(msg.text, false, false, msg.classification());
+                break;
+            case ChatProtocol.VERDICT:
+                // a blocked-outgoing notification, rendered red (blocked)
+                appendMessage(ChatProtocol.toLegacy(msg), false, true, null);
+                break;
+            case ChatProtocol.ACK:
+                String text = unacked.remove(msg.id);
+                if (msg.isBlocked() && text != null) {
+                    appendMessage("[BLOCKED SPAM - by Server] " + text, true, true, msg.classification());
+                }
+                break;
+            default:
+                appendMessage(msg.text, false, false, null);
+        }
+    }
+
+    // the server offered v2: say HELLO; the server reads everything after it as v2 frames
+    private void acceptOffer(Socket offered) throws IOException {
+        sendLock.lock();
+        try {
+            if (offered != socket || outProtocol != ChatProtocol.V1) return;
+            dout.writeUTF(ChatProtocol.HELLO);
+            dout.flush();
+            outProtocol = ChatProtocol.V2;
+        } finally {
+            sendLock.unlock();
+        }
+        if (!pending.isEmpty()) executor.submit(this::flushPending);
+    }
+
     private void closeResources() {
         try { if (din != null) din.close(); } catch (IOException ignored) {}
         try { if (dout != null) dout.close(); } catch (IOException ignored) {}
@@ -382,54 +372,94 @@ public class Client {
 
         public static Result classifyIfEnabled(String message, boolean enabled) {
             if (!enabled) return null;
-            return classify(message);
+            // repeated messages (greetings, spam blasts) are answered from the verdict cache
+            VerdictCache<Result> cache = Verdicts.CACHE;
+            long id = currentModelId();
+            cache.setModelId(id);
+            String key = TextNormalizer.normalize(message);
+            Result res = cache.get(key);
+            if (res != null) return res;
+            res = classify(message);
+            // not if the model changed meanwhile: the verdict would be served under the new id
+            if (!"error".equals(res.label) && id != 0 && currentModelId() == id) cache.put(key, res, id);
+            return res;
         }
 
-        private static Result classify(String message) {
-            try {
-                ProcessBuilder pb = new ProcessBuilder(PYTHON_CMD, PREDICT_SCRIPT, message);
-                pb.redirectErrorStream(true);
-                Process p = pb.start();
-
-                BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = r.readLine();
-                try { if (!p.waitFor(3, TimeUnit.SECONDS)) { p.destroyForcibly(); } } catch (InterruptedException ignored) {}
-
-                if (line != null) {
-                    String[] parts = line.trim().split("\\|");
-                    if (parts.length >= 2) {
-                        String label = parts[0].trim();
-                        double conf = 0.0;
-                        try { conf = Double.parseDouble(parts[1]); } catch (NumberFormatException ignore) {}
-                        return new Result(label, conf);
-                    } else {
-                        return new Result(line.trim(), 1.0);
+        // created on first use; reloads the saved entries and saves them again on exit
+        private static final class Verdicts {
+            static final VerdictCache<Result> CACHE = new VerdictCache<>(VERDICT_CACHE_SIZE);
+
+            static {
+                if (VERDICT_CACHE_FILE != null) {
+                    CACHE.setModelId(currentModelId());
+                    try {
+                        CACHE.load(VERDICT_CACHE_FILE, SpamFilter::parseResult);
+                    } catch (IOException e) {
+                        System.err.println("Cannot load verdict cache: " + e.getMessage());
                     }
                 }
-            } catch (IOException e) {
-                System.err.println("Client SpamFilter error: " + e.getMessage());
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    System.err.println(CACHE);
+                    if (VERDICT_CACHE_FILE == null) return;
+                    try {
+                        CACHE.save(VERDICT_CACHE_FILE, r -> r.label + "|" + r.confidence);
+                    } catch (IOException e) {
+                        System.err.println("Cannot save verdict cache: " + e.getMessage());
+                    }
+                }, "VerdictCache-Save"));
             }
-            return new Result("error", 0.0);
         }
-    }
-    
-    // ----------------- Utilities (Copied from Server) -----------------
 
-    private static String escapeHtml(String s) {
-        if (s == null) return "";
-        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
-    }
+        // verdicts are only valid for the model that produced them
+        private static long currentModelId() {
+            NaiveBayesModel model = NaiveBayesModel.shared();
+            if (model != null) return model.modelId();
+            return PythonWorkers.POOL.modelStamp();   // 0 while the worker restarts onto a new pickle
+        }
+
+        // per-thread predict_proba buffer for the native engine
+        private static final ThreadLocal<double[]> PROBA = ThreadLocal.withInitial(() -> new double[2]);
 
-    private static class DefaultCaretEnforcer {
-        private final JScrollPane scrollPane;
-        DefaultCaretEnforcer(JScrollPane sp) { this.scrollPane = sp; }
-        void scrollToBottom() {
-            SwingUtilities.invokeLater(() -> {
-                JScrollBar bar = scrollPane.getVerticalScrollBar();
-                bar.setValue(bar.getMaximum());
-            });
+        private static Result classify(String message) {
+            // prefer the in-JVM model when the exported tables are present
+            NaiveBayesModel model = NaiveBayesModel.shared();
+            if (model != null) return classifyNative(model, message);
+            return classifyPython(message);
+        }
+
+        private static Result classifyNative(NaiveBayesModel model, String message) {
+            double[] proba = PROBA.get();
+            if (proba.length < model.classCount()) {
+                proba = new double[model.classCount()];
+                PROBA.set(proba);
+            }
+            int c = model.predict(message, proba);
+            return new Result(model.label(c), proba[c]);
+        }
+
+        // one persistent predict.py worker is plenty for a single user
+        private static final class PythonWorkers {
+            static final PythonWorkerPool POOL = new PythonWorkerPool(PYTHON_CMD, PREDICT_SCRIPT, new File(MODEL_PKL), 1);
+        }
+
+        private static Result classifyPython(String message) {
+            String line = PythonWorkers.POOL.classify(message);
+            return line != null ? parseResult(line) : new Result("error", 0.0);
+        }
+
+        private static Result parseResult(String line) {
+            String[] parts = line.trim().split("\\|");
+            if (parts.length >= 2) {
+                String label = parts[0].trim();
+                double conf = 0.0;
+                try { conf = Double.parseDouble(parts[1]); } catch (NumberFormatException ignore) {}
+                return new Result(label, conf);
+            }
+            return new Result(line.trim(), 1.0);
         }
     }
+    
+    // ----------------- Utilities (Copied from Server) -----------------
 
     private JLabel loadIconLabel(String resourceName, int w, int h) {
         try {
@@ -454,6 +484,9 @@ public class Client {
     }
 
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new Client("127.0.0.1", 6001));
+        // java SpamDetector.Client [--virtual] [--v1]
+        ThreadMode mode = ThreadMode.fromArgs(args);
+        boolean v1 = Arrays.asList(args).contains("--v1");
+        SwingUtilities.invokeLater(() -> new Client("127.0.0.1", 6001, mode, v1));
     }
 }
\ No newline at end of file
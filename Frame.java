@@ -0,0 +1,102 @@
+package SpamDetector;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * One encoded wire frame, shared read-only by every recipient.
+ *
+ * Broadcasting encodes the message once (DataOutputStream.writeUTF framing: u2 length +
+ * modified UTF-8) and each recipient's queue holds view(), a duplicate with its own
+ * position over the same bytes. Fan-out to N clients is one encoding and N small
+ * ByteBuffer views instead of N writeUTF calls.
+ */
+public final class Frame {
+
+    // ========== CONFIG ==========
+    private static final boolean DIRECT = false;   // heap is cheaper for short chat frames
+
+    private final ByteBuffer bytes;
+
+    private Frame(ByteBuffer bytes) {
+        this.bytes = bytes.asReadOnlyBuffer();
+    }
+
+    /** Encodes like writeUTF; fails the same way for strings over 65535 encoded bytes. */
+    public static Frame utf(String message) throws UTFDataFormatException {
+        byte[] encoded = encode(message);
+        ByteBuffer buf = DIRECT ? ByteBuffer.allocateDirect(encoded.length) : ByteBuffer.wrap(encoded);
+        if (DIRECT) buf.put(encoded).flip();
+        return new Frame(buf);
+    }
+
+    /** Wraps bytes that are already a complete frame (not copied). */
+    public static Frame wrap(ByteBuffer frame) {
+        return new Frame(frame);
+    }
+
+    /** Independent read-only view for one recipient. */
+    public ByteBuffer view() {
+        return bytes.duplicate();
+    }
+
+    public int length() {
+        return bytes.remaining();
+    }
+
+    // ----------------- Modified UTF-8 (DataInput/DataOutput) -----------------
+
+    /** Same bytes as DataOutputStream.writeUTF: u2 length, then modified UTF-8. */
+    static byte[] encode(String s) throws UTFDataFormatException {
+        int utflen = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            utflen += (c >= 0x0001 && c <= 0x007f) ? 1 : c <= 0x07ff ? 2 : 3;
+        }
+        if (utflen > 0xffff) throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+        byte[] out = new byte[utflen + 2];
+        out[0] = (byte) (utflen >>> 8);
+        out[1] = (byte) utflen;
+        int p = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                out[p++] = (byte) c;
+            } else if (c <= 0x07ff) {
+                out[p++] = (byte) (0xc0 | (c >> 6));
+                out[p++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                out[p++] = (byte) (0xe0 | (c >> 12));
+                out[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[p++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return out;
+    }
+
+    /** Same result as DataInputStream.readUTF for len bytes at the buffer position. */
+    static String decode(ByteBuffer buf, int len) throws UTFDataFormatException {
+        char[] chars = new char[len];
+        int n = 0;
+        int end = buf.position() + len;
+        while (buf.position() < end) {
+            int a = buf.get() & 0xff;
+            if (a < 0x80) {
+                chars[n++] = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                if (buf.position() + 1 > end) throw new UTFDataFormatException("partial character at end");
+                int b = buf.get() & 0xff;
+                if ((b & 0xc0) != 0x80) throw new UTFDataFormatException("malformed input");
+                chars[n++] = (char) (((a & 0x1f) << 6) | (b & 0x3f));
+            } else if ((a & 0xf0) == 0xe0) {
+                if (buf.position() + 2 > end) throw new UTFDataFormatException("partial character at end");
+                int b = buf.get() & 0xff, c = buf.get() & 0xff;
+                if ((b & 0xc0) != 0x80 || (c & 0xc0) != 0x80) throw new UTFDataFormatException("malformed input");
+                chars[n++] = (char) (((a & 0x0f) << 12) | ((b & 0x3f) << 6) | (c & 0x3f));
+            } else {
+                throw new UTFDataFormatException("malformed input");
+            }
+        }
+        return new String(chars, 0, n);
+    }
+}
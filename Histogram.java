@@ -0,0 +1,161 @@
+package SpamDetector;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with HdrHistogram's log-linear bucketing.
+ *
+ * - Values below 2^SUB_BITS get a bucket each; above that every power of two is split
+ *   into 2^(SUB_BITS-1) equal buckets, so any recorded value is off by at most 1/128.
+ * - record() is one array increment plus a CAS on max, from any number of threads;
+ *   percentiles are read from a snapshot while recording goes on.
+ * - Values are plain longs in whatever unit the caller picks (LoadGenerator uses
+ *   microseconds); negative values count as 0.
+ * - writePercentiles() prints the .hgrm text format, so the output can be pasted into
+ *   HdrHistogram's plotter next to other tools' results.
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 8;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF + HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) m = max.get();
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /** Sum of all recorded values (after clamping negatives to 0). */
+    public long sum() {
+        return sum.get();
+    }
+
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0.0 : sum.get() / (double) n;
+    }
+
+    /** Adds another histogram's counts to this one. */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        long o = other.max.get(), m = max.get();
+        while (o > m && !max.compareAndSet(m, o)) m = max.get();
+    }
+
+    /** A copy of everything recorded since the last call, which starts a new interval. */
+    public Histogram copyAndReset() {
+        Histogram copy = new Histogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.getAndSet(i, 0);
+            if (c != 0) copy.counts.set(i, c);
+        }
+        copy.total.set(total.getAndSet(0));
+        copy.sum.set(sum.getAndSet(0));
+        copy.max.set(max.getAndSet(0));
+        return copy;
+    }
+
+    /**
+     * The smallest recorded value (rounded up to its bucket's upper end, capped at max) that
+     * at least percentile % of the values are at or below. 0 when nothing was recorded.
+     */
+    public long valueAt(double percentile) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    /** "n=.. mean=.. p50=.. p90=.. p99=.. p99.9=.. max=.." in the recorded unit. */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.0f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                count(), mean(), valueAt(50), valueAt(90), valueAt(99), valueAt(99.9), max());
+    }
+
+    /**
+     * HdrHistogram's percentile distribution (.hgrm): the value at percentiles that close in
+     * on 100% by halving, 5 ticks per half. Values are divided by scale (1000 turns
+     * microseconds into milliseconds).
+     */
+    public void writePercentiles(PrintStream out, double scale) {
+        out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        long n = total.get();
+        if (n == 0) return;
+        double p = 0.0;
+        for (int half = 1; ; half++) {
+            double step = 100.0 / (1L << half) / 5;
+            for (int tick = 0; tick < 5; tick++, p += step) {
+                line(out, p, scale);
+                if (countAtOrBelow(valueAt(p)) >= n) {
+                    line(out, 100.0, scale);
+                    out.printf("#[Mean    = %12.3f, Max            = %12.3f]%n", mean() / scale, max() / scale);
+                    out.printf("#[Total count    = %12d]%n", n);
+                    out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", 64 - SUB_BITS + 1, HALF * 2);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void line(PrintStream out, double percentile, double scale) {
+        long v = valueAt(percentile);
+        String inverse = percentile >= 100.0 ? "" : String.format("%14.2f", 1.0 / (1.0 - percentile / 100.0));
+        out.printf("%12.3f %2.12f %10d %s%n", v / scale, percentile / 100.0, countAtOrBelow(v), inverse);
+    }
+
+    /** Values recorded at or below value, counting its whole bucket (so up to 1/128 above it). */
+    public long countAtOrBelow(long value) {
+        if (value < 0) return 0;
+        long seen = 0;
+        int last = index(value);
+        for (int i = 0; i <= last; i++) seen += counts.get(i);
+        return seen;
+    }
+
+    // ----------------- Buckets -----------------
+
+    // values < 2^SUB_BITS map to themselves; above that, shift the value down to SUB_BITS
+    // significant bits and put each shift amount in its own run of HALF buckets
+    static int index(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return (shift << (SUB_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    // the largest value that lands in bucket i
+    static long highest(int i) {
+        if (i < 2 * HALF) return i;
+        int shift = (i >>> (SUB_BITS - 1)) - 1;
+        long low = (long) (i - (shift << (SUB_BITS - 1))) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,574 @@
+package SpamDetector;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator and soak test for the chat server, speaking the same wire
+ * protocol as Client.
+ *
+ * - Opens N simulated clients against a running server, or against a ChatServerEngine
+ *   started in this JVM with --embedded (--nio / --virtual pick its networking).
+ * - Replays ham and spam from spam.csv at a fixed total rate, open loop: every message has
+ *   an intended send time and latency is measured from it, so a stalled server shows up as
+ *   latency instead of as a slower sender.
+ * - Each message ends in " #<intended nanoTime>". The tokenizer drops punctuation and
+ *   digits, so the tag changes neither the verdict nor the verdict cache key.
+ * - Measures end-to-end latency (send to delivery at every other client), ACK latency and
+ *   blocked ham / spam (v2 ACKs), dropped deliveries, and server resource use every report
+ *   interval: RSS, threads and CPU from /proc (--pid, or this JVM when embedded), plus
+ *   connected clients and busy client-pool threads when embedded.
+ * - After each scenario every client disconnects and the server has to get back to where it
+ *   started: a client left in outputs or a busy client-pool thread (embedded), or more threads
+ *   than before (--pid; idle pool threads get SETTLE_MILLIS to expire) is reported as a LEAK
+ *   and the exit status is 2.
+ *
+ * A scenario is name[:key=value,...] with keys clients, rate (messages/s in total), spam
+ * (fraction, -1 = the corpus mix), seconds, warmup (seconds, not measured), churn
+ * (reconnects/s) and protocol (v1 | v2). Unknown names start from "steady".
+ *
+ *   java SpamDetector.LoadGenerator --embedded steady spam-flood
+ *   java SpamDetector.LoadGenerator --host 10.0.0.5 --pid 4242 soak:seconds=3600 --out reports
+ */
+public class LoadGenerator {
+
+    // ========== CONFIG ==========
+    private static final String CORPUS = "spam.csv";
+    private static final int REPORT_SECONDS = 5;
+    private static final long DRAIN_MILLIS = 5000;       // max wait for deliveries after the last send
+    private static final long QUIET_MILLIS = 500;        // ... or until nothing arrived for this long
+    private static final long SETTLE_MILLIS = 75_000;    // > the cached client pool's 60 s keep-alive
+    private static final int THREAD_SLACK = 4;           // extra server threads tolerated after a scenario
+    private static final String TAG = " #";
+    private static final long NO_TAG = Long.MIN_VALUE;
+
+    private static final Map<String, String> PRESETS = new LinkedHashMap<>();
+    static {
+        PRESETS.put("steady", "clients=20,rate=200,spam=-1,seconds=30,warmup=5");
+        PRESETS.put("spam-flood", "clients=20,rate=1000,spam=0.9,seconds=30,warmup=5");
+        PRESETS.put("fan-out", "clients=200,rate=50,spam=-1,seconds=30,warmup=5");
+        PRESETS.put("soak", "clients=50,rate=100,spam=-1,seconds=600,warmup=5,churn=2");
+    }
+
+    private final String host;
+    private final int port;
+    private final ThreadMode threadMode;
+    private final ServerProbe probe;
+    private final File outDir;
+    private final List<String> ham = new ArrayList<>();
+    private final List<String> spam = new ArrayList<>();
+
+    LoadGenerator(String host, int port, ThreadMode threadMode, ServerProbe probe, File outDir, String corpus)
+            throws IOException {
+        this.host = host;
+        this.port = port;
+        this.threadMode = threadMode;
+        this.probe = probe;
+        this.outDir = outDir;
+        for (String[] row : TextNormalizer.readRows(corpus)) ("spam".equals(row[0]) ? spam : ham).add(row[1]);
+        if (ham.isEmpty() || spam.isEmpty()) throw new IOException(corpus + " needs both ham and spam rows");
+    }
+
+    // ----------------- Scenarios -----------------
+
+    static final class Scenario {
+        final String name;
+        int clients;
+        double rate;
+        double spam;
+        int seconds;
+        int warmup;
+        double churn;
+        int protocol = ChatProtocol.V2;
+
+        private Scenario(String name) {
+            this.name = name;
+        }
+
+        static Scenario parse(String spec) {
+            int colon = spec.indexOf(':');
+            String name = colon < 0 ? spec : spec.substring(0, colon);
+            Scenario s = new Scenario(name);
+            s.apply(PRESETS.getOrDefault(name, PRESETS.get("steady")));
+            if (colon >= 0) s.apply(spec.substring(colon + 1));
+            if (s.clients < 2) throw new IllegalArgumentException(name + ": need at least 2 clients");
+            if (s.rate <= 0 || s.seconds <= 0) throw new IllegalArgumentException(name + ": rate and seconds must be > 0");
+            return s;
+        }
+
+        private void apply(String settings) {
+            for (String kv : settings.split(",")) {
+                if (kv.isEmpty()) continue;
+                int eq = kv.indexOf('=');
+                if (eq < 0) throw new IllegalArgumentException("expected key=value: " + kv);
+                String v = kv.substring(eq + 1);
+                switch (kv.substring(0, eq)) {
+                    case "clients":  clients = Integer.parseInt(v); break;
+                    case "rate":     rate = Double.parseDouble(v); break;
+                    case "spam":     spam = Double.parseDouble(v); break;
+                    case "seconds":  seconds = Integer.parseInt(v); break;
+                    case "warmup":   warmup = Integer.parseInt(v); break;
+                    case "churn":    churn = Double.parseDouble(v); break;
+                    case "protocol": protocol = "v1".equals(v) ? ChatProtocol.V1 : ChatProtocol.V2; break;
+                    default: throw new IllegalArgumentException("unknown scenario key: " + kv);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d clients, %.0f msg/s, %s, %d s (+%d s warmup)%s, v%d", name, clients, rate,
+                    spam < 0 ? "corpus spam mix" : String.format("%.0f%% spam", spam * 100), seconds, warmup,
+                    churn > 0 ? String.format(", %.1f reconnects/s", churn) : "", protocol);
+        }
+    }
+
+    /** Runs one scenario and prints its report; returns false when the leak check failed. */
+    boolean run(Scenario scenario) throws IOException, InterruptedException {
+        System.out.println("== " + scenario + " ==");
+        ServerProbe.Sample baseline = probe.sample();
+        Run run = new Run(scenario);
+        try {
+            run.connectAll();
+            run.drive();
+        } finally {
+            run.closeAll();
+        }
+        run.report();
+        return run.leakCheck(baseline);
+    }
+
+    // ----------------- One scenario run -----------------
+
+    private final class Run {
+        final Scenario scenario;
+        final AtomicReferenceArray<SimClient> slots;
+        final double spamShare;
+        volatile long measureFrom = Long.MAX_VALUE;   // intended send times before this are warmup
+
+        final Histogram latency = new Histogram();     // micros, send -> delivery at another client
+        final Histogram interval = new Histogram();    // the same, since the last progress line
+        final Histogram ackLatency = new Histogram();  // micros, send -> ACK (v2)
+        final LongAdder sentHam = new LongAdder(), sentSpam = new LongAdder();
+        final LongAdder sendErrors = new LongAdder(), skipped = new LongAdder();
+        final LongAdder acked = new LongAdder(), blockedHam = new LongAdder(), blockedSpam = new LongAdder();
+        final LongAdder delivered = new LongAdder(), untagged = new LongAdder();
+        final LongAdder disconnects = new LongAdder(), reconnects = new LongAdder();
+        long rssPeakKb = -1, threadsPeak = -1, clientsPeak = -1;
+        double cpuPercent = -1;
+
+        Run(Scenario scenario) {
+            this.scenario = scenario;
+            this.slots = new AtomicReferenceArray<>(scenario.clients);
+            this.spamShare = scenario.spam >= 0 ? scenario.spam : spam.size() / (double) (spam.size() + ham.size());
+        }
+
+        void connectAll() throws IOException {
+            for (int i = 0; i < scenario.clients; i++) slots.set(i, new SimClient(this, i));
+        }
+
+        void closeAll() {
+            for (int i = 0; i < slots.length(); i++) {
+                SimClient c = slots.getAndSet(i, null);
+                if (c != null) c.close();
+            }
+        }
+
+        /** Sends for warmup + seconds, printing a progress line every REPORT_SECONDS, then drains. */
+        void drive() throws InterruptedException {
+            long start = System.nanoTime() + 100_000_000L;
+            measureFrom = start + scenario.warmup * 1_000_000_000L;
+            long end = measureFrom + scenario.seconds * 1_000_000_000L;
+            Thread sender = new Thread(() -> send(start, end), "LoadGenerator-Sender");
+            sender.setDaemon(true);
+            sender.start();
+            Thread churner = null;
+            if (scenario.churn > 0) {
+                churner = new Thread(() -> churn(end), "LoadGenerator-Churn");
+                churner.setDaemon(true);
+                churner.start();
+            }
+
+            ServerProbe.Sample first = null, last = null;
+            long lastSent = 0, lastNanos = System.nanoTime();
+            while (sender.isAlive()) {
+                sender.join(REPORT_SECONDS * 1000L);
+                ServerProbe.Sample s = probe.sample();
+                if (System.nanoTime() >= measureFrom) {
+                    if (first == null) first = s;
+                    last = s;
+                }
+                track(s);
+                long sent = sentHam.sum() + sentSpam.sum();
+                System.out.printf("  t=%4.0fs  sent %7d (%5.0f/s)  delivered %9d  e2e ms %s  | %s%n",
+                        (s.nanos - start) / 1e9, sent, (sent - lastSent) * 1e9 / (s.nanos - lastNanos),
+                        delivered.sum(), millis(interval.copyAndReset()), s);
+                lastSent = sent;
+                lastNanos = s.nanos;
+            }
+            if (churner != null) churner.join();
+            if (first != null && last != null && first.cpuNanos >= 0 && last.nanos > first.nanos) {
+                cpuPercent = 100.0 * (last.cpuNanos - first.cpuNanos) / (last.nanos - first.nanos);
+            }
+
+            // let the tail of the run arrive: stop at DRAIN_MILLIS or once nothing arrived for QUIET_MILLIS
+            long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+            long seen = -1;
+            while (System.currentTimeMillis() < deadline) {
+                long now = delivered.sum() + acked.sum();
+                if (now == seen) break;
+                seen = now;
+                Thread.sleep(QUIET_MILLIS);
+            }
+        }
+
+        // open loop: message i is due at start + i / rate, whenever the previous one went out
+        private void send(long start, long end) {
+            SplittableRandom random = new SplittableRandom(scenario.name.hashCode());
+            for (long i = 0; ; i++) {
+                long intended = start + (long) (i * 1e9 / scenario.rate);
+                if (intended >= end) return;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+
+                SimClient c = slots.get((int) (i % scenario.clients));
+                if (c == null) {   // reconnecting
+                    skipped.increment();
+                    continue;
+                }
+                boolean isSpam = random.nextDouble() < spamShare;
+                List<String> pool = isSpam ? spam : ham;
+                // the low bit of the id says which list the message came from; the ACK echoes it
+                long id = isSpam ? intended | 1 : intended & ~1L;
+                try {
+                    c.send(id, pool.get(random.nextInt(pool.size())) + TAG + id);
+                    (isSpam ? sentSpam : sentHam).increment();
+                } catch (IOException e) {
+                    sendErrors.increment();
+                }
+            }
+        }
+
+        // closes a random client and connects a new one in its slot, churn times a second
+        private void churn(long end) {
+            SplittableRandom random = new SplittableRandom(~scenario.name.hashCode());
+            long pause = (long) (1e9 / scenario.churn);
+            for (long next = System.nanoTime() + pause; next < end; next += pause) {
+                LockSupport.parkNanos(next - System.nanoTime());
+                int slot = random.nextInt(scenario.clients);
+                SimClient old = slots.getAndSet(slot, null);
+                if (old != null) old.close();
+                try {
+                    slots.set(slot, new SimClient(this, slot));
+                    reconnects.increment();
+                } catch (IOException e) {
+                    System.err.println("LoadGenerator: reconnect failed: " + e.getMessage());
+                }
+            }
+        }
+
+        void received(ChatProtocol.Message m) {
+            long now = System.nanoTime();
+            if (m.type == ChatProtocol.ACK) {
+                acked.increment();
+                if (m.isBlocked()) ((m.id & 1) != 0 ? blockedSpam : blockedHam).increment();
+                if (m.id - measureFrom >= 0) ackLatency.record((now - m.id) / 1000);
+            } else if (m.type == ChatProtocol.CHAT) {
+                long sent = tag(m.text);
+                if (sent == NO_TAG) {
+                    untagged.increment();   // someone else's message (e.g. the server operator)
+                    return;
+                }
+                delivered.increment();
+                if (sent - measureFrom >= 0) {
+                    long micros = (now - sent) / 1000;
+                    latency.record(micros);
+                    interval.record(micros);
+                }
+            }
+        }
+
+        private void track(ServerProbe.Sample s) {
+            rssPeakKb = Math.max(rssPeakKb, s.rssKb);
+            threadsPeak = Math.max(threadsPeak, s.threads);
+            clientsPeak = Math.max(clientsPeak, s.clients);
+        }
+
+        void report() throws IOException {
+            long sent = sentHam.sum() + sentSpam.sum();
+            int others = scenario.clients - 1;
+            System.out.printf("  sent          %d (ham %d, spam %d), send errors %d, skipped while reconnecting %d%n",
+                    sent, sentHam.sum(), sentSpam.sum(), sendErrors.sum(), skipped.sum());
+            long expected;
+            if (scenario.protocol == ChatProtocol.V2) {
+                long blocked = blockedHam.sum() + blockedSpam.sum();
+                System.out.printf("  acked         %d, unacked %d; blocked %d: spam %d of %d, ham %d of %d%n",
+                        acked.sum(), sent - acked.sum(), blocked, blockedSpam.sum(), sentSpam.sum(),
+                        blockedHam.sum(), sentHam.sum());
+                expected = (acked.sum() - blocked) * others;
+            } else {
+                System.out.println("  acked         n/a (v1 has no ACKs; blocked messages count as not delivered)");
+                expected = sent * others;
+            }
+            System.out.printf("  delivered     %d of %s expected, %s%n", delivered.sum(),
+                    scenario.churn > 0 ? "~" + expected : String.valueOf(expected),
+                    scenario.churn > 0 ? "drops not counted with churn (" + reconnects.sum() + " reconnects)"
+                            : (expected - delivered.sum()) + (scenario.protocol == ChatProtocol.V2 ? " dropped" : " blocked or dropped"));
+            if (disconnects.sum() > 0) System.out.printf("  disconnected  %d clients by the server%n", disconnects.sum());
+            System.out.printf("  e2e ms        %s%n", millis(latency));
+            if (scenario.protocol == ChatProtocol.V2) System.out.printf("  ack ms        %s%n", millis(ackLatency));
+            System.out.printf("  server        peak RSS %s, peak threads %s, peak clients %s, CPU %s (one core = 100%%)%n",
+                    rssPeakKb < 0 ? "n/a" : (rssPeakKb / 1024) + " MB", threadsPeak < 0 ? "n/a" : threadsPeak,
+                    clientsPeak < 0 ? "n/a" : clientsPeak, cpuPercent < 0 ? "n/a" : String.format("%.0f%%", cpuPercent));
+
+            if (outDir != null) {
+                Files.createDirectories(outDir.toPath());
+                try (PrintStream out = new PrintStream(new File(outDir, scenario.name + ".hgrm"), "UTF-8")) {
+                    latency.writePercentiles(out, 1000.0);
+                }
+                if (scenario.protocol == ChatProtocol.V2) {
+                    try (PrintStream out = new PrintStream(new File(outDir, scenario.name + "-ack.hgrm"), "UTF-8")) {
+                        ackLatency.writePercentiles(out, 1000.0);
+                    }
+                }
+            }
+        }
+
+        /** Waits up to SETTLE_MILLIS for the server to release every client of this run. */
+        boolean leakCheck(ServerProbe.Sample baseline) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+            ServerProbe.Sample s = probe.sample();
+            while (leaks(baseline, s) != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(250);
+                s = probe.sample();
+            }
+            String leak = leaks(baseline, s);
+            System.out.println("  leak check    " + (leak == null ? "ok" : "LEAK: " + leak) + "  (" + s + ")");
+            System.out.println();
+            return leak == null;
+        }
+
+        private String leaks(ServerProbe.Sample baseline, ServerProbe.Sample s) {
+            List<String> found = new ArrayList<>();
+            if (s.clients > 0) found.add(s.clients + " clients still in outputs");
+            if (s.busy > 0) found.add(s.busy + " client-pool threads still busy");
+            // embedded, the process also holds this generator's threads; the pool count above is exact
+            if (!probe.embedded() && baseline.threads >= 0 && s.threads > baseline.threads + THREAD_SLACK) {
+                found.add("threads " + baseline.threads + " -> " + s.threads);
+            }
+            return found.isEmpty() ? null : String.join(", ", found);
+        }
+    }
+
+    // "ms p50=.. p90=.. p99=.. p99.9=.. max=.." from a histogram in micros
+    private static String millis(Histogram h) {
+        if (h.count() == 0) return "(none)";
+        return String.format("p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f", h.valueAt(50) / 1000.0,
+                h.valueAt(90) / 1000.0, h.valueAt(99) / 1000.0, h.valueAt(99.9) / 1000.0, h.max() / 1000.0);
+    }
+
+    // the intended send time from a message's trailing tag, or NO_TAG
+    static long tag(String text) {
+        int at = text.lastIndexOf(TAG);
+        if (at < 0) return NO_TAG;
+        try {
+            return Long.parseLong(text.substring(at + TAG.length()));
+        } catch (NumberFormatException e) {
+            return NO_TAG;
+        }
+    }
+
+    // ----------------- Simulated client -----------------
+
+    /** One connection. Only the sender thread writes; the reader runs on its own thread. */
+    private final class SimClient implements Closeable {
+        private final Run run;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final int protocol;
+        private volatile boolean closing;
+
+        SimClient(Run run, int slot) throws IOException {
+            this.run = run;
+            this.protocol = run.scenario.protocol;
+            this.socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            this.out = new DataOutputStream(socket.getOutputStream());
+            // meant for this server, which offers v2: no need to wait for OFFER before HELLO;
+            // the server switches as soon as it reads HELLO, so frames may follow right away
+            if (protocol == ChatProtocol.V2) out.writeUTF(ChatProtocol.HELLO);
+            threadMode.start("LoadGenerator-Client-" + slot, this::read);
+        }
+
+        void send(long id, String text) throws IOException {
+            if (protocol == ChatProtocol.V2) {
+                ChatProtocol.write(out, Collections.singletonList(ChatProtocol.Message.chat(id, text)));
+            } else {
+                out.writeUTF(text);
+            }
+            out.flush();
+        }
+
+        // v1 strings until HELLO_OK, then v2 frames (v1 clients never switch)
+        private void read() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                boolean v2 = false;
+                while (true) {
+                    if (v2) {
+                        for (ChatProtocol.Message m : ChatProtocol.read(in)) run.received(m);
+                    } else {
+                        String s = in.readUTF();
+                        if (ChatProtocol.OFFER.equals(s)) continue;
+                        if (protocol == ChatProtocol.V2 && ChatProtocol.HELLO_OK.equals(s)) {
+                            v2 = true;
+                            continue;
+                        }
+                        run.received(ChatProtocol.fromLegacy(s));
+                    }
+                }
+            } catch (IOException e) {
+                if (!closing) run.disconnects.increment();
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // ----------------- Server resource use -----------------
+
+    /**
+     * Samples the server process from /proc/<pid> (Linux; -1 elsewhere or without a pid)
+     * and, when the engine runs in this JVM, its client count and busy client-pool threads.
+     */
+    static final class ServerProbe {
+        private final long pid;
+        private final ChatServerEngine engine;
+
+        ServerProbe(long pid, ChatServerEngine engine) {
+            this.pid = pid;
+            this.engine = engine;
+        }
+
+        boolean embedded() {
+            return engine != null;
+        }
+
+        static final class Sample {
+            final long nanos = System.nanoTime();
+            long rssKb = -1, threads = -1, cpuNanos = -1, clients = -1, busy = -1;
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder("server");
+                if (rssKb >= 0) sb.append(" rss=").append(rssKb / 1024).append("MB");
+                if (threads >= 0) sb.append(" threads=").append(threads);
+                if (clients >= 0) sb.append(" clients=").append(clients);
+                if (busy >= 0) sb.append(" busy=").append(busy);
+                return sb.length() == 6 ? "server n/a (use --pid or --embedded)" : sb.toString();
+            }
+        }
+
+        Sample sample() {
+            Sample s = new Sample();
+            if (pid > 0) {
+                try {
+                    for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+                        if (line.startsWith("VmRSS:")) s.rssKb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                        else if (line.startsWith("Threads:")) s.threads = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                } catch (IOException | NumberFormatException ignored) {}
+                ProcessHandle.of(pid).flatMap(p -> p.info().totalCpuDuration()).ifPresent(d -> s.cpuNanos = d.toNanos());
+            }
+            if (engine != null) {
+                s.clients = engine.clientCount();
+                s.busy = engine.activeClientThreads();
+            }
+            return s;
+        }
+    }
+
+    // ----------------- Main -----------------
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost", corpus = CORPUS;
+        int port = ChatServerEngine.DEFAULT_PORT;
+        long pid = -1;
+        boolean embedded = false, nio = false;
+        File outDir = null;
+        List<Scenario> scenarios = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host":     host = args[++i]; break;
+                case "--port":     port = Integer.parseInt(args[++i]); break;
+                case "--pid":      pid = Long.parseLong(args[++i]); break;
+                case "--out":      outDir = new File(args[++i]); break;
+                case "--corpus":   corpus = args[++i]; break;
+                case "--embedded": embedded = true; break;
+                case "--nio":      nio = true; break;
+                case "--virtual":  break;   // ThreadMode.fromArgs
+                default:
+                    if (args[i].startsWith("--")) {
+                        System.err.println("usage: java SpamDetector.LoadGenerator [--host h] [--port p] [--pid n]"
+                                + " [--embedded [--nio] [--virtual]] [--out dir] [--corpus spam.csv]"
+                                + " [scenario[:key=value,...]]...   presets: " + PRESETS.keySet());
+                        System.exit(2);
+                    }
+                    scenarios.add(Scenario.parse(args[i]));
+            }
+        }
+        if (scenarios.isEmpty()) scenarios.add(Scenario.parse("steady"));
+
+        ThreadMode mode = ThreadMode.fromArgs(args);
+        ChatServerEngine engine = null;
+        if (embedded) {
+            engine = new ChatServerEngine(port, nio, mode);
+            engine.addListener(new ChatServerEngine.Listener() {
+                @Override public void onStatus(String text) { System.err.println(text); }
+            });
+            try {
+                engine.start();
+            } catch (IOException e) {
+                System.err.println("Server stopped: " + e.getMessage());
+                engine.close();
+                System.exit(1);
+            }
+            pid = ProcessHandle.current().pid();
+        }
+
+        boolean clean = true;
+        try {
+            LoadGenerator generator = new LoadGenerator(host, port, mode, new ServerProbe(pid, engine), outDir, corpus);
+            for (Scenario s : scenarios) clean &= generator.run(s);
+        } catch (IOException e) {
+            System.err.println("LoadGenerator: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            if (engine != null) engine.close();
+        }
+        System.exit(clean ? 0 : 2);
+    }
+}
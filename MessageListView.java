@@ -0,0 +1,507 @@
+package SpamDetector;
+
+import javax.swing.*;
+import java.awt.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Virtualized chat transcript used by the Server and Client windows.
+ *
+ * - Each message is a small immutable Entry in a ring of `scrollback` entries. There is
+ *   no Swing component per message; when the ring is full the oldest entry is dropped.
+ * - Each entry is wrapped once for the current width, and its line offsets and height
+ *   are cached. Row tops are a running sum, so an append is O(1) and does not lay out
+ *   the other rows. A width change re-wraps everything once.
+ * - paintComponent binary-searches the first row in the clip and paints only the rows
+ *   on screen, straight onto the Graphics. Fonts, colours and the time format are
+ *   shared, and the "HH:mm" string is reused for every message in the same minute.
+ * - post() may be called from any thread. It only adds to a pending buffer, which
+ *   is bounded: rows that would scroll out of the ring anyway are dropped. The EDT
+ *   applies the buffer at most once per FRAME_MILLIS and at most MAX_ROWS_PER_FRAME
+ *   rows at a time, with one layout pass, one repaint and one scroll per batch. A
+ *   message flood costs one EDT event per frame, not one per message.
+ * - FloodPolicy: once more than floodThreshold messages arrive within a second, the
+ *   chosen ones are only counted. Each second they become one summary bubble, e.g.
+ *   "412 messages blocked in the last second". The network path never waits for this.
+ * - The view follows new messages while it is scrolled to the bottom. Otherwise it
+ *   holds its place, even while old rows drop off the top.
+ * - Everything else is EDT only.
+ */
+public class MessageListView extends JComponent implements Scrollable {
+
+    private static final long serialVersionUID = 1L;
+
+    // ========== CONFIG ==========
+    private static final Font TEXT_FONT = new Font("Tahoma", Font.PLAIN, 15);
+    private static final Font TIME_FONT = new Font("Tahoma", Font.PLAIN, 10);
+    private static final Font CLASSIFICATION_FONT = new Font("Tahoma", Font.ITALIC, 10);
+    private static final Color MINE = new Color(37, 211, 102);
+    private static final Color THEIRS = new Color(236, 229, 221);
+    private static final Color BLOCKED = new Color(220, 40, 40);   // red for blocked spam
+    private static final int MAX_TEXT_WIDTH = 296;   // bubbles at most 320 px wide
+    private static final int MIN_TEXT_WIDTH = 40;
+    private static final int SIDE_MARGIN = 40;       // room left beside the widest bubble
+    private static final int PAD_X = 12, PAD_Y = 10;
+    private static final int CLASSIFICATION_GAP = 2;
+    private static final int ROW_GAP = 8;
+    private static final int SCROLL_UNIT = 20;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm");
+    private static final int FRAME_MILLIS = 33;             // apply posted messages at most ~30 times a second
+    private static final int MAX_ROWS_PER_FRAME = 1000;     // the rest waits for the next frame
+    private static final long FLOOD_WINDOW_MILLIS = 1000;   // rate window for the flood threshold
+
+    /** What post() collapses into a summary bubble while over the flood threshold. */
+    public enum FloodPolicy {
+        /** Never collapse: every message gets a bubble (still applied in batches). */
+        SHOW_ALL,
+        /** Collapse blocked spam only; normal chat is always shown. */
+        COLLAPSE_BLOCKED,
+        /** Collapse everything over the threshold, blocked or not. */
+        COLLAPSE_ALL
+    }
+
+    /** One message and its layout for the current wrap width. */
+    private static final class Entry {
+        final String text;
+        final boolean mine;              // right-aligned: sent from this window
+        final boolean blocked;
+        final String classification;     // "ham (0.97)" or null
+        final String time;
+        int[] lines;                     // start/end offset pairs into text, one pair per line
+        int bubbleWidth;
+        int bubbleHeight;
+
+        Entry(String text, boolean mine, boolean blocked, String classification, String time) {
+            this.text = text == null ? "" : text;
+            this.mine = mine;
+            this.blocked = blocked;
+            this.classification = classification;
+            this.time = time;
+        }
+    }
+
+    private final Entry[] ring;
+    private final long[] tops;           // each entry's top, counted from the first entry ever appended
+    private int head;                    // oldest entry
+    private int size;
+    private long base;                   // top of the oldest kept entry
+    private long bottom;                 // top of the next entry
+    private int wrapWidth = MAX_TEXT_WIDTH;
+
+    private final FontMetrics textMetrics = getFontMetrics(TEXT_FONT);
+    private final FontMetrics timeMetrics = getFontMetrics(TIME_FONT);
+    private final FontMetrics classificationMetrics = getFontMetrics(CLASSIFICATION_FONT);
+
+    // posted, not yet applied; everything below is guarded by pending
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private boolean flushScheduled;      // a flush is queued on the EDT or waiting on flushTimer
+    private long windowStart;
+    private int windowCount;             // messages posted in this flood window
+    private int collapsedBlocked;        // counted instead of shown in this window
+    private int collapsedOther;
+    private long collapsedTotal;
+    private long timeMinute = Long.MIN_VALUE;
+    private String timeText;
+
+    private final FloodPolicy floodPolicy;
+    private final int floodThreshold;
+    private final javax.swing.Timer flushTimer = new javax.swing.Timer(FRAME_MILLIS, e -> flush());
+    private long lastFlush;
+
+    public MessageListView(int scrollback) {
+        this(scrollback, FloodPolicy.SHOW_ALL, Integer.MAX_VALUE);
+    }
+
+    /** @param floodThreshold messages per second above which floodPolicy collapses them */
+    public MessageListView(int scrollback, FloodPolicy floodPolicy, int floodThreshold) {
+        ring = new Entry[Math.max(1, scrollback)];
+        tops = new long[ring.length];
+        this.floodPolicy = floodPolicy;
+        this.floodThreshold = Math.max(0, floodThreshold);
+        flushTimer.setRepeats(false);
+        setOpaque(true);
+        setBackground(Color.WHITE);
+    }
+
+    /** Messages currently kept (at most scrollback). */
+    public int messageCount() {
+        return size;
+    }
+
+    /** Messages counted into summary bubbles instead of being shown, since the start. */
+    public long collapsedCount() {
+        synchronized (pending) {
+            return collapsedTotal;
+        }
+    }
+
+    /**
+     * Queue one message for the bottom of the list; callable from any thread.
+     *
+     * @param mine           true -> right aligned (this window's own message)
+     * @param blocked        true -> render as blocked spam (red)
+     * @param classification optional "label (confidence)" line under the text
+     */
+    public void post(String text, boolean mine, boolean blocked, String classification) {
+        boolean schedule = false;
+        synchronized (pending) {
+            long now = System.currentTimeMillis();
+            rollWindow(now);
+            windowCount++;
+            boolean collapsible = floodPolicy == FloodPolicy.COLLAPSE_ALL
+                    || (floodPolicy == FloodPolicy.COLLAPSE_BLOCKED && blocked);
+            if (collapsible && windowCount > floodThreshold) {
+                if (blocked) collapsedBlocked++; else collapsedOther++;
+                collapsedTotal++;
+            } else {
+                enqueue(new Entry(text, mine, blocked, classification, timeNow(now)));
+            }
+            if (!flushScheduled) {
+                flushScheduled = true;
+                schedule = true;
+            }
+        }
+        if (schedule) SwingUtilities.invokeLater(this::flush);
+    }
+
+    /** Add one message at the bottom right away. EDT only; post() batches. */
+    public void append(String text, boolean mine, boolean blocked, String classification) {
+        Entry e;
+        synchronized (pending) {
+            e = new Entry(text, mine, blocked, classification, timeNow(System.currentTimeMillis()));
+        }
+        appendAll(List.of(e));
+    }
+
+    // ----------------- Batching -----------------
+
+    // lock held; a full buffer drops its oldest: more than the ring holds cannot all be seen
+    private void enqueue(Entry e) {
+        if (pending.size() >= ring.length) pending.poll();
+        pending.add(e);
+    }
+
+    // lock held: at the end of a flood window the collapsed messages become one summary bubble
+    private void rollWindow(long now) {
+        if (now - windowStart < FLOOD_WINDOW_MILLIS) return;
+        int collapsed = collapsedBlocked + collapsedOther;
+        if (collapsed > 0) {
+            String text;
+            if (collapsedOther == 0) {
+                text = collapsed + " messages blocked in the last second";
+            } else if (collapsedBlocked == 0) {
+                text = collapsed + " messages in the last second";
+            } else {
+                text = collapsed + " messages (" + collapsedBlocked + " blocked) in the last second";
+            }
+            enqueue(new Entry(text, false, collapsedOther == 0, null, timeNow(now)));
+        }
+        windowStart = now;
+        windowCount = 0;
+        collapsedBlocked = 0;
+        collapsedOther = 0;
+    }
+
+    // EDT: apply everything posted as one batch, at most once per frame
+    private void flush() {
+        long now = System.currentTimeMillis();
+        long wait = lastFlush + FRAME_MILLIS - now;
+        if (wait > 0) {
+            restartTimer(wait);
+            return;
+        }
+        List<Entry> batch;
+        long next = -1;   // stay scheduled: more rows, or a summary bubble still due
+        synchronized (pending) {
+            rollWindow(now);
+            batch = new ArrayList<>(Math.min(pending.size(), MAX_ROWS_PER_FRAME));
+            while (batch.size() < MAX_ROWS_PER_FRAME && !pending.isEmpty()) batch.add(pending.poll());
+            if (!pending.isEmpty()) {
+                next = FRAME_MILLIS;
+            } else if (collapsedBlocked + collapsedOther > 0) {
+                next = Math.max(FRAME_MILLIS, windowStart + FLOOD_WINDOW_MILLIS - now);
+            } else {
+                flushScheduled = false;
+            }
+        }
+        lastFlush = now;
+        if (!batch.isEmpty()) appendAll(batch);
+        if (next >= 0) restartTimer(next);
+    }
+
+    private void restartTimer(long delayMillis) {
+        flushTimer.setInitialDelay((int) Math.min(Integer.MAX_VALUE, delayMillis));
+        flushTimer.restart();
+    }
+
+    // one layout pass, one repaint and one scroll for the whole batch
+    private void appendAll(List<Entry> batch) {
+        boolean follow = atBottom();
+        long firstTop = bottom;
+        long dropped = 0;
+        for (Entry e : batch) {
+            layout(e);
+            if (size == ring.length) {
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+                long newBase = size > 0 ? tops[head] : bottom;
+                dropped += newBase - base;
+                base = newBase;
+            }
+            int slot = (head + size) % ring.length;
+            ring[slot] = e;
+            tops[slot] = bottom;
+            bottom += e.bubbleHeight + timeMetrics.getHeight() + ROW_GAP;
+            size++;
+        }
+
+        revalidate();
+        if (dropped > 0) {
+            repaint();   // everything moved up
+        } else {
+            repaint(0, (int) (firstTop - base), getWidth(), (int) (bottom - firstTop));
+        }
+        scroll(follow, dropped);
+    }
+
+    // ----------------- Layout -----------------
+
+    // lock held
+    private String timeNow(long now) {
+        long minute = Math.floorDiv(now, 60_000L);
+        if (minute != timeMinute) {
+            timeMinute = minute;
+            timeText = TIME.format(Instant.ofEpochMilli(now).atZone(ZoneId.systemDefault()));
+        }
+        return timeText;
+    }
+
+    private void layout(Entry e) {
+        e.lines = wrap(e.text, textMetrics, wrapWidth);
+        int inner = 0;
+        for (int i = 0; i < e.lines.length; i += 2) {
+            inner = Math.max(inner, textMetrics.stringWidth(e.text.substring(e.lines[i], e.lines[i + 1])));
+        }
+        int height = 2 * PAD_Y + (e.lines.length / 2) * textMetrics.getHeight();
+        if (e.classification != null) {
+            inner = Math.max(inner, classificationMetrics.stringWidth(e.classification));
+            height += CLASSIFICATION_GAP + classificationMetrics.getHeight();
+        }
+        e.bubbleWidth = inner + 2 * PAD_X;
+        e.bubbleHeight = height;
+    }
+
+    // start/end pairs: greedy word wrap at width, hard breaks at '\n', long words split
+    static int[] wrap(String text, FontMetrics fm, int width) {
+        int[] out = new int[8];
+        int count = 0;
+        int paragraph = 0;
+        while (true) {
+            int newline = text.indexOf('\n', paragraph);
+            int end = newline < 0 ? text.length() : newline;
+            int start = paragraph;
+            do {
+                int lineEnd = fit(text, start, end, fm, width);
+                if (count + 2 > out.length) out = Arrays.copyOf(out, out.length * 2);
+                out[count++] = start;
+                out[count++] = lineEnd;
+                start = lineEnd;
+                while (start < end && text.charAt(start) == ' ') start++;
+            } while (start < end);
+            if (newline < 0) break;
+            paragraph = newline + 1;
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    // end of the longest line starting at start that fits width, broken after a space if possible
+    private static int fit(String text, int start, int end, FontMetrics fm, int width) {
+        int w = 0;
+        int lastSpace = -1;
+        int i = start;
+        while (i < end) {
+            int cp = text.codePointAt(i);
+            w += fm.charWidth(cp);
+            if (w > width && i > start) return lastSpace > start ? lastSpace : i;
+            if (cp == ' ') lastSpace = i;
+            i += Character.charCount(cp);
+        }
+        return end;
+    }
+
+    private int wrapWidthFor(int viewWidth) {
+        if (viewWidth <= 0) return MAX_TEXT_WIDTH;
+        return Math.max(MIN_TEXT_WIDTH, Math.min(MAX_TEXT_WIDTH, viewWidth - 2 * PAD_X - SIDE_MARGIN));
+    }
+
+    // new width: re-wrap everything and recompute the running tops
+    private void relayout() {
+        long top = base;
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % ring.length;
+            layout(ring[slot]);
+            tops[slot] = top;
+            top += ring[slot].bubbleHeight + timeMetrics.getHeight() + ROW_GAP;
+        }
+        bottom = top;
+    }
+
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        super.setBounds(x, y, width, height);
+        int w = wrapWidthFor(width);
+        if (w != wrapWidth) {
+            wrapWidth = w;
+            relayout();
+            revalidate();
+            repaint();
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(MAX_TEXT_WIDTH + 2 * PAD_X + SIDE_MARGIN, (int) Math.min(Integer.MAX_VALUE, bottom - base));
+    }
+
+    // ----------------- Painting -----------------
+
+    @Override
+    protected void paintComponent(Graphics g0) {
+        Graphics2D g = (Graphics2D) g0.create();
+        try {
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+            if (hints instanceof Map) g.addRenderingHints((Map<?, ?>) hints);
+
+            for (int i = rowAt(clip.y); i < size; i++) {
+                int slot = (head + i) % ring.length;
+                long y = tops[slot] - base;
+                if (y >= clip.y + clip.height) break;
+                paintEntry(g, ring[slot], (int) y);
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    // last row whose top is at or above y
+    private int rowAt(int y) {
+        int lo = 0, hi = size - 1, row = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tops[(head + mid) % ring.length] - base <= y) {
+                row = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Text of the classified message whose bubble contains p, or null (status lines, summary
+     * bubbles, gaps between bubbles). EDT only; used for the moderator's context menu.
+     */
+    public String textAt(Point p) {
+        if (size == 0) return null;
+        int slot = (head + rowAt(p.y)) % ring.length;
+        Entry e = ring[slot];
+        int x = e.mine ? getWidth() - e.bubbleWidth : 0;
+        Rectangle bubble = new Rectangle(x, (int) (tops[slot] - base), e.bubbleWidth, e.bubbleHeight);
+        return e.classification != null && bubble.contains(p) ? e.text : null;
+    }
+
+    private void paintEntry(Graphics2D g, Entry e, int y) {
+        int x = e.mine ? getWidth() - e.bubbleWidth : 0;
+        g.setColor(e.blocked ? BLOCKED : e.mine ? MINE : THEIRS);
+        g.fillRect(x, y, e.bubbleWidth, e.bubbleHeight);
+
+        g.setFont(TEXT_FONT);
+        g.setColor(e.blocked ? Color.WHITE : Color.BLACK);
+        int baseline = y + PAD_Y + textMetrics.getAscent();
+        for (int i = 0; i < e.lines.length; i += 2) {
+            g.drawString(e.text.substring(e.lines[i], e.lines[i + 1]), x + PAD_X, baseline);
+            baseline += textMetrics.getHeight();
+        }
+
+        if (e.classification != null) {
+            g.setFont(CLASSIFICATION_FONT);
+            g.setColor(e.blocked ? Color.LIGHT_GRAY : Color.DARK_GRAY);
+            int cx = x + e.bubbleWidth - PAD_X - classificationMetrics.stringWidth(e.classification);
+            int cy = y + e.bubbleHeight - classificationMetrics.getHeight() + classificationMetrics.getAscent();
+            g.drawString(e.classification, cx, cy);
+        }
+
+        g.setFont(TIME_FONT);
+        g.setColor(Color.GRAY);
+        int tx = e.mine ? getWidth() - timeMetrics.stringWidth(e.time) : 0;
+        g.drawString(e.time, tx, y + e.bubbleHeight + timeMetrics.getAscent());
+    }
+
+    // ----------------- Scrolling -----------------
+
+    private JViewport viewport() {
+        Container parent = getParent();
+        return parent instanceof JViewport ? (JViewport) parent : null;
+    }
+
+    private boolean atBottom() {
+        JViewport vp = viewport();
+        if (vp == null) return true;
+        Rectangle view = vp.getViewRect();
+        return view.y + view.height >= getHeight() - ROW_GAP;
+    }
+
+    // lays the scroll pane out now, then follows the bottom or keeps the rows being read in place
+    private void scroll(boolean follow, long dropped) {
+        JViewport vp = viewport();
+        if (vp == null) return;
+        vp.getParent().validate();
+        Point p = vp.getViewPosition();
+        if (follow) {
+            p.y = Math.max(0, getHeight() - vp.getExtentSize().height);
+        } else {
+            p.y = (int) Math.max(0, p.y - dropped);
+        }
+        vp.setViewPosition(p);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return SCROLL_UNIT;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        // fill the viewport (white) while the transcript is shorter than it
+        JViewport vp = viewport();
+        return vp != null && vp.getHeight() > getPreferredSize().height;
+    }
+}
@@ -0,0 +1,636 @@
+package SpamDetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only, segmented binary store for chat log records, queryable by time, tag and peer.
+ *
+ * Store directory:
+ *   tags.txt              tag dictionary, line n is tag code n
+ *   segment-000001.log    records, appended a batch at a time
+ *   segment-000001.idx    index of the segment (rebuilt by scanning when missing or stale)
+ *
+ * Record (big-endian): a fixed header, then the variable parts
+ *   u32 record length (including this field)
+ *   i64 timestamp, epoch millis
+ *   u8  tag code
+ *   f64 confidence (-1 = not classified)
+ *   u16 peer length, then the peer (UTF-8)
+ *   message (UTF-8, the rest of the record)
+ *
+ * - Every segment has a sparse time index (min/max timestamp and offset of each block of
+ *   INDEX_BLOCK records) and per-tag postings (offsets of every record with that tag).
+ * - A query skips segments and blocks outside its time range, walks the postings when it
+ *   names a tag, and decodes records straight out of a read-only memory mapping.
+ * - A segment past SEGMENT_BYTES is sealed (index written next to it) and a new one starts.
+ *   On open, stale indexes are rebuilt and a torn last record (crash mid-write) is cut off.
+ * - append/flush/sync are called by ChatLogWriter's thread only; queries may run on any
+ *   thread meanwhile.
+ *
+ * CLI:
+ *   java SpamDetector.MessageStore DIR query [--from T] [--to T] [--tag TAG] [--peer PEER] [--limit N]
+ *   java SpamDetector.MessageStore DIR export [FILE]        everything, in chat_log.txt format
+ *   java SpamDetector.MessageStore DIR import chat_log.txt  load an existing text log
+ *   java SpamDetector.MessageStore DIR stats
+ * T is epoch millis or local time as yyyy-MM-ddTHH:mm[:ss]. PEER is a host (127.0.0.1, every
+ * connection from it: the port changes on each reconnect) or host:port (one connection);
+ * the leading "/" of a logged address is optional. IPv6 hosts are written as logged.
+ */
+public class MessageStore implements ChatLogWriter.RecordSink, Closeable {
+
+    // ========== CONFIG ==========
+    private static final long SEGMENT_BYTES = 32L * 1024 * 1024;
+    private static final int INDEX_BLOCK = 256;        // records per sparse time-index entry
+    private static final int HEADER = 4 + 8 + 1 + 8 + 2;
+    private static final int INDEX_MAGIC = 0x534E4D49; // "SNMI"
+    private static final int INDEX_VERSION = 1;
+    private static final int MAX_TAGS = 256;
+    private static final DateTimeFormatter LINE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /** One stored record. */
+    public static final class Record {
+        public final long timestamp;
+        public final String tag;
+        public final String peer;         // "" when unknown
+        public final double confidence;
+        public final String text;
+
+        Record(long timestamp, String tag, String peer, double confidence, String text) {
+            this.timestamp = timestamp;
+            this.tag = tag;
+            this.peer = peer;
+            this.confidence = confidence;
+            this.text = text;
+        }
+
+        /** The same line ChatLogWriter writes to chat_log.txt (without the line separator). */
+        public String toLogLine() {
+            String ts = LINE_TIME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()));
+            StringBuilder sb = new StringBuilder(48 + text.length());
+            sb.append('[').append(ts).append("] ").append(tag).append(" | conf=");
+            ChatLogWriter.appendFixed4(sb, confidence);
+            return sb.append(" | ").append(text).toString();
+        }
+    }
+
+    private final File dir;
+    private final File tagFile;
+    private final List<String> tagNames = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> tagCodes = new ConcurrentHashMap<>();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    // writer side
+    private Segment active;
+    private FileChannel out;
+    private ByteBuffer staging = ByteBuffer.allocate(64 * 1024);
+    private long[] stagedTs = new long[256];
+    private int[] stagedTag = new int[256];
+    private int[] stagedOffset = new int[256];
+    private int staged;
+
+    public MessageStore(File dir) throws IOException {
+        this.dir = dir;
+        this.tagFile = new File(dir, "tags.txt");
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        loadTags();
+        File[] logs = dir.listFiles((d, name) -> name.matches("segment-\\d+\\.log"));
+        if (logs != null) {
+            Arrays.sort(logs);
+            for (int i = 0; i < logs.length; i++) {
+                int id = Integer.parseInt(logs[i].getName().replaceAll("\\D", ""));
+                Segment s = new Segment(id, dir);
+                open(s, i == logs.length - 1);
+                segments.add(s);
+            }
+        }
+        if (segments.isEmpty()) segments.add(new Segment(1, dir));
+        active = segments.get(segments.size() - 1);
+        out = FileChannel.open(active.log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        out.position(active.size);
+    }
+
+    // ----------------- Writing (ChatLogWriter thread) -----------------
+
+    @Override
+    public void append(long timestamp, String tag, String peer, double confidence, String text) throws IOException {
+        int code = tagCode(tag);
+        byte[] p = peer == null ? new byte[0] : peer.getBytes(StandardCharsets.UTF_8);
+        if (p.length > 0xffff) p = Arrays.copyOf(p, 0xffff);
+        byte[] t = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + p.length + t.length;
+        if (staging.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(staging.capacity() * 2, staging.position() + length));
+            staging.flip();
+            staging = bigger.put(staging);
+        }
+        if (staged == stagedTs.length) {
+            stagedTs = Arrays.copyOf(stagedTs, staged * 2);
+            stagedTag = Arrays.copyOf(stagedTag, staged * 2);
+            stagedOffset = Arrays.copyOf(stagedOffset, staged * 2);
+        }
+        stagedTs[staged] = timestamp;
+        stagedTag[staged] = code;
+        stagedOffset[staged] = (int) (active.size + staging.position());
+        staged++;
+        staging.putInt(length).putLong(timestamp).put((byte) code).putDouble(confidence)
+                .putShort((short) p.length).put(p).put(t);
+    }
+
+    /** Writes the staged batch; its records become visible to queries. */
+    @Override
+    public void flush() throws IOException {
+        if (staged == 0) return;
+        staging.flip();
+        while (staging.hasRemaining()) out.write(staging);
+        staging.clear();
+        synchronized (this) {
+            for (int i = 0; i < staged; i++) active.add(stagedOffset[i], stagedTs[i], stagedTag[i]);
+            active.size = out.position();
+        }
+        staged = 0;
+        if (active.size >= SEGMENT_BYTES) roll();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        out.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.force(false);
+        out.close();
+        synchronized (this) {
+            writeIndex(active);
+        }
+    }
+
+    private void roll() throws IOException {
+        out.force(false);
+        out.close();
+        Segment next = new Segment(active.id + 1, dir);
+        synchronized (this) {
+            writeIndex(active);
+            active.sealed = true;
+            segments.add(next);
+            active = next;
+        }
+        out = FileChannel.open(next.log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private int tagCode(String tag) throws IOException {
+        Integer code = tagCodes.get(tag);
+        if (code != null) return code;
+        if (tagNames.size() >= MAX_TAGS) throw new IOException("more than " + MAX_TAGS + " tags");
+        Files.write(tagFile.toPath(), (tag + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        tagNames.add(tag);
+        tagCodes.put(tag, tagNames.size() - 1);
+        return tagNames.size() - 1;
+    }
+
+    private void loadTags() throws IOException {
+        if (!tagFile.exists()) return;
+        for (String line : Files.readAllLines(tagFile.toPath(), StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) continue;
+            tagCodes.put(line, tagNames.size());
+            tagNames.add(line);
+        }
+    }
+
+    // ----------------- Queries (any thread) -----------------
+
+    /**
+     * Records with from <= timestamp <= to, and the given tag / peer (null = any), in append
+     * order, at most limit of them. peer is a host, matching every port, or host:port.
+     */
+    public List<Record> query(long from, long to, String tag, String peer, int limit) throws IOException {
+        List<Record> result = new ArrayList<>();
+        scan(from, to, tag, peer, limit, result::add);
+        return result;
+    }
+
+    /** Streams matching records to sink; returns how many matched. */
+    public long scan(long from, long to, String tag, String peer, long limit, Consumer<Record> sink) throws IOException {
+        int code = -1;
+        if (tag != null) {
+            Integer c = tagCodes.get(tag);
+            if (c == null) return 0;   // never logged
+            code = c;
+        }
+        long found = 0;
+        for (Segment s : segments) {
+            if (found >= limit) break;
+            Plan plan = plan(s, from, to, code);
+            if (plan == null) continue;
+            if (plan.offsets != null) {
+                for (int i = 0; i < plan.count && found < limit; i++) {
+                    if (emit(plan.map, plan.offsets[i], from, to, code, peer, sink)) found++;
+                }
+            } else {
+                for (int i = 0; i < plan.count && found < limit; i += 2) {
+                    int off = plan.ranges[i], end = plan.ranges[i + 1];
+                    while (off < end && found < limit) {
+                        if (emit(plan.map, off, from, to, code, peer, sink)) found++;
+                        off += plan.map.getInt(off);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // what to read in one segment: tag postings, or the byte ranges of the time blocks that overlap
+    private static final class Plan {
+        ByteBuffer map;
+        int[] offsets;
+        int[] ranges;
+        int count;
+    }
+
+    private synchronized Plan plan(Segment s, long from, long to, int code) throws IOException {
+        if (s.records == 0 || s.maxTs < from || s.minTs > to) return null;
+        Plan plan = new Plan();
+        plan.map = s.map();
+        if (code >= 0) {
+            if (s.tagCounts[code] == 0) return null;
+            plan.offsets = Arrays.copyOf(s.tagOffsets[code], s.tagCounts[code]);
+            plan.count = plan.offsets.length;
+            return plan;
+        }
+        plan.ranges = new int[s.blocks * 2];
+        for (int b = 0; b < s.blocks; b++) {
+            if (s.blockMax[b] < from || s.blockMin[b] > to) continue;
+            plan.ranges[plan.count++] = s.blockOffset[b];
+            plan.ranges[plan.count++] = b + 1 < s.blocks ? s.blockOffset[b + 1] : (int) s.size;
+        }
+        return plan.count == 0 ? null : plan;
+    }
+
+    private boolean emit(ByteBuffer map, int off, long from, long to, int code, String peer, Consumer<Record> sink) {
+        long ts = map.getLong(off + 4);
+        if (ts < from || ts > to) return false;
+        int tag = map.get(off + 12) & 0xff;
+        if (code >= 0 && tag != code) return false;
+        int peerLength = map.getShort(off + 21) & 0xffff;
+        String p = utf8(map, off + HEADER, peerLength);
+        if (peer != null && !matchesPeer(peer, p)) return false;
+        int textStart = off + HEADER + peerLength;
+        String text = utf8(map, textStart, off + map.getInt(off) - textStart);
+        String tagName = tag < tagNames.size() ? tagNames.get(tag) : "TAG" + tag;
+        sink.accept(new Record(ts, tagName, p, map.getDouble(off + 13), text));
+        return true;
+    }
+
+    // "127.0.0.1" matches "/127.0.0.1:54321" (any port), "127.0.0.1:54321" only that connection
+    static boolean matchesPeer(String filter, String peer) {
+        String f = filter.substring(filter.indexOf('/') + 1);
+        String address = peer.substring(peer.indexOf('/') + 1);
+        int colon = f.indexOf(':');
+        boolean withPort = f.startsWith("[") ? f.contains("]:") : colon >= 0 && colon == f.lastIndexOf(':');
+        if (withPort) return address.equals(f);
+        int port = address.lastIndexOf(':');
+        String host = port > 0 ? address.substring(0, port) : address;
+        if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+        if (f.startsWith("[") && f.endsWith("]")) f = f.substring(1, f.length() - 1);
+        return host.equals(f);
+    }
+
+    private static String utf8(ByteBuffer map, int off, int length) {
+        byte[] b = new byte[length];
+        map.duplicate().position(off).get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageStore " + dir;
+    }
+
+    public synchronized String stats() {
+        long records = 0, bytes = 0;
+        for (Segment s : segments) {
+            records += s.records;
+            bytes += s.size;
+        }
+        return String.format("MessageStore %s: %d segments, %d records, %.1f MB, %d tags %s",
+                dir, segments.size(), records, bytes / 1048576.0, tagNames.size(), tagNames);
+    }
+
+    // ----------------- Segments -----------------
+
+    private static final class Segment {
+        final int id;
+        final File log;
+        final File idx;
+        long size;                 // bytes of complete, flushed records
+        int records;
+        long minTs = Long.MAX_VALUE, maxTs = Long.MIN_VALUE;
+        long[] blockMin = new long[16];
+        long[] blockMax = new long[16];
+        int[] blockOffset = new int[16];
+        int blocks;
+        final int[][] tagOffsets = new int[MAX_TAGS][];
+        final int[] tagCounts = new int[MAX_TAGS];
+        boolean sealed;
+        private MappedByteBuffer map;   // covers mapped bytes; remapped as an active segment grows
+        private long mapped;
+
+        Segment(int id, File dir) {
+            this.id = id;
+            String base = String.format("segment-%06d", id);
+            this.log = new File(dir, base + ".log");
+            this.idx = new File(dir, base + ".idx");
+        }
+
+        void add(int offset, long ts, int tag) {
+            if (records % INDEX_BLOCK == 0) {
+                if (blocks == blockMin.length) {
+                    blockMin = Arrays.copyOf(blockMin, blocks * 2);
+                    blockMax = Arrays.copyOf(blockMax, blocks * 2);
+                    blockOffset = Arrays.copyOf(blockOffset, blocks * 2);
+                }
+                blockMin[blocks] = ts;
+                blockMax[blocks] = ts;
+                blockOffset[blocks] = offset;
+                blocks++;
+            } else {
+                blockMin[blocks - 1] = Math.min(blockMin[blocks - 1], ts);
+                blockMax[blocks - 1] = Math.max(blockMax[blocks - 1], ts);
+            }
+            int[] postings = tagOffsets[tag];
+            if (postings == null) {
+                postings = tagOffsets[tag] = new int[16];
+            } else if (tagCounts[tag] == postings.length) {
+                postings = tagOffsets[tag] = Arrays.copyOf(postings, postings.length * 2);
+            }
+            postings[tagCounts[tag]++] = offset;
+            records++;
+            minTs = Math.min(minTs, ts);
+            maxTs = Math.max(maxTs, ts);
+        }
+
+        // store lock held
+        ByteBuffer map() throws IOException {
+            if (map == null || mapped < size) {
+                try (FileChannel ch = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+                    map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    mapped = size;
+                }
+            }
+            return map;
+        }
+    }
+
+    // index from the .idx file if it matches the log, otherwise by scanning the log
+    private void open(Segment s, boolean last) throws IOException {
+        long length = s.log.length();
+        if (s.idx.exists() && readIndex(s, length)) {
+            s.sealed = !last;
+            return;
+        }
+        // streamed rather than mapped: a mapped file cannot be truncated on Windows
+        long off = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.log), 1 << 16))) {
+            while (off + HEADER <= length) {
+                int len = in.readInt();
+                if (len < HEADER || off + len > length) break;
+                long ts = in.readLong();
+                int tag = in.readUnsignedByte();
+                in.skipNBytes(len - 13);
+                s.add((int) off, ts, tag);
+                off += len;
+            }
+        }
+        s.size = off;
+        if (off < length) {
+            System.err.println("MessageStore: " + s.log.getName() + " has " + (length - off)
+                    + " bytes of torn records" + (last ? ", truncating" : ""));
+            if (last) {
+                try (FileChannel ch = FileChannel.open(s.log.toPath(), StandardOpenOption.WRITE)) {
+                    ch.truncate(off);
+                }
+            }
+        }
+        s.sealed = !last;
+        if (!last) writeIndex(s);
+    }
+
+    private void writeIndex(Segment s) throws IOException {
+        File tmp = new File(s.idx.getPath() + ".tmp");
+        try (DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            o.writeInt(INDEX_MAGIC);
+            o.writeInt(INDEX_VERSION);
+            o.writeLong(s.size);
+            o.writeInt(s.records);
+            o.writeLong(s.minTs);
+            o.writeLong(s.maxTs);
+            o.writeInt(s.blocks);
+            for (int b = 0; b < s.blocks; b++) {
+                o.writeLong(s.blockMin[b]);
+                o.writeLong(s.blockMax[b]);
+                o.writeInt(s.blockOffset[b]);
+            }
+            int tags = 0;
+            for (int c : s.tagCounts) if (c > 0) tags++;
+            o.writeInt(tags);
+            for (int t = 0; t < MAX_TAGS; t++) {
+                if (s.tagCounts[t] == 0) continue;
+                o.writeByte(t);
+                o.writeInt(s.tagCounts[t]);
+                for (int i = 0; i < s.tagCounts[t]; i++) o.writeInt(s.tagOffsets[t][i]);
+            }
+        }
+        Files.move(tmp.toPath(), s.idx.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private boolean readIndex(Segment s, long logLength) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.idx)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) return false;
+            long size = in.readLong();
+            if (size != logLength) return false;   // log grew after the index was written
+            s.size = size;
+            s.records = in.readInt();
+            s.minTs = in.readLong();
+            s.maxTs = in.readLong();
+            s.blocks = in.readInt();
+            int cap = Math.max(16, s.blocks);
+            s.blockMin = new long[cap];
+            s.blockMax = new long[cap];
+            s.blockOffset = new int[cap];
+            for (int b = 0; b < s.blocks; b++) {
+                s.blockMin[b] = in.readLong();
+                s.blockMax[b] = in.readLong();
+                s.blockOffset[b] = in.readInt();
+            }
+            int tags = in.readInt();
+            for (int i = 0; i < tags; i++) {
+                int t = in.readUnsignedByte();
+                int n = in.readInt();
+                int[] postings = new int[Math.max(16, n)];
+                for (int j = 0; j < n; j++) postings[j] = in.readInt();
+                s.tagOffsets[t] = postings;
+                s.tagCounts[t] = n;
+            }
+            return true;
+        } catch (IOException e) {
+            // unreadable: reset and rebuild from the log
+            Arrays.fill(s.tagCounts, 0);
+            Arrays.fill(s.tagOffsets, null);
+            s.records = 0;
+            s.blocks = 0;
+            s.minTs = Long.MAX_VALUE;
+            s.maxTs = Long.MIN_VALUE;
+            return false;
+        }
+    }
+
+    // ----------------- CLI -----------------
+
+    private static final Pattern LOG_LINE = Pattern.compile("^\\[(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2})\\] (\\S+) \\| conf=(-?[0-9.,]+) \\| (.*)$");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: MessageStore DIR query [--from T] [--to T] [--tag TAG] [--peer PEER] [--limit N]");
+            System.err.println("       MessageStore DIR export [FILE] | import chat_log.txt | stats");
+            System.err.println("PEER: host (any port) or host:port, e.g. 127.0.0.1 or /127.0.0.1:54321");
+            System.exit(2);
+        }
+        try (MessageStore store = new MessageStore(new File(args[0]))) {
+            switch (args[1]) {
+                case "query":  query(store, args); break;
+                case "export": export(store, args.length > 2 ? new File(args[2]) : null); break;
+                case "import": importLog(store, new File(args[2])); break;
+                case "stats":  System.out.println(store.stats()); break;
+                default:
+                    System.err.println("unknown command " + args[1]);
+                    System.exit(2);
+            }
+        }
+    }
+
+    private static void query(MessageStore store, String[] args) throws IOException {
+        long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+        String tag = null, peer = null;
+        long limit = Long.MAX_VALUE;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--from":  from = parseTime(args[i + 1]); break;
+                case "--to":    to = parseTime(args[i + 1]); break;
+                case "--tag":   tag = args[i + 1]; break;
+                case "--peer":  peer = args[i + 1]; break;
+                case "--limit": limit = Long.parseLong(args[i + 1]); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        long start = System.nanoTime();
+        PrintStream ps = System.out;
+        long n = store.scan(from, to, tag, peer, limit,
+                r -> ps.println(r.toLogLine() + (r.peer.isEmpty() ? "" : "  <" + r.peer + ">")));
+        System.err.printf("%d records in %.1f ms%n", n, (System.nanoTime() - start) / 1e6);
+    }
+
+    private static long parseTime(String s) {
+        if (s.matches("-?\\d+")) return Long.parseLong(s);
+        try {
+            LocalDateTime t = LocalDateTime.parse(s);
+            return t.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("bad time " + s + " (epoch millis or yyyy-MM-ddTHH:mm[:ss])");
+        }
+    }
+
+    private static void export(MessageStore store, File file) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(
+                file == null ? System.out : new FileOutputStream(file), StandardCharsets.UTF_8));
+        String nl = System.lineSeparator();
+        IOException[] failure = new IOException[1];
+        long n = store.scan(Long.MIN_VALUE, Long.MAX_VALUE, null, null, Long.MAX_VALUE, r -> {
+            try {
+                w.write(r.toLogLine());
+                w.write(nl);
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        w.flush();
+        if (file != null) w.close();
+        if (failure[0] != null) throw failure[0];
+        System.err.println("exported " + n + " records");
+    }
+
+    // chat_log.txt -> store; lines that don't start a record continue the previous message
+    private static void importLog(MessageStore store, File file) throws IOException {
+        long n = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            long ts = 0;
+            String tag = null, text = null;
+            double conf = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher m = LOG_LINE.matcher(line);
+                if (!m.matches()) {
+                    if (text != null) text = text + "\n" + line;
+                    continue;
+                }
+                if (tag != null) {
+                    store.importRecord(ts, tag, text, conf);
+                    n++;
+                }
+                ts = LocalDateTime.parse(m.group(1), LINE_TIME).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                tag = m.group(2);
+                conf = Double.parseDouble(m.group(3).replace(',', '.'));
+                text = m.group(4);
+            }
+            if (tag != null) {
+                store.importRecord(ts, tag, text, conf);
+                n++;
+            }
+        }
+        store.flush();
+        System.err.println("imported " + n + " records");
+    }
+
+    private void importRecord(long ts, String tag, String text, double conf) throws IOException {
+        // the text log only named the peer on connect / disconnect lines
+        String peer = tag.equals("CONNECT") || tag.equals("DISCONNECT") ? text : null;
+        append(ts, tag, peer, conf, text);
+        if (staged >= 4096) flush();
+    }
+}
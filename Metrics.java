@@ -0,0 +1,341 @@
+package SpamDetector;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and latency histograms for the server, exposed two ways:
+ *
+ * - Prometheus text format (0.0.4) at GET /metrics on a loopback-only HTTP endpoint,
+ *   served by the JDK's com.sun.net.httpserver on its own dispatcher thread.
+ * - JMX: one DynamicMBean with every series as a read-only attribute (histograms as
+ *   count, p50, p99 and max in milliseconds), for jconsole / VisualVM.
+ *
+ * Recording never takes a lock: a Counter is a LongAdder, latencies go into a Histogram,
+ * and gauges are suppliers that only run when someone scrapes. Series are registered once
+ * at startup; a component's existing counters (ChatLogWriter, VerdictCache, ...) are
+ * registered as suppliers rather than counted twice.
+ *
+ * Latency histograms hold microseconds and are exported in seconds, as Prometheus expects.
+ * Size histograms (values that are counts, e.g. messages per batch) are exported as recorded,
+ * with buckets chosen by whoever registers them.
+ */
+public final class Metrics {
+
+    private static final double[] LATENCY_BUCKETS_SECONDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /** A monotonic count; inc() from any number of threads without contention. */
+    public static final class Counter implements LongSupplier {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        @Override
+        public long getAsLong() {
+            return value.sum();
+        }
+    }
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM;
+
+        String prometheus() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final class Series {
+        final String[] labels;        // name, value, name, value, ...
+        final DoubleSupplier value;   // counter / gauge
+        final Histogram histogram;    // histogram
+        final double[] buckets;       // histogram: upper bounds as exported
+        final double scale;           // histogram: recorded units per exported unit (1e6 for micros)
+
+        Series(String[] labels, DoubleSupplier value, Histogram histogram) {
+            this(labels, value, histogram, LATENCY_BUCKETS_SECONDS, 1_000_000);
+        }
+
+        Series(String[] labels, DoubleSupplier value, Histogram histogram, double[] buckets, double scale) {
+            this.labels = labels;
+            this.value = value;
+            this.histogram = histogram;
+            this.buckets = buckets;
+            this.scale = scale;
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        final List<Series> series = new ArrayList<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();   // guarded by this
+
+    // ----------------- Registration -----------------
+
+    /** A new counter, registered under name with the given label name/value pairs. */
+    public Counter counter(String name, String help, String... labels) {
+        Counter c = new Counter();
+        counter(name, help, c, labels);
+        return c;
+    }
+
+    /** A counter kept elsewhere (must only go up). */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        add(name, help, Type.COUNTER, new Series(labels, value::getAsLong, null));
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        add(name, help, Type.GAUGE, new Series(labels, value, null));
+    }
+
+    /** A new latency histogram; record microseconds into it. */
+    public Histogram histogram(String name, String help, String... labels) {
+        Histogram h = new Histogram();
+        histogram(name, help, h, labels);
+        return h;
+    }
+
+    /** A latency histogram (microseconds) kept elsewhere. */
+    public void histogram(String name, String help, Histogram micros, String... labels) {
+        add(name, help, Type.HISTOGRAM, new Series(labels, null, micros));
+    }
+
+    /** A histogram of counts (not latencies) kept elsewhere, exported unscaled with these upper bounds. */
+    public void sizeHistogram(String name, String help, Histogram values, double[] buckets, String... labels) {
+        add(name, help, Type.HISTOGRAM, new Series(labels, null, values, buckets.clone(), 1));
+    }
+
+    private synchronized void add(String name, String help, Type type, Series series) {
+        if (series.labels.length % 2 != 0) throw new IllegalArgumentException(name + ": labels are name/value pairs");
+        Family f = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (f.type != type) throw new IllegalArgumentException(name + " is already a " + f.type.prometheus());
+        f.series.add(series);
+    }
+
+    private synchronized List<Family> snapshot() {
+        List<Family> copy = new ArrayList<>();
+        for (Family f : families.values()) {
+            Family c = new Family(f.name, f.help, f.type);
+            c.series.addAll(f.series);
+            copy.add(c);
+        }
+        return copy;
+    }
+
+    // ----------------- Prometheus -----------------
+
+    /** Every series in the Prometheus text exposition format. */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Family f : snapshot()) {
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type.prometheus()).append('\n');
+            for (Series s : f.series) {
+                if (f.type != Type.HISTOGRAM) {
+                    sb.append(f.name).append(labels(s.labels, null)).append(' ').append(number(s.value.getAsDouble())).append('\n');
+                    continue;
+                }
+                // count first: anything recorded meanwhile can only make the buckets larger, so clamp them
+                Histogram h = s.histogram;
+                long count = h.count();
+                for (double le : s.buckets) {
+                    long below = Math.min(count, h.countAtOrBelow((long) (le * s.scale)));
+                    sb.append(f.name).append("_bucket").append(labels(s.labels, BigDecimal.valueOf(le).toPlainString())).append(' ').append(below).append('\n');
+                }
+                sb.append(f.name).append("_bucket").append(labels(s.labels, "+Inf")).append(' ').append(count).append('\n');
+                sb.append(f.name).append("_sum").append(labels(s.labels, null)).append(' ').append(number(h.sum() / s.scale)).append('\n');
+                sb.append(f.name).append("_count").append(labels(s.labels, null)).append(' ').append(count).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String labels(String[] pairs, String le) {
+        if (pairs.length == 0 && le == null) return "";
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(pairs[i]).append("=\"").append(escape(pairs[i + 1])).append('"');
+        }
+        if (le != null) sb.append(pairs.length > 0 ? "," : "").append("le=\"").append(le).append('"');
+        return sb.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String number(double d) {
+        if (Double.isNaN(d)) return "NaN";
+        if (Double.isInfinite(d)) return d > 0 ? "+Inf" : "-Inf";
+        if (d == Math.rint(d) && Math.abs(d) < 1e15) return Long.toString((long) d);
+        return Double.toString(d);
+    }
+
+    /**
+     * Serves scrape() at http://127.0.0.1:port/metrics until stop(0) is called on the result.
+     * Bound to loopback only: put a reverse proxy or an SSH tunnel in front to reach it remotely.
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    // ----------------- JMX -----------------
+
+    /** Registers the series as attributes of one MBean on the platform MBean server. */
+    public ObjectName registerMBean(String objectName) throws JMException {
+        ObjectName name = new ObjectName(objectName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+        return name;
+    }
+
+    public static void unregisterMBean(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            System.err.println("Metrics: cannot unregister " + name + ": " + e.getMessage());
+        }
+    }
+
+    // attribute name -> value, e.g. chat_messages_blocked_total_client, spam_classify_seconds_native_p99_ms
+    private Map<String, Supplier<Object>> attributes(Map<String, String> help) {
+        Map<String, Supplier<Object>> out = new LinkedHashMap<>();
+        for (Family f : snapshot()) {
+            for (Series s : f.series) {
+                StringBuilder base = new StringBuilder(f.name);
+                for (int i = 1; i < s.labels.length; i += 2) base.append('_').append(s.labels[i].replaceAll("[^A-Za-z0-9_]", "_"));
+                String n = base.toString();
+                if (f.type == Type.HISTOGRAM && s.scale == 1) {
+                    Histogram h = s.histogram;
+                    out.put(n + "_count", h::count);
+                    out.put(n + "_p50", () -> h.valueAt(50));
+                    out.put(n + "_p99", () -> h.valueAt(99));
+                    out.put(n + "_max", h::max);
+                    for (String suffix : new String[]{"_count", "_p50", "_p99", "_max"}) help.put(n + suffix, f.help);
+                } else if (f.type == Type.HISTOGRAM) {
+                    Histogram h = s.histogram;
+                    out.put(n + "_count", h::count);
+                    out.put(n + "_p50_ms", () -> h.valueAt(50) / 1000.0);
+                    out.put(n + "_p99_ms", () -> h.valueAt(99) / 1000.0);
+                    out.put(n + "_max_ms", () -> h.max() / 1000.0);
+                    for (String suffix : new String[]{"_count", "_p50_ms", "_p99_ms", "_max_ms"}) help.put(n + suffix, f.help);
+                } else if (f.type == Type.COUNTER) {
+                    out.put(n, () -> (long) s.value.getAsDouble());
+                    help.put(n, f.help);
+                } else {
+                    out.put(n, () -> s.value.getAsDouble());
+                    help.put(n, f.help);
+                }
+            }
+        }
+        return out;
+    }
+
+    /** Read-only view of the registry; attributes are listed fresh on every call. */
+    private final class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Supplier<Object> value = attributes(new LinkedHashMap<>()).get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value.get();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Supplier<Object>> all = attributes(new LinkedHashMap<>());
+            AttributeList list = new AttributeList();
+            for (String n : names) {
+                Supplier<Object> value = all.get(n);
+                if (value != null) list.add(new Attribute(n, value.get()));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, String> help = new LinkedHashMap<>();
+            Map<String, Supplier<Object>> all = attributes(help);
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (Map.Entry<String, Supplier<Object>> e : all.entrySet()) {
+                Object sample = e.getValue().get();
+                infos.add(new MBeanAttributeInfo(e.getKey(), sample.getClass().getName(), help.get(e.getKey()),
+                        true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), new MBeanConstructorInfo[0],
+                    new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+        }
+    }
+}
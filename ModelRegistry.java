@@ -0,0 +1,342 @@
+package SpamDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Versions of the native model (spam_nb_model.bin): the one classification uses now, and
+ * the one before it for rollback.
+ *
+ * - current() is one volatile read. A classification reads it once and finishes on that
+ *   version even if another is swapped in meanwhile; the old mapping stays valid for as long
+ *   as anything still uses it.
+ * - Every version maps a private snapshot of the file (copied to a temp file that is unlinked
+ *   once mapped), never the file itself. A tool that rewrites spam_nb_model.bin in place
+ *   instead of renaming a new file over it therefore cannot corrupt the version being
+ *   served or the one kept for rollback; the rewrite is simply the next reload.
+ * - reload() loads the file on a background thread and checks it before anything changes:
+ *   it must map (header and section bounds), have the same classes as the running model, and
+ *   hold only finite priors, idf and log probabilities (NaiveBayesModel.check). It is then
+ *   warmed up on WARMUP_MESSAGES sample messages (JIT, page cache), whose probabilities must
+ *   be finite and sum to 1. Only then is it swapped in. A rejected file changes nothing.
+ * - watch() polls the file every POLL_SECONDS and reloads once its size and mtime have
+ *   held still for one poll, so a file that is still being written is never loaded.
+ * - rollback() swaps the previous version back in without any I/O; rolling back again
+ *   returns to the newer one. Older versions are dropped.
+ * - Versions are numbered from 1 in load order. tag() ("v3-3f19c246", "+12" after 12 online
+ *   updates) is put on every verdict, so a change in behaviour can be traced to a version.
+ *
+ * Listeners get one line per swap, rollback or rejected reload (stderr if there are none).
+ */
+public final class ModelRegistry {
+
+    // ========== CONFIG ==========
+    private static final long POLL_SECONDS = 5;
+    private static final int WARMUP_MESSAGES = 500;
+    private static final String WARMUP_CORPUS = "spam.csv";   // sample messages for the warm-up
+    private static final String[] WARMUP_FALLBACK = {
+            "Ok lar... Joking wif u oni...",
+            "Free entry in 2 a wkly comp to win FA Cup final tkts 21st May 2005",
+            "I'll call you later, are we still on for dinner?",
+            "WINNER!! As a valued network customer you have been selected to receive a prize reward",
+    };
+
+    /** One loaded model file. */
+    public static final class Version {
+        public final int number;
+        public final NaiveBayesModel model;
+        public final long loadedAt;       // System.currentTimeMillis()
+
+        Version(int number, NaiveBayesModel model) {
+            this.number = number;
+            this.model = model;
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        /** "v3-3f19c246": number and file id; "+n" once the online learner has made n updates. */
+        public String tag() {
+            long updates = model.onlineUpdates();
+            String id = String.format("%016x", model.fileModelId()).substring(0, 8);
+            return "v" + number + "-" + id + (updates > 0 ? "+" + updates : "");
+        }
+
+        @Override
+        public String toString() {
+            return tag() + " (loaded " + TIME.format(Instant.ofEpochMilli(loadedAt)) + ")";
+        }
+    }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    private static final ModelRegistry SHARED = new ModelRegistry(new File(NaiveBayesModel.MODEL_PATH));
+
+    /** The registry for NaiveBayesModel.MODEL_PATH, used by NaiveBayesModel.shared(). */
+    public static ModelRegistry shared() {
+        return SHARED;
+    }
+
+    private final File file;
+    private volatile Version current;
+    private volatile Version previous;
+    private volatile boolean initialized;         // written under this
+    private int versions;                         // guarded by this
+    private boolean watching;                     // guarded by this
+    private volatile long lastStamp;              // the file as last loaded or rejected
+    private long pendingStamp;                    // loader thread only
+    private List<String> warmup;                  // loader thread only
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder rollbacks = new LongAdder();
+
+    // polls and loads run here, one at a time
+    private final ScheduledExecutorService loader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ModelRegistry-Loader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ModelRegistry(File file) {
+        this.file = file;
+    }
+
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<String> listener) {
+        listeners.remove(listener);
+    }
+
+    private void notify(String text) {
+        if (listeners.isEmpty()) System.err.println(text);
+        for (Consumer<String> l : listeners) {
+            try {
+                l.accept(text);
+            } catch (RuntimeException e) {
+                System.err.println("ModelRegistry: listener failed: " + e);
+            }
+        }
+    }
+
+    // ----------------- Versions -----------------
+
+    /**
+     * The version being served, or null if there is no usable model file. The first call maps
+     * the file (no warm-up: nothing is being served yet); after that it is a volatile read.
+     */
+    public Version current() {
+        Version v = current;
+        if (v != null || initialized) return v;
+        synchronized (this) {
+            if (!initialized) {
+                lastStamp = stamp();
+                if (file.exists()) {
+                    try {
+                        NaiveBayesModel model = snapshot(file);
+                        attachLearner(model);
+                        current = new Version(++versions, model);
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("NaiveBayesModel load error: " + e.getMessage());
+                    }
+                }
+                initialized = true;
+            }
+            return current;
+        }
+    }
+
+    /** The version rollback() would restore, or null. */
+    public Version previous() {
+        return previous;
+    }
+
+    /**
+     * Loads, checks and warms up the file in the background, then swaps it in. Completes with
+     * the version being served afterwards (the running one if the file has not changed), or
+     * exceptionally with the reason the file was rejected.
+     */
+    public CompletableFuture<Version> reload() {
+        return CompletableFuture.supplyAsync(this::load, loader);
+    }
+
+    /** Serves the previous version again; returns it, or null if there is none. */
+    public Version rollback() {
+        Version back, from;
+        synchronized (this) {
+            if (previous == null) return null;
+            back = previous;
+            from = current;
+            previous = from;
+            current = back;
+        }
+        rollbacks.increment();
+        notify("Model rolled back to " + back.tag() + " (" + from.tag() + " kept, roll back again to return to it)");
+        return back;
+    }
+
+    /** Polls the file every POLL_SECONDS and reloads it when it changes. Idempotent. */
+    public synchronized void watch() {
+        if (watching) return;
+        watching = true;
+        current();
+        loader.scheduleWithFixedDelay(this::poll, POLL_SECONDS, POLL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public long reloadCount() {
+        return reloads.sum();
+    }
+
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    public long rollbackCount() {
+        return rollbacks.sum();
+    }
+
+    // ----------------- Loading -----------------
+
+    private void poll() {
+        long stamp = stamp();
+        if (stamp == lastStamp || stamp == 0) {
+            pendingStamp = stamp;
+            return;
+        }
+        if (stamp != pendingStamp) {      // changed since the last poll: may still be written
+            pendingStamp = stamp;
+            return;
+        }
+        try {
+            load();
+        } catch (CompletionException alreadyReported) {
+            // rejected: notified, and not retried until the file changes again
+        }
+    }
+
+    // loader thread
+    private Version load() {
+        current();
+        long stamp = stamp();
+        lastStamp = stamp;
+        long start = System.nanoTime();
+        try {
+            NaiveBayesModel model = snapshot(file);
+            Version running = current;
+            if (running != null && running.model.fileModelId() == model.fileModelId()) return running;
+            String problem = validate(model, running == null ? null : running.model);
+            if (problem != null) throw new IOException(problem);
+            String warm = warmUp(model, running == null ? null : running.model);
+            attachLearner(model);
+
+            Version next, from, dropped;
+            synchronized (this) {
+                from = current;
+                dropped = previous;
+                next = new Version(++versions, model);
+                previous = from;
+                current = next;
+            }
+            if (dropped != null && dropped != current && dropped != previous) dropped.model.retire();
+            reloads.increment();
+            notify(String.format("Model %s active%s: %s, %.0f ms", next.tag(),
+                    from == null ? "" : " (was " + from.tag() + ")", warm, (System.nanoTime() - start) / 1e6));
+            return next;
+        } catch (IOException | RuntimeException e) {
+            rejected.increment();
+            notify("Model reload rejected, " + (current == null ? "no model" : current.tag()) + " stays: " + e.getMessage());
+            throw new CompletionException(e);
+        }
+    }
+
+    private static String validate(NaiveBayesModel model, NaiveBayesModel running) {
+        if (model.classCount() < 2) return "only " + model.classCount() + " class";
+        if (running != null) {
+            String[] now = labels(running), next = labels(model);
+            if (!Arrays.equals(now, next)) return "classes " + Arrays.toString(next) + " differ from " + Arrays.toString(now);
+        }
+        return model.check();
+    }
+
+    private static String[] labels(NaiveBayesModel model) {
+        String[] labels = new String[model.classCount()];
+        for (int c = 0; c < labels.length; c++) labels[c] = model.label(c);
+        return labels;
+    }
+
+    // classifies the sample messages; returns a summary or throws if a prediction is unusable
+    private String warmUp(NaiveBayesModel model, NaiveBayesModel running) throws IOException {
+        List<String> sample = warmupMessages();
+        double[] proba = new double[model.classCount()];
+        double[] before = running == null ? null : new double[running.classCount()];
+        int same = 0;
+        for (String message : sample) {
+            int c = model.predict(message, proba);
+            double sum = 0.0;
+            for (double p : proba) {
+                if (!Double.isFinite(p)) throw new IOException("predict_proba is not finite for \"" + message + "\"");
+                sum += p;
+            }
+            if (Math.abs(sum - 1.0) > 1e-6) throw new IOException("predict_proba sums to " + sum + " for \"" + message + "\"");
+            if (running != null && running.label(running.predict(message, before)).equals(model.label(c))) same++;
+        }
+        return sample.size() + " warm-up messages"
+                + (running == null ? "" : String.format(", %.1f%% same verdict as before", 100.0 * same / sample.size()));
+    }
+
+    private List<String> warmupMessages() {
+        if (warmup != null) return warmup;
+        List<String> sample = new ArrayList<>();
+        if (new File(WARMUP_CORPUS).exists()) {
+            try (TextNormalizer.CsvReader csv = new TextNormalizer.CsvReader(WARMUP_CORPUS)) {
+                for (String[] row; sample.size() < WARMUP_MESSAGES && (row = csv.next()) != null; ) sample.add(row[1]);
+            } catch (IOException e) {
+                System.err.println("ModelRegistry: cannot read " + WARMUP_CORPUS + ": " + e.getMessage());
+            }
+        }
+        if (sample.isEmpty()) sample.addAll(Arrays.asList(WARMUP_FALLBACK));
+        return warmup = sample;
+    }
+
+    // maps a copy nobody else writes to; on POSIX the copy is unlinked at once (the mapping keeps it)
+    private static NaiveBayesModel snapshot(File file) throws IOException {
+        Path copy = Files.createTempFile("spam_nb_model-", ".bin");
+        try {
+            Files.copy(file.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+            return NaiveBayesModel.load(copy.toFile());
+        } finally {
+            try {
+                Files.delete(copy);
+            } catch (IOException stillMapped) {
+                copy.toFile().deleteOnExit();   // Windows will not delete a mapped file
+            }
+        }
+    }
+
+    // deltas learned before the last restart (ignored with a warning if they belong to another file)
+    private static void attachLearner(NaiveBayesModel model) {
+        if (new File(NaiveBayesModel.LEARNED_PATH).exists()) model.learner();
+    }
+
+    private long stamp() {
+        return file.exists() ? file.lastModified() * 31 + file.length() : 0;
+    }
+}
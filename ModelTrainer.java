@@ -0,0 +1,564 @@
+package SpamDetector;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Headless Java port of ModelTraining.py's fit + export_model.py: trains
+ *   clean_text -> CountVectorizer(stop_words="english") -> TfidfTransformer -> MultinomialNB
+ * on spam.csv and writes spam_nb_model.bin for NaiveBayesModel, without Python, pandas or plots.
+ *
+ * - The CSV is streamed (TextNormalizer.CsvReader, latin-1, first two columns) and never held
+ *   in memory. The reading thread cuts it into chunks of CHUNK_ROWS rows; at most two chunks
+ *   per worker are in flight, so a corpus of tens of millions of messages needs no more
+ *   memory than a small one plus the model itself.
+ * - Chunks are processed on a ForkJoinPool. Each running chunk borrows a per-worker partial
+ *   result (never more than --threads of them) and adds to it without locking; after the pass
+ *   the partials are summed.
+ * - Pass 1 counts document frequencies and class sizes, which fixes the vocabulary (sorted,
+ *   as CountVectorizer numbers it) and idf = ln((1 + n) / (1 + df)) + 1. Pass 2 adds each
+ *   message's l2-normalised tf-idf row to its class's feature counts: one
+ *   features x classes table per worker.
+ * - Tokens come from TextNormalizer, the same port of clean_text + token_pattern that
+ *   prediction uses, minus sklearn's English stop words. The tables are then computed the
+ *   way MultinomialNB.fit does (alpha = 1, fit_prior).
+ * - Like ModelTraining.py it holds out --test-fraction of the rows (picked by a seeded hash
+ *   of the row number, so the split does not depend on the thread count), trains on the rest,
+ *   then maps the written file with NaiveBayesModel and prints accuracy and per-class
+ *   precision/recall on the held-out rows. --test-fraction 0 trains on everything.
+ * - The file is written to a temp file and renamed over the target, so a running server keeps
+ *   the mapping it has. The model id is a SHA-256 of the body (export_model.py uses BLAKE2b,
+ *   which the JDK lacks; the id only has to change with the content).
+ *
+ *   java SpamDetector.ModelTrainer
+ *   java SpamDetector.ModelTrainer --corpus big.csv --out spam_nb_model.bin --threads 8 --min-df 2
+ */
+public class ModelTrainer {
+
+    // ========== CONFIG ==========
+    private static final String CORPUS = "spam.csv";
+    private static final int CHUNK_ROWS = 4096;
+    private static final double ALPHA = 1.0;              // MultinomialNB default
+    private static final double TEST_FRACTION = 0.20;     // ModelTraining.py's test_size
+    private static final long SEED = 42;                  // ModelTraining.py's random_state
+    private static final int MAX_TERM_CHARS = TextNormalizer.MAX_TOKEN_CHARS - 1;   // longer may be truncated
+
+    // sklearn.feature_extraction.text.ENGLISH_STOP_WORDS
+    private static final String STOP_WORDS =
+            "a about above across after afterwards again against all almost alone along already also " +
+            "although always am among amongst amoungst amount an and another any anyhow anyone " +
+            "anything anyway anywhere are around as at back be became because become becomes becoming " +
+            "been before beforehand behind being below beside besides between beyond bill both bottom " +
+            "but by call can cannot cant co con could couldnt cry de describe detail do done down due " +
+            "during each eg eight either eleven else elsewhere empty enough etc even ever every " +
+            "everyone everything everywhere except few fifteen fifty fill find fire first five for " +
+            "former formerly forty found four from front full further get give go had has hasnt have " +
+            "he hence her here hereafter hereby herein hereupon hers herself him himself his how " +
+            "however hundred i ie if in inc indeed interest into is it its itself keep last latter " +
+            "latterly least less ltd made many may me meanwhile might mill mine more moreover most " +
+            "mostly move much must my myself name namely neither never nevertheless next nine no " +
+            "nobody none noone nor not nothing now nowhere of off often on once one only onto or " +
+            "other others otherwise our ours ourselves out over own part per perhaps please put " +
+            "rather re same see seem seemed seeming seems serious several she should show side since " +
+            "sincere six sixty so some somehow someone something sometime sometimes somewhere still " +
+            "such system take ten than that the their them themselves then thence there thereafter " +
+            "thereby therefore therein thereupon these they thick thin third this those though three " +
+            "through throughout thru thus to together too top toward towards twelve twenty two un " +
+            "under until up upon us very via was we well were what whatever when whence whenever " +
+            "where whereafter whereas whereby wherein whereupon wherever whether which while whither " +
+            "who whoever whole whom whose why will with within without would yet you your yours " +
+            "yourself yourselves";
+
+    private final String corpus;
+    private final File out;
+    private final int threads;
+    private final double testFraction;
+    private final long seed;
+    private final int minDf;
+    private final Set<String> stopWords = new HashSet<>(Arrays.asList(STOP_WORDS.split(" ")));
+    private final ForkJoinPool pool;
+
+    public ModelTrainer(String corpus, File out, int threads, double testFraction, long seed, int minDf) {
+        this.corpus = corpus;
+        this.out = out;
+        this.threads = Math.max(1, threads);
+        this.testFraction = testFraction;
+        this.seed = seed;
+        this.minDf = Math.max(1, minDf);
+        this.pool = new ForkJoinPool(this.threads);
+    }
+
+    /** Trains, writes the model file and returns its model id. */
+    public long train() throws IOException {
+        long start = System.nanoTime();
+
+        // pass 1: vocabulary, document frequencies, classes
+        List<DocumentCounts> counts = pass("vocabulary", false, DocumentCounts::new, DocumentCounts::add);
+        DocumentCounts all = counts.get(0);
+        for (int i = 1; i < counts.size(); i++) all.merge(counts.get(i));
+        if (all.documents == 0) throw new IOException(corpus + " has no training rows");
+        String[] classes = all.classes.keySet().toArray(new String[0]);
+        Arrays.sort(classes, ModelTrainer::compareCodePoints);
+        List<String> kept = new ArrayList<>();
+        for (Map.Entry<String, int[]> e : all.df.entrySet()) if (e.getValue()[0] >= minDf) kept.add(e.getKey());
+        String[] terms = kept.toArray(new String[0]);
+        Arrays.sort(terms, ModelTrainer::compareCodePoints);
+        if ((long) terms.length * classes.length > Integer.MAX_VALUE / 2) {
+            throw new IOException(terms.length + " terms is too many for one model file, raise --min-df");
+        }
+        double[] idf = new double[terms.length];
+        for (int f = 0; f < terms.length; f++) {
+            idf[f] = Math.log((1.0 + all.documents) / (1.0 + all.df.get(terms[f])[0])) + 1.0;
+        }
+        double[] classCount = new double[classes.length];
+        for (int c = 0; c < classes.length; c++) classCount[c] = all.classes.get(classes[c])[0];
+        Vocabulary vocabulary = new Vocabulary(terms);
+        System.err.printf("ModelTrainer: %d documents, %d classes %s, %d terms (%d below --min-df)%n",
+                all.documents, classes.length, Arrays.toString(classes), terms.length, all.df.size() - terms.length);
+        all = null;
+        counts = null;
+
+        // pass 2: class-conditional tf-idf sums
+        List<FeatureCounts> sums = pass("tf-idf", false,
+                () -> new FeatureCounts(vocabulary, idf, classes), FeatureCounts::add);
+        double[] featureCount = sums.get(0).counts;
+        for (int i = 1; i < sums.size(); i++) {
+            double[] other = sums.get(i).counts;
+            for (int k = 0; k < featureCount.length; k++) featureCount[k] += other[k];
+        }
+        sums = null;
+
+        // MultinomialNB: feature_log_prob_ and class_log_prior_
+        int nClasses = classes.length, nFeatures = terms.length;
+        double[] featureLogProb = new double[featureCount.length];
+        double[] classLogPrior = new double[nClasses];
+        double documents = 0.0;
+        for (double cc : classCount) documents += cc;
+        for (int c = 0; c < nClasses; c++) {
+            double smoothed = 0.0;
+            for (int f = 0; f < nFeatures; f++) smoothed += featureCount[f * nClasses + c] + ALPHA;
+            double logTotal = Math.log(smoothed);
+            for (int f = 0; f < nFeatures; f++) {
+                featureLogProb[f * nClasses + c] = Math.log(featureCount[f * nClasses + c] + ALPHA) - logTotal;
+            }
+            classLogPrior[c] = Math.log(classCount[c]) - Math.log(documents);
+        }
+
+        String[] stop = stopWords.toArray(new String[0]);
+        Arrays.sort(stop, ModelTrainer::compareCodePoints);
+        long modelId = write(out, classes, classLogPrior, classCount, idf, featureLogProb, featureCount, vocabulary, stop);
+        System.err.printf("ModelTrainer: wrote %s (model id %016x) in %.1f s%n",
+                out, modelId, (System.nanoTime() - start) / 1e9);
+
+        if (testFraction > 0) evaluate(NaiveBayesModel.load(out));
+        return modelId;
+    }
+
+    // ----------------- Passes -----------------
+
+    /**
+     * Streams the corpus once and feeds the training rows (or, with test, the held-out rows)
+     * to per-worker partials. Returns every partial that was created.
+     */
+    private <P> List<P> pass(String name, boolean test, Supplier<P> newPartial, BiConsumer<P, String[]> add)
+            throws IOException {
+        long start = System.nanoTime();
+        ConcurrentLinkedQueue<P> idle = new ConcurrentLinkedQueue<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int maxInFlight = 2 * threads;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long rows = 0, used = 0;
+        try (TextNormalizer.CsvReader csv = new TextNormalizer.CsvReader(corpus)) {
+            List<String[]> chunk = new ArrayList<>(CHUNK_ROWS);
+            for (String[] row; ; rows++) {
+                row = csv.next();
+                if (row != null && isTest(rows) == test) chunk.add(row);
+                if (chunk.size() < CHUNK_ROWS && row != null) continue;
+                if (!chunk.isEmpty() && failure.get() == null) {
+                    used += chunk.size();
+                    List<String[]> work = chunk;
+                    inFlight.acquireUninterruptibly();
+                    pool.execute(() -> {
+                        P partial = idle.poll();
+                        try {
+                            if (partial == null) partial = newPartial.get();
+                            for (String[] r : work) add.accept(partial, r);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        } finally {
+                            if (partial != null) idle.add(partial);
+                            inFlight.release();
+                        }
+                    });
+                    chunk = new ArrayList<>(CHUNK_ROWS);
+                }
+                if (row == null) break;
+            }
+        } finally {
+            inFlight.acquireUninterruptibly(maxInFlight);   // every chunk finished
+        }
+        if (failure.get() != null) throw new IOException(name + " pass failed", failure.get());
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("ModelTrainer: %s pass: %d of %d rows in %.2f s (%.0f rows/s, %d workers)%n",
+                name, used, rows, seconds, rows / Math.max(seconds, 1e-9), idle.size());
+        List<P> partials = new ArrayList<>(idle);
+        if (partials.isEmpty()) partials.add(newPartial.get());
+        return partials;
+    }
+
+    // held-out row? a hash of the row number, so the split is the same for any thread count
+    private boolean isTest(long row) {
+        if (testFraction <= 0) return false;
+        long z = seed * 0x9E3779B97F4A7C15L + row;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return (z >>> 11) * 0x1.0p-53 < testFraction;
+    }
+
+    private static String label(String category) {
+        return category.toLowerCase(Locale.ROOT).strip();   // str.lower().str.strip()
+    }
+
+    /** Pass 1 partial: document frequency per term, documents per class. */
+    private final class DocumentCounts implements TextNormalizer.TokenSink {
+        final Map<String, int[]> df = new HashMap<>();
+        final Map<String, long[]> classes = new HashMap<>();
+        long documents;
+        private final TextNormalizer normalizer = new TextNormalizer();
+        private final Set<String> seen = new HashSet<>();
+
+        void add(String[] row) {
+            documents++;
+            classes.computeIfAbsent(label(row[0]), k -> new long[1])[0]++;
+            seen.clear();
+            normalizer.tokenize(row[1], this);
+            for (String term : seen) df.computeIfAbsent(term, k -> new int[1])[0]++;
+        }
+
+        @Override
+        public void token(char[] buf, int len, int hash) {
+            if (len >= MAX_TERM_CHARS) return;
+            String term = new String(buf, 0, len);
+            if (!stopWords.contains(term)) seen.add(term);
+        }
+
+        void merge(DocumentCounts other) {
+            documents += other.documents;
+            other.classes.forEach((k, v) -> classes.computeIfAbsent(k, x -> new long[1])[0] += v[0]);
+            other.df.forEach((k, v) -> df.computeIfAbsent(k, x -> new int[1])[0] += v[0]);
+        }
+    }
+
+    /** Pass 2 partial: sum of l2-normalised tf-idf rows per class, feature-major. */
+    private static final class FeatureCounts implements TextNormalizer.TokenSink {
+        final double[] counts;
+        private final Vocabulary vocabulary;
+        private final double[] idf;
+        private final Map<String, Integer> classIndex = new HashMap<>();
+        private final int nClasses;
+        private final TextNormalizer normalizer = new TextNormalizer();
+        private int[] features = new int[256];
+        private int n;
+
+        FeatureCounts(Vocabulary vocabulary, double[] idf, String[] classes) {
+            this.vocabulary = vocabulary;
+            this.idf = idf;
+            this.nClasses = classes.length;
+            for (int c = 0; c < classes.length; c++) classIndex.put(classes[c], c);
+            this.counts = new double[idf.length * nClasses];
+        }
+
+        void add(String[] row) {
+            int c = classIndex.get(label(row[0]));
+            n = 0;
+            normalizer.tokenize(row[1], this);
+            Arrays.sort(features, 0, n);
+            double sumSq = 0.0;
+            for (int i = 0; i < n; ) {
+                int f = features[i], j = i;
+                while (j < n && features[j] == f) j++;
+                double v = (j - i) * idf[f];
+                sumSq += v * v;
+                i = j;
+            }
+            double norm = sumSq == 0.0 ? 1.0 : Math.sqrt(sumSq);
+            for (int i = 0; i < n; ) {
+                int f = features[i], j = i;
+                while (j < n && features[j] == f) j++;
+                counts[f * nClasses + c] += (j - i) * idf[f] / norm;
+                i = j;
+            }
+        }
+
+        @Override
+        public void token(char[] buf, int len, int hash) {
+            int f = vocabulary.lookup(buf, len, hash);
+            if (f < 0) return;
+            if (n == features.length) features = Arrays.copyOf(features, n * 2);
+            features[n++] = f;
+        }
+    }
+
+    /** Sorted terms and the open-addressing table export_model.py writes (FNV-1a, linear probing). */
+    private static final class Vocabulary {
+        final String[] terms;
+        final int[] slots;
+        final int[] offsets;
+        final char[] chars;
+
+        Vocabulary(String[] terms) {
+            this.terms = terms;
+            int size = 2;
+            while (size < 2 * terms.length) size *= 2;
+            slots = new int[size];
+            Arrays.fill(slots, -1);
+            offsets = new int[terms.length + 1];
+            for (int f = 0; f < terms.length; f++) offsets[f + 1] = offsets[f] + terms[f].length();
+            chars = new char[offsets[terms.length]];
+            for (int f = 0; f < terms.length; f++) {
+                terms[f].getChars(0, terms[f].length(), chars, offsets[f]);
+                int h = TextNormalizer.hash(chars, offsets[f], terms[f].length()) & (size - 1);
+                while (slots[h] != -1) h = (h + 1) & (size - 1);
+                slots[h] = f;
+            }
+        }
+
+        int lookup(char[] buf, int len, int hash) {
+            int mask = slots.length - 1;
+            for (int h = hash & mask, f; (f = slots[h]) != -1; h = (h + 1) & mask) {
+                if (offsets[f + 1] - offsets[f] == len && Arrays.equals(chars, offsets[f], offsets[f + 1], buf, 0, len)) {
+                    return f;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // Python sorts str by code point; String.compareTo compares UTF-16 units
+    private static int compareCodePoints(String a, String b) {
+        for (int i = 0, j = 0; i < a.length() && j < b.length(); ) {
+            int x = a.codePointAt(i), y = b.codePointAt(j);
+            if (x != y) return Integer.compare(x, y);
+            i += Character.charCount(x);
+            j += Character.charCount(y);
+        }
+        return Integer.compare(a.codePointCount(0, a.length()), b.codePointCount(0, b.length()));
+    }
+
+    // ----------------- Evaluation -----------------
+
+    /** Held-out rows through the written model, printed like sklearn's classification_report. */
+    private void evaluate(NaiveBayesModel model) throws IOException {
+        int nClasses = model.classCount();
+        List<long[]> partials = pass("evaluation", true, () -> new long[(nClasses + 1) * nClasses], (m, row) -> {
+            int actual = model.classIndex(label(row[0]));
+            double[] proba = new double[nClasses];
+            m[(actual < 0 ? nClasses : actual) * nClasses + model.predict(row[1], proba)]++;
+        });
+        long[] matrix = new long[(nClasses + 1) * nClasses];   // [actual][predicted], last row: unseen class
+        for (long[] m : partials) for (int i = 0; i < matrix.length; i++) matrix[i] += m[i];
+
+        long total = 0, correct = 0;
+        for (int i = 0; i < matrix.length; i++) total += matrix[i];
+        for (int c = 0; c < nClasses; c++) correct += matrix[c * nClasses + c];
+        if (total == 0) return;
+        System.out.printf("%nAccuracy: %.4f (%d of %d held-out rows)%n%n", correct / (double) total, correct, total);
+        System.out.printf("%12s %10s %10s %10s %10s%n", "", "precision", "recall", "f1-score", "support");
+        for (int c = 0; c < nClasses; c++) {
+            long tp = matrix[c * nClasses + c], predicted = 0, support = 0;
+            for (int a = 0; a <= nClasses; a++) predicted += matrix[a * nClasses + c];
+            for (int p = 0; p < nClasses; p++) support += matrix[c * nClasses + p];
+            double precision = predicted == 0 ? 0 : tp / (double) predicted;
+            double recall = support == 0 ? 0 : tp / (double) support;
+            double f1 = precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+            System.out.printf("%12s %10.2f %10.2f %10.2f %10d%n", model.label(c), precision, recall, f1, support);
+        }
+        System.out.println("\nConfusion matrix (rows: actual, columns: predicted)");
+        for (int a = 0; a < nClasses; a++) {
+            StringBuilder sb = new StringBuilder(String.format("%12s", model.label(a)));
+            for (int p = 0; p < nClasses; p++) sb.append(String.format(" %8d", matrix[a * nClasses + p]));
+            System.out.println(sb);
+        }
+    }
+
+    // ----------------- Model file -----------------
+
+    // layout and section order as in export_model.py / NaiveBayesModel
+    private static long write(File file, String[] classes, double[] classLogPrior, double[] classCount, double[] idf,
+                              double[] featureLogProb, double[] featureCount, Vocabulary vocabulary, String[] stop)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        long[] offsets = new long[NaiveBayesModel.N_SECTIONS];
+        long modelId;
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            try (Body body = new Body(ch)) {
+                offsets[NaiveBayesModel.SEC_CLASS_NAMES] = body.section();
+                for (String c : classes) {
+                    byte[] name = c.getBytes(StandardCharsets.UTF_8);
+                    body.putInt(name.length);
+                    for (byte b : name) body.put(b);
+                }
+                offsets[NaiveBayesModel.SEC_CLASS_LOG_PRIOR] = body.section();
+                for (double v : classLogPrior) body.putDouble(v);
+                offsets[NaiveBayesModel.SEC_CLASS_COUNT] = body.section();
+                for (double v : classCount) body.putDouble(v);
+                offsets[NaiveBayesModel.SEC_IDF] = body.section();
+                for (double v : idf) body.putDouble(v);
+                offsets[NaiveBayesModel.SEC_FEATURE_LOG_PROB] = body.section();
+                for (double v : featureLogProb) body.putDouble(v);
+                offsets[NaiveBayesModel.SEC_FEATURE_COUNT] = body.section();
+                for (double v : featureCount) body.putDouble(v);
+                offsets[NaiveBayesModel.SEC_SLOTS] = body.section();
+                for (int v : vocabulary.slots) body.putInt(v);
+                offsets[NaiveBayesModel.SEC_TERM_OFFSETS] = body.section();
+                for (int v : vocabulary.offsets) body.putInt(v);
+                offsets[NaiveBayesModel.SEC_TERM_CHARS] = body.section();
+                for (char v : vocabulary.chars) body.putChar(v);
+                offsets[NaiveBayesModel.SEC_STOP_OFFSETS] = body.section();
+                int at = 0;
+                body.putInt(0);
+                for (String s : stop) body.putInt(at += s.length());
+                offsets[NaiveBayesModel.SEC_STOP_CHARS] = body.section();
+                for (String s : stop) for (int i = 0; i < s.length(); i++) body.putChar(s.charAt(i));
+                body.section();
+                modelId = body.modelId();
+            }
+            ByteBuffer header = ByteBuffer.allocate(NaiveBayesModel.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(NaiveBayesModel.MAGIC).putInt(NaiveBayesModel.VERSION)
+                    .putInt(classes.length).putInt(idf.length).putInt(vocabulary.slots.length).putInt(stop.length)
+                    .putDouble(ALPHA).putLong(modelId);
+            for (long off : offsets) header.putLong(off);
+            header.clear();
+            while (header.hasRemaining()) ch.write(header, header.position());
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return modelId;
+    }
+
+    /** Little-endian writer for everything after the header, hashing what it writes. */
+    private static final class Body implements Closeable {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private final MessageDigest digest;
+        private long position = NaiveBayesModel.HEADER_SIZE;
+
+        Body(FileChannel ch) throws IOException {
+            this.ch = ch;
+            ch.position(position);
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        // pads to 8 bytes and returns where the next section starts
+        long section() throws IOException {
+            while (position % 8 != 0) put((byte) 0);
+            return position;
+        }
+
+        void put(byte v) throws IOException {
+            room(1).put(v);
+            position += 1;
+        }
+
+        void putChar(char v) throws IOException {
+            room(2).putChar(v);
+            position += 2;
+        }
+
+        void putInt(int v) throws IOException {
+            room(4).putInt(v);
+            position += 4;
+        }
+
+        void putDouble(double v) throws IOException {
+            room(8).putDouble(v);
+            position += 8;
+        }
+
+        private ByteBuffer room(int bytes) throws IOException {
+            if (buf.remaining() < bytes) flush();
+            return buf;
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            digest.update(buf.duplicate());
+            while (buf.hasRemaining()) ch.write(buf);
+            buf.clear();
+        }
+
+        // first 8 bytes of the body's SHA-256, little endian; call after the last section
+        long modelId() throws IOException {
+            flush();
+            return ByteBuffer.wrap(digest.digest()).order(ByteOrder.LITTLE_ENDIAN).getLong();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    // ----------------- CLI -----------------
+
+    public static void main(String[] args) {
+        String corpus = CORPUS;
+        File out = new File(NaiveBayesModel.MODEL_PATH);
+        int threads = Runtime.getRuntime().availableProcessors(), minDf = 1;
+        double testFraction = TEST_FRACTION;
+        long seed = SEED;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--corpus":        corpus = args[++i]; break;
+                case "--out":           out = new File(args[++i]); break;
+                case "--threads":       threads = Integer.parseInt(args[++i]); break;
+                case "--test-fraction": testFraction = Double.parseDouble(args[++i]); break;
+                case "--seed":          seed = Long.parseLong(args[++i]); break;
+                case "--min-df":        minDf = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("usage: java SpamDetector.ModelTrainer [--corpus spam.csv] [--out spam_nb_model.bin]"
+                            + " [--threads n] [--test-fraction 0.2] [--seed 42] [--min-df 1]");
+                    System.exit(2);
+            }
+        }
+        ModelTrainer trainer = new ModelTrainer(corpus, out, threads, testFraction, seed, minDf);
+        try {
+            trainer.train();
+        } catch (IOException e) {
+            System.err.println("ModelTrainer: " + e.getMessage() + (e.getCause() != null ? " (" + e.getCause() + ")" : ""));
+            System.exit(1);
+        } finally {
+            trainer.pool.shutdown();
+        }
+    }
+}
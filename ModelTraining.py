@@ -117,6 +117,15 @@ with open(MODEL_PATH, "wb") as f:
 
 print(f"\nModel saved as: {MODEL_PATH}")
 
+# ==============================
+# 8b. Export binary model for the Java engine (NaiveBayesModel.java)
+# ==============================
+from export_model import export_model
+
+EXPORT_PATH = "spam_nb_model.bin"
+model_id = export_model(pipeline, EXPORT_PATH)
+print(f"Java model exported as: {EXPORT_PATH} (model id {model_id:016x})")
+
 # ==============================
 # 9. Predict User Input
 # ==============================
@@ -0,0 +1,390 @@
+package SpamDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pure-Java port of the ModelTraining.py pipeline:
+ *   clean_text -> CountVectorizer(stop_words="english") -> TfidfTransformer -> MultinomialNB
+ *
+ * The tables come from spam_nb_model.bin (see export_model.py for the layout). The file is
+ * memory mapped read-only and every lookup reads straight from the mapping, so loading is a
+ * header check rather than deserialization, and several JVMs on one host share the page
+ * cache instead of each holding a heap copy.
+ *
+ * Prediction reproduces sklearn's arithmetic in the same order (sorted feature indices,
+ * l2 row norm, dot product, then log-sum-exp), so predict / predict_proba agree with the
+ * Python model.
+ *
+ * Text goes through TextNormalizer (clean_text + token pattern) and each token is resolved
+ * against the mapped vocabulary table straight from the normalizer's buffer.
+ *
+ * Moderator feedback goes to an OnlineLearner layered over the mapped tables (see learner());
+ * until it has learned something, prediction reads the mapped tables exactly as above.
+ *
+ * Thread-safe: all per-call scratch lives in a ThreadLocal, so predict() allocates nothing.
+ */
+public final class NaiveBayesModel {
+
+    // ========== CONFIG ==========
+    public static final String MODEL_PATH = "spam_nb_model.bin";
+    public static final String LEARNED_PATH = "spam_nb_model.learned";   // OnlineLearner checkpoint
+    private static final int MAX_TOKENS = 4096;   // tokens beyond this per message are ignored
+
+    // ========== FILE FORMAT ==========
+    static final int MAGIC = 0x4D424E53;          // "SNBM" little endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 128;
+    static final int SEC_CLASS_NAMES = 0, SEC_CLASS_LOG_PRIOR = 1, SEC_CLASS_COUNT = 2, SEC_IDF = 3,
+            SEC_FEATURE_LOG_PROB = 4, SEC_FEATURE_COUNT = 5, SEC_SLOTS = 6, SEC_TERM_OFFSETS = 7,
+            SEC_TERM_CHARS = 8, SEC_STOP_OFFSETS = 9, SEC_STOP_CHARS = 10, N_SECTIONS = 11;
+
+    private final String[] classes;
+    private final int nClasses;
+    private final int nFeatures;
+    private final double alpha;
+    private final long modelId;
+
+    // views over the mapped file (absolute reads only, safe to share between threads)
+    private final DoubleBuffer classLogPrior;
+    private final DoubleBuffer classCount;
+    private final DoubleBuffer idf;
+    private final DoubleBuffer featureLogProb;   // feature-major: [feature * nClasses + class]
+    private final DoubleBuffer featureCount;     // feature-major, raw MultinomialNB counts
+    private final IntBuffer slots;               // vocabulary hash table
+    private final int mask;
+    private final IntBuffer termOffsets;
+    private final CharBuffer termChars;
+    private final IntBuffer stopOffsets;
+    private final CharBuffer stopChars;
+    private final int nStopWords;
+
+    private final ThreadLocal<Scratch> scratch;
+    private volatile OnlineLearner learner;       // null until feedback arrives or a checkpoint exists
+
+    private NaiveBayesModel(ByteBuffer buf) throws IOException {
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC) throw new IOException("not a spam model file");
+        int version = buf.getInt(4);
+        if (version != VERSION) throw new IOException("unsupported model version " + version);
+        nClasses = buf.getInt(8);
+        nFeatures = buf.getInt(12);
+        int tableSize = buf.getInt(16);
+        nStopWords = buf.getInt(20);
+        alpha = buf.getDouble(24);
+        modelId = buf.getLong(32);
+        if (nClasses < 1 || nFeatures < 0 || nStopWords < 0 || Integer.bitCount(tableSize) != 1 || tableSize < nFeatures) {
+            throw new IOException("corrupt model header");
+        }
+
+        classes = new String[nClasses];
+        int pos = section(buf, SEC_CLASS_NAMES, 0);
+        for (int c = 0; c < nClasses; c++) {
+            int len = buf.getInt(pos);
+            byte[] name = new byte[len];
+            ByteBuffer d = buf.duplicate();
+            d.position(pos + 4);
+            d.get(name);
+            classes[c] = new String(name, StandardCharsets.UTF_8).intern();
+            pos += 4 + len;
+        }
+        classLogPrior = slice(buf, SEC_CLASS_LOG_PRIOR, nClasses * 8L).asDoubleBuffer();
+        classCount = slice(buf, SEC_CLASS_COUNT, nClasses * 8L).asDoubleBuffer();
+        idf = slice(buf, SEC_IDF, nFeatures * 8L).asDoubleBuffer();
+        featureLogProb = slice(buf, SEC_FEATURE_LOG_PROB, (long) nFeatures * nClasses * 8).asDoubleBuffer();
+        featureCount = slice(buf, SEC_FEATURE_COUNT, (long) nFeatures * nClasses * 8).asDoubleBuffer();
+        slots = slice(buf, SEC_SLOTS, tableSize * 4L).asIntBuffer();
+        mask = tableSize - 1;
+        termOffsets = slice(buf, SEC_TERM_OFFSETS, (nFeatures + 1) * 4L).asIntBuffer();
+        termChars = slice(buf, SEC_TERM_CHARS, termOffsets.get(nFeatures) * 2L).asCharBuffer();
+        stopOffsets = slice(buf, SEC_STOP_OFFSETS, (nStopWords + 1) * 4L).asIntBuffer();
+        stopChars = slice(buf, SEC_STOP_CHARS, stopOffsets.get(nStopWords) * 2L).asCharBuffer();
+
+        scratch = ThreadLocal.withInitial(() -> new Scratch());
+    }
+
+    private static int section(ByteBuffer buf, int index, long length) throws IOException {
+        long off = buf.getLong(40 + index * 8);
+        if (off < HEADER_SIZE || length < 0 || off + length > buf.capacity()) {
+            throw new IOException("model section " + index + " out of bounds");
+        }
+        return (int) off;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int index, long length) throws IOException {
+        int off = section(buf, index, length);
+        ByteBuffer d = buf.duplicate();
+        d.position(off);
+        d.limit(off + (int) length);
+        return d.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // ----------------- Loading -----------------
+
+    /**
+     * The model in use: the version ModelRegistry currently serves from MODEL_PATH, or null
+     * if the file is missing/unreadable (callers then fall back to the Python bridge).
+     * Read it once per classification; a hot reload may swap in another between calls.
+     */
+    public static NaiveBayesModel shared() {
+        ModelRegistry.Version v = ModelRegistry.shared().current();
+        return v == null ? null : v.model;
+    }
+
+    /** Map a model file written by export_model.py. The mapping stays valid after the channel closes. */
+    public static NaiveBayesModel load(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return new NaiveBayesModel(buf);
+        }
+    }
+
+    /** Identifies the tables verdicts come from: the file's id, changed by every online update. */
+    public long modelId() {
+        OnlineLearner l = learner;
+        return l == null ? modelId : l.modelId(modelId);
+    }
+
+    /** The id written into the model file, without online updates. */
+    public long fileModelId() {
+        return modelId;
+    }
+
+    /**
+     * The online-update layer, created on first use with checkpoints in LEARNED_PATH
+     * (existing deltas are loaded if they belong to this model file).
+     */
+    public OnlineLearner learner() {
+        OnlineLearner l = learner;
+        if (l == null) {
+            synchronized (this) {
+                l = learner;
+                if (l == null) learner = l = new OnlineLearner(this, modelId, new File(LEARNED_PATH));
+            }
+        }
+        return l;
+    }
+
+    // updates the online learner has applied (0 if there is none), without creating it
+    long onlineUpdates() {
+        OnlineLearner l = learner;
+        return l == null ? 0 : l.updates();
+    }
+
+    // no longer served (ModelRegistry dropped it): stop its learner's checkpoints
+    void retire() {
+        OnlineLearner l = learner;
+        if (l != null) l.stop();
+    }
+
+    /**
+     * Scans the tables a reload is about to serve: null if every prior, idf and log
+     * probability is finite and every vocabulary slot is in range, else what is wrong.
+     * Reads the whole mapping, so it also pulls the file into the page cache.
+     */
+    String check() {
+        for (int c = 0; c < nClasses; c++) {
+            if (!Double.isFinite(classLogPrior.get(c))) return "class_log_prior_ of " + classes[c] + " is not finite";
+        }
+        for (int f = 0; f < nFeatures; f++) {
+            if (!Double.isFinite(idf.get(f)) || idf.get(f) <= 0) return "idf_ of feature " + f + " is " + idf.get(f);
+        }
+        for (int i = 0; i < nFeatures * nClasses; i++) {
+            if (!Double.isFinite(featureLogProb.get(i))) return "feature_log_prob_ of feature " + (i / nClasses) + " is not finite";
+        }
+        for (int h = 0; h <= mask; h++) {
+            int f = slots.get(h);
+            if (f < -1 || f >= nFeatures) return "vocabulary slot " + h + " points at feature " + f;
+        }
+        return null;
+    }
+
+    public int featureCount() { return nFeatures; }
+
+    public double alpha() { return alpha; }
+
+    /** MultinomialNB class_count_ (documents seen per class during training). */
+    public double classCountRaw(int classIndex) { return classCount.get(classIndex); }
+
+    /** MultinomialNB feature_count_ (summed tf-idf weight of a feature within a class). */
+    public double featureCountRaw(int feature, int classIndex) { return featureCount.get(feature * nClasses + classIndex); }
+
+    /** Index of a class label, or -1. */
+    public int classIndex(String label) {
+        for (int c = 0; c < nClasses; c++) if (classes[c].equals(label)) return c;
+        return -1;
+    }
+
+    public int stopWordCount() { return nStopWords; }
+
+    public String stopWord(int i) {
+        int from = stopOffsets.get(i), to = stopOffsets.get(i + 1);
+        char[] w = new char[to - from];
+        for (int k = 0; k < w.length; k++) w[k] = stopChars.get(from + k);
+        return new String(w);
+    }
+
+    public String term(int feature) {
+        int from = termOffsets.get(feature), to = termOffsets.get(feature + 1);
+        char[] w = new char[to - from];
+        for (int k = 0; k < w.length; k++) w[k] = termChars.get(from + k);
+        return new String(w);
+    }
+
+    // ----------------- Prediction -----------------
+
+    public int classCount() { return nClasses; }
+
+    public String label(int classIndex) { return classes[classIndex]; }
+
+    /**
+     * Classify raw (uncleaned) message text.
+     *
+     * @param text  message as typed by the user
+     * @param proba receives predict_proba for each class (length >= classCount())
+     * @return index of the predicted class (see label(int))
+     */
+    public int predict(CharSequence text, double[] proba) {
+        return predict(scratch.get(), text, proba, 0);
+    }
+
+    /**
+     * Batch form of predict for the micro-batching stage: one scratch lookup for the whole
+     * batch, labels[i] gets the class of texts.get(i) and proba[i * classCount() + c] its
+     * probabilities.
+     */
+    public void predictBatch(List<? extends CharSequence> texts, int[] labels, double[] proba) {
+        Scratch s = scratch.get();
+        for (int i = 0; i < texts.size(); i++) {
+            labels[i] = predict(s, texts.get(i), proba, i * nClasses);
+        }
+    }
+
+    private int predict(Scratch s, CharSequence text, double[] proba, int off) {
+        int n = s.tokenize(text);
+        int[] feats = s.features;
+        Arrays.sort(feats, 0, n);
+
+        // tf-idf row with l2 norm, accumulated in sorted feature order like scipy's csr
+        double sumSq = 0.0;
+        for (int i = 0; i < n; ) {
+            int f = feats[i], j = i;
+            while (j < n && feats[j] == f) j++;
+            double v = (j - i) * idf.get(f);
+            sumSq += v * v;
+            i = j;
+        }
+        double norm = sumSq == 0.0 ? 1.0 : Math.sqrt(sumSq);
+
+        double[] jll = s.jll;
+        Arrays.fill(jll, 0.0);
+        OnlineLearner l = learner;
+        boolean online = l != null && l.updates() > 0;
+        for (int i = 0; i < n; ) {
+            int f = feats[i], j = i;
+            while (j < n && feats[j] == f) j++;
+            double v = ((j - i) * idf.get(f)) / norm;
+            int base = f * nClasses;
+            if (online) {
+                for (int c = 0; c < nClasses; c++) jll[c] += v * l.featureLogProb(f, c);
+            } else {
+                for (int c = 0; c < nClasses; c++) jll[c] += v * featureLogProb.get(base + c);
+            }
+            i = j;
+        }
+
+        int best = 0;
+        for (int c = 0; c < nClasses; c++) {
+            jll[c] += online ? l.classLogPrior(c) : classLogPrior.get(c);
+            if (jll[c] > jll[best]) best = c;
+        }
+        // predict_proba = exp(jll - logsumexp(jll))
+        double max = jll[best];
+        double sum = 0.0;
+        for (int c = 0; c < nClasses; c++) sum += Math.exp(jll[c] - max);
+        double lse = Math.log(sum) + max;
+        for (int c = 0; c < nClasses; c++) proba[off + c] = Math.exp(jll[c] - lse);
+        return best;
+    }
+
+    /**
+     * The message's l2-normalised tf-idf row as predict() builds it: distinct feature indices
+     * in ascending order and their values. Returns the number of features (at most MAX_TOKENS).
+     */
+    int row(CharSequence text, int[] features, double[] values) {
+        Scratch s = scratch.get();
+        int n = s.tokenize(text);
+        int[] feats = s.features;
+        Arrays.sort(feats, 0, n);
+        int distinct = 0;
+        double sumSq = 0.0;
+        for (int i = 0; i < n; ) {
+            int f = feats[i], j = i;
+            while (j < n && feats[j] == f) j++;
+            double v = (j - i) * idf.get(f);
+            sumSq += v * v;
+            features[distinct] = f;
+            values[distinct++] = v;
+            i = j;
+        }
+        double norm = sumSq == 0.0 ? 1.0 : Math.sqrt(sumSq);
+        for (int k = 0; k < distinct; k++) values[k] /= norm;
+        return distinct;
+    }
+
+    static int maxTokens() { return MAX_TOKENS; }
+
+    // ----------------- Tokenization -----------------
+
+    /**
+     * Vocabulary index of a token produced by TextNormalizer, or -1 if the model does not know it.
+     * hash must be TextNormalizer's FNV-1a hash of buf[0, len).
+     */
+    public int lookup(char[] buf, int len, int hash) {
+        int h = hash & mask;
+        int f;
+        while ((f = slots.get(h)) != -1) {
+            int from = termOffsets.get(f);
+            if (termOffsets.get(f + 1) - from == len && termEquals(from, buf, len)) return f;
+            h = (h + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean termEquals(int from, char[] tok, int len) {
+        for (int i = 0; i < len; i++) if (termChars.get(from + i) != tok[i]) return false;
+        return true;
+    }
+
+    // per-thread buffers; also the TokenSink that collects vocabulary indices
+    private final class Scratch implements TextNormalizer.TokenSink {
+        final TextNormalizer normalizer = new TextNormalizer();
+        final int[] features = new int[MAX_TOKENS];
+        final double[] jll = new double[nClasses];
+        int n;
+
+        int tokenize(CharSequence text) {
+            n = 0;
+            normalizer.tokenize(text, this);
+            return n;
+        }
+
+        @Override
+        public void token(char[] buf, int len, int hash) {
+            if (n == MAX_TOKENS) return;
+            int f = lookup(buf, len, hash);
+            if (f >= 0) features[n++] = f;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package SpamDetector;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Recently confirmed spam, matched by similarity instead of exact text: MinHash over
+ * character shingles, bucketed with locality-sensitive hashing.
+ *
+ * - A message is normalized (TextNormalizer.normalize, as for the verdict cache) and cut
+ *   into overlapping SHINGLE-character shingles, so "won lottory" and "won lottery" share
+ *   most of them. A signature of HASHES MinHash values estimates the Jaccard similarity of
+ *   two shingle sets. It is one-permutation MinHash: each shingle is hashed once and kept
+ *   if it is the smallest in its bin (the top bits of the hash pick one of HASHES bins), so
+ *   a signature costs one hash per shingle, not HASHES. An empty bin copies a filled one,
+ *   picked by a fixed pseudo-random sequence per bin ("optimal densification"), which keeps
+ *   the estimate unbiased for short messages.
+ * - The signature is split into BANDS bands of ROWS values. Each band is one key in a hash
+ *   table, so a lookup is BANDS probes plus a signature compare per candidate, however many
+ *   entries there are. A candidate is a match if at least `similarity` of the MinHash
+ *   values agree. With 16 x 4 a pair at 0.8 similarity shares a band 99.9% of the time; one
+ *   at 0.3 does 12% of the time and is then rejected by the compare.
+ * - Messages under MIN_SHINGLES shingles ("ok", "call me") are never indexed or matched:
+ *   too short to tell a variant from an unrelated message.
+ * - Memory is fixed at construction: a ring of `capacity` entries, oldest first, and an
+ *   open-addressing band table sized for it. Entries stop matching after `windowMillis` and
+ *   are dropped by the next put(), or leave when the ring is full (oldest first).
+ * - put() skips a message that already matches an entry, so a campaign's variants do not
+ *   push everything else out.
+ * - Entries belong to one model id; setModelId() with a different id clears the index.
+ * - Read-mostly: signatures are computed without any lock, and get() probes the tables
+ *   under a StampedLock optimistic read, so lookups never block each other and write
+ *   nothing shared but their LongAdder counters. Only if a writer ran meanwhile is the
+ *   probe repeated under the read lock. put(), remove(), clear() and a model change take
+ *   the write lock.
+ * - Counts (lookups, hits, evictions, size) are for the metrics; toString() summarizes them.
+ */
+public class NearDuplicateIndex<V> {
+
+    // ========== CONFIG ==========
+    private static final int SHINGLE = 4;            // characters per shingle
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;               // MinHash values per band
+    private static final int HASHES = BANDS * ROWS;  // 64: one bit per bin in a long
+    private static final int BIN_SHIFT = 64 - 6;     // top 6 hash bits pick the bin
+    private static final int MIN_SHINGLES = 8;       // shorter messages are not fingerprinted
+
+    private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(() -> new int[HASHES]);
+
+    private final int capacity;
+    private final long windowMillis;
+    private final int minEqual;                      // agreeing MinHash values for a match
+
+    // ring of entries, oldest at head; everything below is written under the write lock
+    private final StampedLock lock = new StampedLock();
+    private final int[][] signatures;
+    private final Object[] values;
+    private final long[] times;
+    private final long[] bandKeys;                   // [slot * BANDS + band]
+    private final BandTable bands;                   // band key -> newest slot with that band
+    private int head;
+    private int size;
+    private volatile long modelId;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder tooShort = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity     entries kept at most
+     * @param windowMillis how long a confirmed message is matched against
+     * @param similarity   estimated Jaccard similarity (0..1) that counts as the same message
+     */
+    public NearDuplicateIndex(int capacity, long windowMillis, double similarity) {
+        this.capacity = Math.max(1, capacity);
+        this.windowMillis = windowMillis;
+        this.minEqual = (int) Math.ceil(Math.min(1.0, Math.max(0.0, similarity)) * HASHES);
+        signatures = new int[this.capacity][HASHES];
+        values = new Object[this.capacity];
+        times = new long[this.capacity];
+        bandKeys = new long[this.capacity * BANDS];
+        bands = new BandTable(this.capacity * BANDS);
+    }
+
+    /** The verdict of a recent entry close enough to text, or null. */
+    public V get(String text) {
+        lookups.increment();
+        int[] sig = SCRATCH.get();
+        if (!signature(text, sig)) {
+            tooShort.increment();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long stamp = lock.tryOptimisticRead();
+        V found = find(sig, now);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = find(sig, now);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (found != null) hits.increment();
+        return found;
+    }
+
+    /** Remembers text as confirmed with value, unless it is too short or already matches an entry. */
+    public void put(String text, V value) {
+        int[] sig = new int[HASHES];
+        if (!signature(text, sig)) return;
+        long now = System.currentTimeMillis();
+        long stamp = lock.writeLock();
+        try {
+            expire(now);
+            if (find(sig, now) != null) return;
+            if (size == capacity) {
+                removeHead();
+                evictions.increment();
+            }
+            int slot = (head + size++) % capacity;
+            signatures[slot] = sig;
+            values[slot] = value;
+            times[slot] = now;
+            for (int b = 0; b < BANDS; b++) {
+                long key = bandKey(sig, b);
+                bandKeys[slot * BANDS + b] = key;
+                bands.put(key, slot);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Forgets every entry text matches (a moderator said it is not spam). */
+    public void remove(String text) {
+        int[] sig = new int[HASHES];
+        if (!signature(text, sig)) return;
+        long stamp = lock.writeLock();
+        try {
+            for (int b = 0; b < BANDS; b++) {
+                int slot = bands.get(bandKey(sig, b));
+                if (slot < 0 || values[slot] == null || !similar(signatures[slot], sig)) continue;
+                for (int k = 0; k < BANDS; k++) bands.remove(bandKeys[slot * BANDS + k], slot);
+                values[slot] = null;     // the ring slot stays until it reaches the head
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Clears every entry if id differs from the model the entries were confirmed under. */
+    public void setModelId(long id) {
+        if (id == modelId) return;
+        long stamp = lock.writeLock();
+        try {
+            if (id == modelId) return;
+            clearLocked();
+            modelId = id;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            clearLocked();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Entries in the ring, including expired ones the next put() drops. */
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int n = size;
+        if (lock.validate(stamp)) return n;
+        stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long lookupCount() { return lookups.sum(); }
+    public long hitCount() { return hits.sum(); }
+    public long expiredCount() { return expired.sum(); }
+    public long evictionCount() { return evictions.sum(); }
+
+    public double hitRate() {
+        long n = lookups.sum();
+        return n == 0 ? 0.0 : (double) hits.sum() / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NearDuplicateIndex[size=%d, lookups=%d, hits=%d, hitRate=%.1f%%, tooShort=%d, expired=%d, evictions=%d]",
+                size(), lookupCount(), hitCount(), hitRate() * 100, tooShort.sum(), expiredCount(), evictionCount());
+    }
+
+    // ----------------- Index -----------------
+
+    // any lock or an optimistic read: then the answer may be torn and is only used once validated
+    @SuppressWarnings("unchecked")
+    private V find(int[] sig, long now) {
+        for (int b = 0; b < BANDS; b++) {
+            int slot = bands.get(bandKey(sig, b));
+            if (slot < 0 || now - times[slot] > windowMillis) continue;
+            Object value = values[slot];
+            if (value != null && similar(signatures[slot], sig)) return (V) value;
+        }
+        return null;
+    }
+
+    private boolean similar(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < HASHES; i++) if (a[i] == b[i]) equal++;
+        return equal >= minEqual;
+    }
+
+    // write lock held
+    private void expire(long now) {
+        while (size > 0 && now - times[head] > windowMillis) {
+            removeHead();
+            expired.increment();
+        }
+    }
+
+    // write lock held: drops the oldest entry and the band keys that still point at it
+    private void removeHead() {
+        for (int b = 0; b < BANDS; b++) bands.remove(bandKeys[head * BANDS + b], head);
+        values[head] = null;
+        head = (head + 1) % capacity;
+        size--;
+    }
+
+    private void clearLocked() {
+        bands.clear();
+        Arrays.fill(values, null);
+        head = 0;
+        size = 0;
+    }
+
+    // ----------------- MinHash -----------------
+
+    // false if the normalized text has fewer than MIN_SHINGLES shingles
+    private static boolean signature(String text, int[] sig) {
+        String s = TextNormalizer.normalize(text);
+        int shingles = s.length() - SHINGLE + 1;
+        if (shingles < MIN_SHINGLES) return false;
+        long filled = 0;                                 // bit b: bin b has a shingle
+        for (int i = 0; i < shingles; i++) {
+            long x = 0;
+            for (int k = 0; k < SHINGLE; k++) x = (x << 16) | s.charAt(i + k);
+            x = mix(x);
+            int bin = (int) (x >>> BIN_SHIFT);
+            int v = (int) x;
+            if ((filled & (1L << bin)) == 0 || v < sig[bin]) sig[bin] = v;
+            filled |= 1L << bin;
+        }
+        // an empty bin takes the value of the first filled bin in its own probe sequence
+        for (int bin = 0; bin < HASHES; bin++) {
+            if ((filled & (1L << bin)) != 0) continue;
+            long h = bin;
+            int from;
+            do {
+                h = mix(h + 0x9E3779B97F4A7C15L);
+                from = (int) (h >>> BIN_SHIFT);
+            } while ((filled & (1L << from)) == 0);
+            sig[bin] = sig[from];
+        }
+        return true;
+    }
+
+    private static long bandKey(int[] sig, int band) {
+        long h = (band + 1) * 0x9E3779B97F4A7C15L;
+        for (int r = 0; r < ROWS; r++) h = mix(h ^ sig[band * ROWS + r]);
+        return h;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Open-addressing long -> slot map with linear probing; slot -1 marks an empty cell. */
+    private static final class BandTable {
+        private final long[] keys;
+        private final int[] slots;
+        private final int mask;
+
+        BandTable(int maxKeys) {
+            int size = 2;
+            while (size < 2 * maxKeys) size *= 2;   // at most half full
+            keys = new long[size];
+            slots = new int[size];
+            mask = size - 1;
+            clear();
+        }
+
+        // bounded, so an optimistic read racing a backward shift cannot spin
+        int get(long key) {
+            for (int i = home(key), n = 0; slots[i] >= 0 && n <= mask; i = (i + 1) & mask, n++) {
+                if (keys[i] == key) return slots[i];
+            }
+            return -1;
+        }
+
+        void put(long key, int slot) {
+            int i = home(key);
+            while (slots[i] >= 0 && keys[i] != key) i = (i + 1) & mask;
+            keys[i] = key;
+            slots[i] = slot;
+        }
+
+        // removes key only if it still points at slot; backward-shift deletion keeps probes intact
+        void remove(long key, int slot) {
+            int i = home(key);
+            while (slots[i] >= 0 && keys[i] != key) i = (i + 1) & mask;
+            if (slots[i] != slot) return;
+            int hole = i;
+            for (int j = (i + 1) & mask; slots[j] >= 0; j = (j + 1) & mask) {
+                if (((j - home(keys[j])) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    slots[hole] = slots[j];
+                    hole = j;
+                }
+            }
+            slots[hole] = -1;
+        }
+
+        void clear() {
+            Arrays.fill(slots, -1);
+        }
+
+        private int home(long key) {
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package SpamDetector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Single-threaded event-loop chat server on ServerSocketChannel / Selector.
+ *
+ * Speaks ChatProtocol: every connection starts on v1 (DataOutputStream.writeUTF framing,
+ * 2-byte big-endian length + modified UTF-8) with ChatProtocol.OFFER, and switches to v2
+ * frames when the client answers ChatProtocol.HELLO. Handlers only see ChatProtocol.Message
+ * records.
+ *
+ * - Reads go into one shared buffer owned by the loop; a connection only keeps the bytes
+ *   of an unfinished frame, so tens of thousands of idle clients cost a socket and a few
+ *   small objects each, not a thread and a stack. A v2 frame too big for the shared
+ *   buffer is read into its own buffer.
+ * - send()/broadcast() may be called from any thread: frames are queued on the connection
+ *   and the loop writes them, registering OP_WRITE only while a socket is backed up.
+ *   Everything queued for a connection goes out in one gathering write.
+ * - Each connection's queue is bounded; a full queue is handled by the same
+ *   OutboundQueue.SlowConsumerPolicy as the blocking server.
+ * - Handler callbacks run on the loop thread and must not block. A handler that cannot take
+ *   a message yet (its next stage is full) returns false from onMessage(): the connection
+ *   keeps that message and the ones after it, stops reading (OP_READ is cleared, so TCP
+ *   pushes back on that client alone) and offers them again after resume(). The loop goes
+ *   on serving every other connection and flushing outbound queues meanwhile.
+ */
+public class NioChatServer implements Closeable {
+
+    public interface Handler {
+        void onConnect(Connection c);
+        /** false: not taken; the message is offered again, first, after resume(c). */
+        boolean onMessage(Connection c, ChatProtocol.Message message);
+        void onDisconnect(Connection c);
+    }
+
+    // ========== CONFIG ==========
+    private static final int READ_BUFFER_SIZE = 64 * 1024;   // > largest v1 frame (2 + 65535)
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private final int port;
+    private final Handler handler;
+    private final int queueCapacity;
+    private final OutboundQueue.SlowConsumerPolicy policy;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Connection> writeRequests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Connection> resumeRequests = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE + 2);
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loop;
+    private volatile boolean running;
+    private final AtomicInteger paused = new AtomicInteger();
+
+    public NioChatServer(int port, Handler handler) {
+        this(port, handler, DEFAULT_QUEUE_CAPACITY, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+    }
+
+    public NioChatServer(int port, Handler handler, int queueCapacity, OutboundQueue.SlowConsumerPolicy policy) {
+        this.port = port;
+        this.handler = handler;
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.policy = policy;
+    }
+
+    /** Binds the port (errors surface here) and starts the event-loop thread. */
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        loop = new Thread(this::runLoop, "NioChatServer-Loop");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    public int connectionCount() {
+        return connections.size();
+    }
+
+    /** Queue one message for one client, in its protocol version. Safe from any thread. */
+    public void send(Connection c, ChatProtocol.Encoded message) {
+        enqueue(c, message::frame);
+    }
+
+    /**
+     * Queue one message for every client except exclude (may be null). Every recipient on
+     * the same protocol version gets a view of the same encoded bytes.
+     */
+    public void broadcast(ChatProtocol.Encoded message, Connection exclude) {
+        for (Connection c : connections) {
+            if (c != exclude) enqueue(c, message::frame);
+        }
+    }
+
+    /** Offer a paused connection's held messages again and read on. Safe from any thread. */
+    public void resume(Connection c) {
+        resumeRequests.add(c);
+        selector.wakeup();
+    }
+
+    /** Connections that are not being read because the handler refused a message. */
+    public int pausedCount() {
+        return paused.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (selector != null) selector.wakeup();
+        try { if (loop != null) loop.join(1000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    /** Frames queued for one connection right now: the deepest queue, or (total) all of them. */
+    public int outboundDepth(boolean total) {
+        int depth = 0;
+        for (Connection c : connections) {
+            synchronized (c.outbound) {
+                depth = total ? depth + c.outbound.size() : Math.max(depth, c.outbound.size());
+            }
+        }
+        return depth;
+    }
+
+    /** Every connection's queued frames right now, in no particular order. */
+    public int[] outboundDepths() {
+        int[] depths = new int[connections.size()];
+        int n = 0;
+        for (Connection c : connections) {
+            if (n == depths.length) depths = Arrays.copyOf(depths, n * 2 + 1);   // connected meanwhile
+            synchronized (c.outbound) {
+                depths[n++] = c.outbound.size();
+            }
+        }
+        return Arrays.copyOf(depths, n);
+    }
+
+    /** Per-connection queue depth, high-water mark and dropped count. */
+    public String outboundReport() {
+        StringBuilder sb = new StringBuilder("Outbound queues (" + connections.size() + " clients)");
+        for (Connection c : connections) {
+            synchronized (c.outbound) {
+                sb.append(String.format("%n  %s depth=%d/%d max=%d dropped=%d",
+                        c.remoteAddress(), c.outbound.size(), queueCapacity, c.maxDepth, c.dropped));
+            }
+        }
+        return sb.toString();
+    }
+
+    private void enqueue(Connection c, IntFunction<Frame> frameFor) {
+        synchronized (c.outbound) {
+            if (c.closed) return;
+            while (c.outbound.size() >= queueCapacity && !c.closed && !c.kill) {
+                // the loop thread must never wait on itself, so BLOCK degrades to DROP_OLDEST there
+                OutboundQueue.SlowConsumerPolicy p = policy;
+                if (p == OutboundQueue.SlowConsumerPolicy.BLOCK && Thread.currentThread() == loop) {
+                    p = OutboundQueue.SlowConsumerPolicy.DROP_OLDEST;
+                }
+                if (p == OutboundQueue.SlowConsumerPolicy.DROP_OLDEST) {
+                    // a partly written head has to finish, or the stream would be corrupted;
+                    // the protocol switch confirmation must arrive too
+                    ByteBuffer head = c.outbound.poll();
+                    if (head.position() > 0 || head == c.switchFrame) {
+                        boolean droppedNext = c.outbound.poll() != null;
+                        c.outbound.addFirst(head);
+                        if (!droppedNext) break;   // nothing else to drop: overfill by one
+                    }
+                    c.dropped++;
+                } else if (p == OutboundQueue.SlowConsumerPolicy.DISCONNECT) {
+                    c.dropped += c.outbound.size() + 1;
+                    c.kill = true;   // the loop closes it
+                } else {
+                    try {
+                        c.outbound.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            if (c.closed) return;
+            if (!c.kill) {
+                Frame frame = frameFor.apply(c.protocol);
+                if (frame == null) return;
+                c.outbound.add(frame.view());
+                c.maxDepth = Math.max(c.maxDepth, c.outbound.size());
+            }
+        }
+        writeRequests.add(c);
+        selector.wakeup();
+    }
+
+    // loop thread: the client said HELLO; confirm on v1, then everything after it is v2
+    private void switchToV2(Connection c) {
+        c.readProtocol = ChatProtocol.V2;
+        synchronized (c.outbound) {
+            if (c.closed) return;
+            c.switchFrame = ChatProtocol.HELLO_OK_FRAME.view();
+            c.outbound.add(c.switchFrame);
+            c.protocol = ChatProtocol.V2;
+        }
+        writeRequests.add(c);
+        selector.wakeup();   // flushed on the next pass of the loop
+    }
+
+    // ----------------- Event loop -----------------
+
+    private void runLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Connection c;
+                while ((c = writeRequests.poll()) != null) flush(c);
+                while ((c = resumeRequests.poll()) != null) resumeReading(c);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if (key.isReadable()) read(conn);
+                    if (key.isValid() && key.isWritable()) flush(conn);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("NioChatServer stopped: " + e.getMessage());
+        } finally {
+            for (Connection c : connections) disconnect(c);
+            try { serverChannel.close(); } catch (IOException ignored) {}
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = serverChannel.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            Connection c = new Connection(ch);
+            c.outbound.add(ChatProtocol.OFFER_FRAME.view());   // ahead of any broadcast
+            c.key = ch.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, c);
+            connections.add(c);
+            handler.onConnect(c);
+        }
+    }
+
+    private void read(Connection c) {
+        if (c.large != null) {
+            readLarge(c);
+            return;
+        }
+        ByteBuffer buf = readBuffer;
+        buf.clear();
+        if (c.partial != null) buf.put(c.partial);
+        int n;
+        try {
+            n = c.channel.read(buf);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            disconnect(c);
+            return;
+        }
+        buf.flip();
+        consume(c, buf);
+    }
+
+    // the frames in buf, until the handler refuses one; keeps the rest in c.partial
+    private void consume(Connection c, ByteBuffer buf) {
+        try {
+            while (c.held.isEmpty() && (c.readProtocol == ChatProtocol.V1 ? readV1(c, buf) : readV2(c, buf))) {
+                // one frame per iteration
+            }
+        } catch (IOException e) {
+            System.err.println("NioChatServer: bad frame from " + c.remoteAddress() + ": " + e.getMessage());
+            disconnect(c);
+            return;
+        }
+        // keep only an unfinished frame; idle connections hold nothing
+        if (buf.hasRemaining()) {
+            byte[] rest = new byte[buf.remaining()];
+            buf.get(rest);
+            c.partial = rest;
+        } else {
+            c.partial = null;
+        }
+    }
+
+    // one writeUTF string, false when it is not complete yet
+    private boolean readV1(Connection c, ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 2) return false;
+        int len = ((buf.get(buf.position()) & 0xff) << 8) | (buf.get(buf.position() + 1) & 0xff);
+        if (buf.remaining() < 2 + len) return false;
+        buf.position(buf.position() + 2);
+        String message = Frame.decode(buf, len);
+        if (ChatProtocol.HELLO.equals(message)) {
+            switchToV2(c);
+        } else {
+            dispatch(c, List.of(ChatProtocol.fromLegacy(message)));
+        }
+        return true;
+    }
+
+    // one v2 frame, false when it is not complete yet
+    private boolean readV2(Connection c, ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 4) return false;
+        int len = buf.getInt(buf.position());
+        ChatProtocol.checkLength(len);
+        if (buf.remaining() < 4 + len) {
+            if (4 + len > READ_BUFFER_SIZE) {
+                // can never fit the shared buffer: collect it in its own
+                buf.position(buf.position() + 4);
+                c.large = ByteBuffer.allocate(len);
+                c.large.put(buf);
+            }
+            return false;
+        }
+        buf.position(buf.position() + 4);
+        ByteBuffer body = buf.slice();
+        body.limit(len);
+        buf.position(buf.position() + len);
+        dispatch(c, ChatProtocol.decode(body));
+        return true;
+    }
+
+    private void readLarge(Connection c) {
+        try {
+            if (c.channel.read(c.large) < 0) {
+                disconnect(c);
+                return;
+            }
+            if (c.large.hasRemaining()) return;
+            c.large.flip();
+            List<ChatProtocol.Message> batch = ChatProtocol.decode(c.large);
+            c.large = null;
+            dispatch(c, batch);
+        } catch (IOException e) {
+            System.err.println("NioChatServer: bad frame from " + c.remoteAddress() + ": " + e.getMessage());
+            disconnect(c);
+        }
+    }
+
+    private void dispatch(Connection c, List<ChatProtocol.Message> batch) {
+        for (ChatProtocol.Message m : batch) {
+            if (!c.held.isEmpty() || !handler.onMessage(c, m)) c.held.add(m);
+        }
+        if (!c.held.isEmpty()) pause(c);
+    }
+
+    // loop thread: stop reading until resume(); writes go on
+    private void pause(Connection c) {
+        if (c.readPaused || !c.key.isValid()) return;
+        c.readPaused = true;
+        paused.incrementAndGet();
+        synchronized (c.outbound) {
+            c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    // loop thread: offer the held messages again, then the frames already buffered, then read
+    private void resumeReading(Connection c) {
+        if (c.closed || !c.readPaused) return;
+        ChatProtocol.Message m;
+        while ((m = c.held.peek()) != null) {
+            if (!handler.onMessage(c, m)) return;   // still full; the handler asks again
+            c.held.poll();
+        }
+        c.readPaused = false;
+        paused.decrementAndGet();
+        if (c.partial != null) {
+            ByteBuffer buf = readBuffer;
+            buf.clear();
+            buf.put(c.partial);
+            buf.flip();
+            consume(c, buf);
+            if (c.readPaused || c.closed) return;
+        }
+        if (!c.key.isValid()) return;
+        synchronized (c.outbound) {
+            c.key.interestOps(c.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void flush(Connection c) {
+        if (!c.key.isValid()) return;
+        if (c.kill) {
+            System.err.println("NioChatServer: disconnecting slow consumer " + c.remoteAddress());
+            disconnect(c);
+            return;
+        }
+        try {
+            synchronized (c.outbound) {
+                // one gathering write for everything queued
+                while (!c.outbound.isEmpty()) {
+                    ByteBuffer[] frames = c.outbound.toArray(new ByteBuffer[0]);
+                    c.channel.write(frames);
+                    while (!c.outbound.isEmpty() && !c.outbound.peek().hasRemaining()) c.outbound.poll();
+                    if (!c.outbound.isEmpty()) break;   // socket buffer full
+                }
+                c.outbound.notifyAll();   // BLOCK senders waiting for room
+                // only ask for OP_WRITE while backed up, otherwise the selector spins
+                int read = c.readPaused ? 0 : SelectionKey.OP_READ;
+                int ops = c.outbound.isEmpty() ? read : read | SelectionKey.OP_WRITE;
+                if (c.key.interestOps() != ops) c.key.interestOps(ops);
+            }
+        } catch (IOException e) {
+            disconnect(c);
+        }
+    }
+
+    private void disconnect(Connection c) {
+        synchronized (c.outbound) {
+            if (c.closed) return;
+            c.closed = true;
+            c.outbound.clear();
+            c.outbound.notifyAll();
+        }
+        connections.remove(c);
+        c.held.clear();
+        if (c.readPaused) {
+            c.readPaused = false;
+            paused.decrementAndGet();
+        }
+        if (c.key != null) c.key.cancel();
+        try { c.channel.close(); } catch (IOException ignored) {}
+        handler.onDisconnect(c);
+    }
+
+    // ----------------- Connection -----------------
+
+    public static final class Connection {
+        private final SocketChannel channel;
+        private final SocketAddress remote;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>(2);
+        private SelectionKey key;
+        private byte[] partial;          // loop thread only
+        private final ArrayDeque<ChatProtocol.Message> held = new ArrayDeque<>(2);   // loop thread only: refused
+        private volatile boolean readPaused;   // written on the loop thread; flush() reads it
+        private ByteBuffer large;        // loop thread only: v2 frame bigger than the read buffer
+        private int readProtocol = ChatProtocol.V1;   // loop thread only
+        private int protocol = ChatProtocol.V1;       // guarded by outbound: what we send
+        private ByteBuffer switchFrame;  // guarded by outbound: HELLO_OK, never dropped
+        private boolean closed;          // guarded by outbound
+        private boolean kill;            // guarded by outbound: DISCONNECT policy tripped
+        private int maxDepth;            // guarded by outbound
+        private long dropped;            // guarded by outbound
+        /** Free slot for the handler's per-connection state (touched on the loop thread). */
+        public Object attachment;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.remote = channel.socket().getRemoteSocketAddress();
+        }
+
+        public SocketAddress remoteAddress() {
+            return remote;
+        }
+
+        public int protocol() {
+            synchronized (outbound) {
+                return protocol;
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package SpamDetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Online MultinomialNB updates from moderator feedback, layered over a NaiveBayesModel.
+ *
+ * - The mapped model file stays read-only. learn() adds the message's tf-idf row to its
+ *   class's feature counts and one document to its class count, which is what sklearn's
+ *   partial_fit does with the vocabulary and idf frozen (words the model never saw are
+ *   ignored until the next full retrain).
+ * - feature_log_prob = log(count + alpha) - log(class total + alpha * nFeatures) is kept as
+ *   a numerator per feature and one normaliser per class, so an update recomputes only the
+ *   features in the message plus one value per class, never the whole table.
+ * - The tables are AtomicLongArrays of double bits. Classification reads them without a
+ *   lock and never waits; writers (a moderator's click, so rare) serialise on their own lock.
+ *   A verdict computed during an update may see it half applied, which is harmless.
+ * - modelId() changes, and with it the verdict cache is dropped, once the updates since the
+ *   last change add up to INVALIDATE_SHARE of a class: the learned feature mass relative to
+ *   the class's total, plus the documents relative to its count. Single clicks barely move
+ *   other verdicts, so a busy moderator does not keep the cache cold; the message that was
+ *   corrected is dropped from the cache right away (ChatServerEngine.SpamFilter.learn).
+ * - Only the deltas are checkpointed, every CHECKPOINT_SECONDS while there are unsaved
+ *   updates and at exit (temp file + atomic rename), and only while this model is the one
+ *   being served. On startup they are loaded if they were learned on the same model file,
+ *   and ignored with a warning after a retrain.
+ *
+ * Checkpoint format (DataOutputStream, big-endian):
+ *   u32 MAGIC, u32 VERSION, u64 base model id, u32 classes, u32 features, u64 updates,
+ *   f64[classes] document count deltas, u32 entries, then per entry u32 feature, u8 class, f64 delta
+ */
+public final class OnlineLearner {
+
+    // ========== CONFIG ==========
+    private static final long CHECKPOINT_SECONDS = 60;
+    private static final int MAGIC = 0x534E424C;   // "SNBL"
+    private static final int VERSION = 1;
+    private static final double INVALIDATE_SHARE = 0.01;   // of a class's counts, learned before modelId() changes
+
+    private final NaiveBayesModel model;
+    private final long baseModelId;
+    private final File checkpointFile;
+    private final int nClasses;
+    private final int nFeatures;
+    private final double alpha;
+
+    // read by classification without locking (double bits)
+    private final AtomicLongArray logNumerator;   // [feature * nClasses + class] log(count + alpha)
+    private final AtomicLongArray logNorm;        // [class] log(total count + alpha * nFeatures)
+    private final AtomicLongArray logPrior;       // [class] log(docs) - log(all docs)
+    private volatile long updates;
+    private volatile long generation;             // modelId() changes with it; 0 while nothing is learned
+
+    // written under lock only
+    private final ReentrantLock lock = new ReentrantLock();
+    private final double[] featureDelta;          // learned on top of the file's feature_count_
+    private final double[] classTotal;            // base + learned, summed over features
+    private final double[] docDelta;              // learned on top of class_count_
+    private final int[] rowFeatures = new int[NaiveBayesModel.maxTokens()];
+    private final double[] rowValues = new double[NaiveBayesModel.maxTokens()];
+    private long savedUpdates;
+    private double pendingShare;                  // learned since generation last changed
+
+    private final ScheduledExecutorService checkpoints;
+    private final Thread saveOnExit;
+
+    OnlineLearner(NaiveBayesModel model, long baseModelId, File checkpointFile) {
+        this.model = model;
+        this.baseModelId = baseModelId;
+        this.checkpointFile = checkpointFile;
+        this.nClasses = model.classCount();
+        this.nFeatures = model.featureCount();
+        this.alpha = model.alpha();
+        this.logNumerator = new AtomicLongArray(nFeatures * nClasses);
+        this.logNorm = new AtomicLongArray(nClasses);
+        this.logPrior = new AtomicLongArray(nClasses);
+        this.featureDelta = new double[nFeatures * nClasses];
+        this.classTotal = new double[nClasses];
+        this.docDelta = new double[nClasses];
+
+        for (int f = 0; f < nFeatures; f++) {
+            for (int c = 0; c < nClasses; c++) {
+                double count = model.featureCountRaw(f, c);
+                classTotal[c] += count;
+                setDouble(logNumerator, f * nClasses + c, Math.log(count + alpha));
+            }
+        }
+        lock.lock();
+        try {
+            if (checkpointFile != null && checkpointFile.exists()) load();
+            for (int c = 0; c < nClasses; c++) setDouble(logNorm, c, Math.log(classTotal[c] + alpha * nFeatures));
+            recomputePrior();
+        } finally {
+            lock.unlock();
+        }
+
+        checkpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "OnlineLearner-Checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpoints.scheduleWithFixedDelay(this::checkpointQuietly, CHECKPOINT_SECONDS, CHECKPOINT_SECONDS, TimeUnit.SECONDS);
+        saveOnExit = new Thread(this::checkpointQuietly, "OnlineLearner-Save");
+        Runtime.getRuntime().addShutdownHook(saveOnExit);
+    }
+
+    // the model was dropped by a hot reload: no more checkpoints, let it be collected
+    void stop() {
+        checkpoints.shutdownNow();
+        try {
+            Runtime.getRuntime().removeShutdownHook(saveOnExit);
+        } catch (IllegalStateException alreadyExiting) {
+            // the hook runs (or ran) anyway
+        }
+    }
+
+    // ----------------- Reads (lock-free) -----------------
+
+    /** Updates learned so far, including those loaded from the checkpoint. */
+    public long updates() {
+        return updates;
+    }
+
+    double featureLogProb(int feature, int classIndex) {
+        return getDouble(logNumerator, feature * nClasses + classIndex) - getDouble(logNorm, classIndex);
+    }
+
+    double classLogPrior(int classIndex) {
+        return getDouble(logPrior, classIndex);
+    }
+
+    // the file's id while nothing is learned; afterwards a different id per generation
+    long modelId(long fileModelId) {
+        long g = generation;
+        return g == 0 ? fileModelId : fileModelId ^ (g * 0x9E3779B97F4A7C15L);
+    }
+
+    // ----------------- Updates -----------------
+
+    /**
+     * Fold one labelled message into the model. Returns the number of known features it
+     * contributed (0: nothing the model knows, only the class count moved).
+     */
+    public int learn(String text, int classIndex) {
+        if (classIndex < 0 || classIndex >= nClasses) throw new IllegalArgumentException("class " + classIndex);
+        lock.lock();
+        try {
+            int n = model.row(text, rowFeatures, rowValues);
+            double added = 0.0;
+            for (int k = 0; k < n; k++) {
+                int i = rowFeatures[k] * nClasses + classIndex;
+                featureDelta[i] += rowValues[k];
+                added += rowValues[k];
+                setDouble(logNumerator, i, Math.log(model.featureCountRaw(rowFeatures[k], classIndex) + featureDelta[i] + alpha));
+            }
+            classTotal[classIndex] += added;
+            setDouble(logNorm, classIndex, Math.log(classTotal[classIndex] + alpha * nFeatures));
+            docDelta[classIndex] += 1.0;
+            recomputePrior();
+            pendingShare += added / classTotal[classIndex] + 1.0 / (model.classCountRaw(classIndex) + docDelta[classIndex]);
+            if (pendingShare >= INVALIDATE_SHARE || generation == 0) {
+                generation++;
+                pendingShare = 0.0;
+            }
+            updates++;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // lock held; class_log_prior_ = log(class_count_) - log(sum(class_count_))
+    private void recomputePrior() {
+        double all = 0.0;
+        for (int c = 0; c < nClasses; c++) all += model.classCountRaw(c) + docDelta[c];
+        for (int c = 0; c < nClasses; c++) {
+            setDouble(logPrior, c, Math.log(model.classCountRaw(c) + docDelta[c]) - Math.log(all));
+        }
+    }
+
+    // ----------------- Checkpoints -----------------
+
+    /** Writes the deltas if anything was learned since the last checkpoint. */
+    public void checkpoint() throws IOException {
+        if (checkpointFile == null) return;
+        lock.lock();
+        try {
+            if (updates == savedUpdates) return;
+            File tmp = new File(checkpointFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(baseModelId);
+                out.writeInt(nClasses);
+                out.writeInt(nFeatures);
+                out.writeLong(updates);
+                for (double d : docDelta) out.writeDouble(d);
+                int entries = 0;
+                for (double d : featureDelta) if (d != 0.0) entries++;
+                out.writeInt(entries);
+                for (int i = 0; i < featureDelta.length; i++) {
+                    if (featureDelta[i] == 0.0) continue;
+                    out.writeInt(i / nClasses);
+                    out.writeByte(i % nClasses);
+                    out.writeDouble(featureDelta[i]);
+                }
+            }
+            Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            savedUpdates = updates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the checkpoint file belongs to the model being served; a version kept for rollback waits
+    private void checkpointQuietly() {
+        if (NaiveBayesModel.shared() != model) return;
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("OnlineLearner: checkpoint failed: " + e.getMessage());
+        }
+    }
+
+    // lock held, constructor only: applies the deltas to featureDelta, classTotal, docDelta and logNumerator
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("not a checkpoint");
+            long id = in.readLong();
+            if (id != baseModelId || in.readInt() != nClasses || in.readInt() != nFeatures) {
+                System.err.println("OnlineLearner: " + checkpointFile + " was learned on another model, ignored");
+                return;
+            }
+            long n = in.readLong();
+            double[] docs = new double[nClasses];
+            for (int c = 0; c < nClasses; c++) docs[c] = in.readDouble();
+            int entries = in.readInt();
+            double[] deltas = new double[featureDelta.length];
+            for (int e = 0; e < entries; e++) {
+                int f = in.readInt(), c = in.readUnsignedByte();
+                double d = in.readDouble();
+                if (f < 0 || f >= nFeatures || c >= nClasses) throw new IOException("entry out of range");
+                deltas[f * nClasses + c] += d;
+            }
+            // all read: apply
+            System.arraycopy(docs, 0, docDelta, 0, nClasses);
+            for (int i = 0; i < deltas.length; i++) {
+                if (deltas[i] == 0.0) continue;
+                featureDelta[i] = deltas[i];
+                classTotal[i % nClasses] += deltas[i];
+                setDouble(logNumerator, i, Math.log(model.featureCountRaw(i / nClasses, i % nClasses) + deltas[i] + alpha));
+            }
+            updates = savedUpdates = n;
+            if (n > 0) generation = 1;
+            System.err.println("OnlineLearner: loaded " + n + " updates from " + checkpointFile);
+        } catch (IOException e) {
+            System.err.println("OnlineLearner: cannot load " + checkpointFile + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        double[] docs;
+        lock.lock();
+        try {
+            docs = docDelta.clone();
+        } finally {
+            lock.unlock();
+        }
+        StringBuilder sb = new StringBuilder("OnlineLearner[updates=").append(updates);
+        for (int c = 0; c < nClasses; c++) sb.append(", ").append(model.label(c)).append("=+").append((long) docs[c]);
+        return sb.append(", unsaved=").append(updates - savedUpdates).append(']').toString();
+    }
+
+    private static double getDouble(AtomicLongArray a, int i) {
+        return Double.longBitsToDouble(a.get(i));
+    }
+
+    private static void setDouble(AtomicLongArray a, int i, double v) {
+        a.set(i, Double.doubleToRawLongBits(v));
+    }
+}
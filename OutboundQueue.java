@@ -0,0 +1,275 @@
+package SpamDetector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded outbound queue for one blocking connection, drained by a single writer.
+ *
+ * - offer() only queues; no caller ever writes to the socket or waits on another
+ *   caller's write, so a broadcast is N cheap offers instead of N pool tasks fighting
+ *   over stream locks.
+ * - Messages are queued as Frame views: a broadcast encodes once and every recipient
+ *   queue shares the bytes. offer(ChatProtocol.Encoded) picks the frame for the
+ *   connection's protocol version under the queue lock, so nothing encoded for the old
+ *   version can land behind switchProtocol()'s confirmation frame.
+ * - A drain task is submitted to the executor when the queue goes from idle to busy.
+ *   It takes everything queued and writes it in one go, a gathering write when the
+ *   socket has a channel, otherwise one copy into a single buffer, then repeats until
+ *   the queue is empty. At most one drain runs per connection.
+ * - When the queue is full the SlowConsumerPolicy decides: drop the oldest message,
+ *   disconnect the client, or block the sender until the writer catches up.
+ * - depth / maxDepth / sent / dropped are kept for metrics.
+ */
+public class OutboundQueue {
+
+    public enum SlowConsumerPolicy {
+        /** Discard the oldest queued message to make room (chat stays live, a slow client misses some). */
+        DROP_OLDEST,
+        /** Close the connection: a client that cannot keep up is cut off. */
+        DISCONNECT,
+        /** Make the sender wait for room (lossless, but a stuck client slows everyone it hears from). */
+        BLOCK
+    }
+
+    private final String name;
+    private final OutputStream out;
+    private final GatheringByteChannel channel;   // null: plain stream socket
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final Executor executor;
+    private final Runnable onClose;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<ByteBuffer> queue;
+    private boolean draining;   // a drain task is scheduled or running
+    private boolean closed;
+    private int maxDepth;
+    private int protocol = ChatProtocol.V1;
+    private ByteBuffer switchFrame;   // protocol confirmation: never dropped
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param socket  the client socket; nobody else may write to it
+     * @param onClose run once when the queue closes because of a write error or DISCONNECT
+     */
+    public OutboundQueue(String name, Socket socket, int capacity, SlowConsumerPolicy policy,
+                         Executor executor, Runnable onClose) throws IOException {
+        this(name, socket.getChannel(), socket.getOutputStream(), capacity, policy, executor, onClose);
+    }
+
+    /** A queue draining into a plain stream (benchmarks and tools: no socket behind it). */
+    OutboundQueue(String name, OutputStream out, int capacity, SlowConsumerPolicy policy,
+                  Executor executor, Runnable onClose) {
+        this(name, null, out, capacity, policy, executor, onClose);
+    }
+
+    private OutboundQueue(String name, SocketChannel channel, OutputStream out, int capacity,
+                          SlowConsumerPolicy policy, Executor executor, Runnable onClose) {
+        this.name = name;
+        // a blocking SocketChannel (sockets accepted through ServerSocketChannel) writes directly
+        this.channel = channel != null && channel.isBlocking() ? channel : null;
+        this.out = out;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.executor = executor;
+        this.onClose = onClose;
+        this.queue = new ArrayDeque<>(Math.min(this.capacity, 16));
+    }
+
+    /** Encode and queue one message; prefer offer(Frame) when sending to several clients. */
+    public boolean offer(String message) throws InterruptedException, UTFDataFormatException {
+        return offer(Frame.utf(message));
+    }
+
+    /** Queue a frame as-is, whatever the protocol. Returns false if the connection is (or just got) closed. */
+    public boolean offer(Frame frame) throws InterruptedException {
+        return offer(version -> frame);
+    }
+
+    /** Queue a message encoded for this connection's protocol (skipped if it has no form there). */
+    public boolean offer(ChatProtocol.Encoded message) throws InterruptedException {
+        return offer(message::frame);
+    }
+
+    /**
+     * Queue confirmation (ahead of anything offered afterwards) and encode everything
+     * offered from now on for version.
+     */
+    public void switchProtocol(int version, Frame confirmation) {
+        lock.lock();
+        try {
+            if (closed) return;
+            switchFrame = confirmation.view();
+            queue.add(switchFrame);   // may overfill by one
+            protocol = version;
+            scheduleDrain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean offer(IntFunction<Frame> frameFor) throws InterruptedException {
+        boolean disconnect = false;
+        lock.lock();
+        try {
+            if (closed) return false;
+            while (queue.size() >= capacity && !closed) {
+                if (policy == SlowConsumerPolicy.DROP_OLDEST) {
+                    ByteBuffer oldest = queue.poll();
+                    if (oldest == switchFrame) {
+                        boolean droppedNext = queue.poll() != null;
+                        queue.addFirst(oldest);
+                        if (!droppedNext) break;   // nothing else to drop: overfill by one
+                    }
+                    dropped.incrementAndGet();
+                } else if (policy == SlowConsumerPolicy.DISCONNECT) {
+                    dropped.addAndGet(queue.size() + 1);
+                    disconnect = true;
+                    break;
+                } else {
+                    notFull.await();
+                }
+            }
+            if (!disconnect) {
+                if (closed) return false;
+                Frame frame = frameFor.apply(protocol);
+                if (frame == null) return true;
+                queue.add(frame.view());
+                maxDepth = Math.max(maxDepth, queue.size());
+                scheduleDrain();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        System.err.println("OutboundQueue: disconnecting slow consumer " + name);
+        closeAndNotify();
+        return false;
+    }
+
+    // lock held
+    private void scheduleDrain() {
+        if (!draining) {
+            draining = true;
+            executor.execute(this::drain);
+        }
+    }
+
+    public void close() {
+        closeOnce();
+    }
+
+    // true for the one caller that actually closed it
+    private boolean closeOnce() {
+        lock.lock();
+        try {
+            if (closed) return false;
+            closed = true;
+            queue.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try { out.close(); } catch (IOException ignored) {}
+        return true;
+    }
+
+    public String name() { return name; }
+    public int capacity() { return capacity; }
+
+    public int protocol() {
+        lock.lock();
+        try { return protocol; } finally { lock.unlock(); }
+    }
+    public long sentCount() { return sent.get(); }
+    public long droppedCount() { return dropped.get(); }
+
+    public int depth() {
+        lock.lock();
+        try { return queue.size(); } finally { lock.unlock(); }
+    }
+
+    public int maxDepth() {
+        lock.lock();
+        try { return maxDepth; } finally { lock.unlock(); }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s depth=%d/%d max=%d sent=%d dropped=%d",
+                name, depth(), capacity, maxDepth(), sentCount(), droppedCount());
+    }
+
+    // ----------------- Writer -----------------
+
+    private void drain() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || queue.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+                batch.addAll(queue);
+                queue.clear();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                write(batch);
+                sent.addAndGet(batch.size());
+            } catch (IOException e) {
+                lock.lock();
+                try { draining = false; } finally { lock.unlock(); }
+                closeAndNotify();
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    // all queued frames in one gathering write, or one copy and one stream write
+    private void write(List<ByteBuffer> batch) throws IOException {
+        if (channel != null) {
+            ByteBuffer[] views = batch.toArray(new ByteBuffer[0]);
+            long remaining = 0;
+            for (ByteBuffer b : views) remaining += b.remaining();
+            while (remaining > 0) remaining -= channel.write(views);
+            return;
+        }
+        int total = 0;
+        for (ByteBuffer b : batch) total += b.remaining();
+        byte[] bytes = new byte[total];   // only while draining: idle connections hold no buffer
+        int p = 0;
+        for (ByteBuffer b : batch) {
+            int n = b.remaining();
+            b.get(bytes, p, n);
+            p += n;
+        }
+        out.write(bytes);
+        out.flush();
+    }
+
+    private void closeAndNotify() {
+        if (closeOnce() && onClose != null) onClose.run();
+    }
+}
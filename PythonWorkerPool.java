@@ -0,0 +1,356 @@
+package SpamDetector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of long-lived "python predict.py --serve" workers.
+ *
+ * Each worker unpickles the sklearn model once and then answers one line per request:
+ *   request:  id \t P \t escaped-message      response: id \t label|confidence
+ *   health:   id \t H                         response: id \t ok
+ *   batch:    id \t B \t msg \t msg ...         response: id \t label|conf \t label|conf ...
+ *
+ * Requests carry an id, so several can be in flight (pipelined) on one worker.
+ * A background check restarts workers whose process died or whose oldest request
+ * has been waiting longer than the request timeout (hung model / interpreter).
+ * The same check watches the model file: once a changed file has held still for one
+ * check, every worker is restarted so it unpickles the new model. {@link #modelStamp()}
+ * says which file the answers come from, so callers can key caches on it without
+ * touching the file themselves.
+ */
+public class PythonWorkerPool {
+
+    // ========== CONFIG ==========
+    private static final long REQUEST_TIMEOUT_MS = 3000;   // same budget as the old per-process waitFor
+    private static final long HEALTH_INTERVAL_MS = 5000;
+
+    private final String pythonCmd;
+    private final String script;
+    private final File model;                      // null: not watched
+    private volatile long modelStamp;             // file the workers loaded; 0 while they restart
+    private long pendingStamp;                    // health thread only
+    private final Worker[] workers;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private final ScheduledExecutorService health;
+    private final LongAdder timeouts = new LongAdder();   // requests given up after REQUEST_TIMEOUT_MS
+    private final LongAdder failures = new LongAdder();   // worker died or answered garbage
+
+    public PythonWorkerPool(String pythonCmd, String script, int size) {
+        this(pythonCmd, script, null, size);
+    }
+
+    /** Pool whose workers load {@code model}; they are restarted when the file changes. */
+    public PythonWorkerPool(String pythonCmd, String script, File model, int size) {
+        this.pythonCmd = pythonCmd;
+        this.script = script;
+        this.model = model;
+        // stamped before the workers start, so a file replaced meanwhile is reloaded later
+        this.modelStamp = model == null ? 1 : stamp(model);
+        this.pendingStamp = modelStamp;
+        this.workers = new Worker[Math.max(1, size)];
+        for (int i = 0; i < workers.length; i++) workers[i] = new Worker(i);
+        health = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PythonWorkerPool-Health");
+            t.setDaemon(true);
+            return t;
+        });
+        health.scheduleWithFixedDelay(this::checkHealth, HEALTH_INTERVAL_MS, HEALTH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Default pool size: one worker per two cores, at least one. */
+    public static int defaultSize() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    /**
+     * Send a message to the least loaded worker. The future completes with the raw
+     * "label|confidence" line, or null if the worker failed before answering.
+     */
+    public CompletableFuture<String> submit(String message) {
+        Worker w = pick();
+        return w.send('P', escape(message));
+    }
+
+    /** Blocking convenience: raw response line or null on error/timeout. */
+    public String classify(String message) {
+        CompletableFuture<String> f = submit(message);
+        try {
+            String line = f.get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (line == null) failures.increment();
+            return line;
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            return null;
+        } catch (ExecutionException e) {
+            failures.increment();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Classify several messages with one predict_proba call in one worker. Returns one
+     * "label|confidence" entry per message, or null on error/timeout.
+     */
+    public String[] classifyBatch(List<String> messages) {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) payload.append('\t');
+            payload.append(escape(messages.get(i)));
+        }
+        CompletableFuture<String> f = pick().send('B', payload.toString());
+        try {
+            String line = f.get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            String[] answers = line == null ? null : line.split("\t", -1);
+            if (answers != null && answers.length == messages.size()) return answers;
+            failures.increment();
+            return null;
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            return null;
+        } catch (ExecutionException e) {
+            failures.increment();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Stamp (mtime and length) of the model file the workers answer from, 0 while a change
+     * is being picked up and answers may come from either file. Constant if not watched.
+     */
+    public long modelStamp() { return modelStamp; }
+
+    public long timeoutCount() { return timeouts.sum(); }
+    public long failureCount() { return failures.sum(); }
+
+    public void shutdown() {
+        health.shutdownNow();
+        for (Worker w : workers) w.stop();
+    }
+
+    private Worker pick() {
+        // start at a rotating index so ties spread out, then take the shortest backlog
+        int start = Math.floorMod(roundRobin.getAndIncrement(), workers.length);
+        Worker best = workers[start];
+        for (int i = 1; i < workers.length; i++) {
+            Worker w = workers[(start + i) % workers.length];
+            if (w.pending.size() < best.pending.size()) best = w;
+        }
+        return best;
+    }
+
+    private void checkHealth() {
+        try {
+            checkModel();
+        } catch (RuntimeException e) {
+            System.err.println("PythonWorkerPool model check error: " + e.getMessage());
+        }
+        long now = System.nanoTime();
+        for (Worker w : workers) {
+            try {
+                if (!w.isAlive()) {
+                    w.restart("process exited");
+                } else if (w.oldestPendingNanos(now) > TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MS)) {
+                    w.restart("request timed out");
+                } else {
+                    w.send('H', null);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("PythonWorkerPool health check error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void checkModel() {
+        if (model == null) return;
+        long stamp = stamp(model);
+        if (stamp == modelStamp || stamp == 0) {
+            pendingStamp = stamp;
+            return;
+        }
+        if (stamp != pendingStamp) {      // changed since the last check: may still be written
+            pendingStamp = stamp;
+            return;
+        }
+        System.err.println("PythonWorkerPool: " + model + " changed, restarting workers");
+        modelStamp = 0;
+        for (Worker w : workers) w.restart("model changed");
+        modelStamp = stamp;
+    }
+
+    private static long stamp(File f) {
+        return f.lastModified() * 31 + f.length();
+    }
+
+    // tabs/newlines would break the line protocol; the worker reverses this
+    static String escape(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String rep = c == '\\' ? "\\\\" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : c == '\t' ? "\\t" : null;
+            if (rep != null && sb == null) sb = new StringBuilder(s.length() + 8).append(s, 0, i);
+            if (sb != null) {
+                if (rep != null) sb.append(rep); else sb.append(c);
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+
+    // ----------------- Worker -----------------
+
+    private static final class Pending {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final long sentAt = System.nanoTime();
+    }
+
+    private final class Worker {
+        private final int index;
+        private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+        // ReentrantLock rather than synchronized: callers may be virtual threads blocked on the pipe
+        private final ReentrantLock lock = new ReentrantLock();
+        private Process process;
+        private BufferedWriter stdin;
+
+        Worker(int index) {
+            this.index = index;
+            start();
+        }
+
+        private void start() {
+            lock.lock();
+            try {
+                ProcessBuilder pb = new ProcessBuilder(pythonCmd, script, "--serve");
+                pb.environment().put("PYTHONIOENCODING", "utf-8");
+                pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+                Process p = pb.start();
+                process = p;
+                stdin = new BufferedWriter(new OutputStreamWriter(p.getOutputStream(), StandardCharsets.UTF_8));
+                Thread reader = new Thread(() -> readLoop(p), "PythonWorker-" + index + "-Reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                System.err.println("PythonWorkerPool: cannot start worker " + index + ": " + e.getMessage());
+                process = null;
+                stdin = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        CompletableFuture<String> send(char cmd, String payload) {
+            long id = nextId.getAndIncrement();
+            Pending req = new Pending();
+            pending.put(id, req);
+            lock.lock();
+            try {
+                if (stdin == null) throw new IOException("worker not running");
+                stdin.write(Long.toString(id));
+                stdin.write('\t');
+                stdin.write(cmd);
+                if (payload != null) {
+                    stdin.write('\t');
+                    stdin.write(payload);
+                }
+                stdin.write('\n');
+                stdin.flush();
+            } catch (IOException e) {
+                pending.remove(id);
+                req.future.complete(null);
+            } finally {
+                lock.unlock();
+            }
+            return req.future;
+        }
+
+        private void readLoop(Process p) {
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab <= 0) continue;
+                    Pending req;
+                    try {
+                        req = pending.remove(Long.parseLong(line.substring(0, tab)));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    if (req != null) req.future.complete(line.substring(tab + 1));
+                }
+            } catch (IOException ignored) {
+                // stream closed: the health check restarts the worker
+            }
+        }
+
+        boolean isAlive() {
+            lock.lock();
+            try {
+                return process != null && process.isAlive();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long oldestPendingNanos(long now) {
+            long oldest = 0;
+            for (Pending req : pending.values()) oldest = Math.max(oldest, now - req.sentAt);
+            return oldest;
+        }
+
+        void restart(String reason) {
+            System.err.println("PythonWorkerPool: restarting worker " + index + " (" + reason + ")");
+            lock.lock();
+            try {
+                stop();
+                start();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void stop() {
+            lock.lock();
+            try {
+                stopLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void stopLocked() {
+            if (process != null) process.destroyForcibly();
+            try { if (stdin != null) stdin.close(); } catch (IOException ignored) {}
+            process = null;
+            stdin = null;
+            // callers waiting on this worker get the error result instead of hanging
+            for (Long id : pending.keySet()) {
+                Pending req = pending.remove(id);
+                if (req != null) req.future.complete(null);
+            }
+        }
+    }
+}
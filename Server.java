@@ -2,61 +2,63 @@ package SpamDetector;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
-import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.concurrent.TimeUnit;
-import java.util.Calendar;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Improved Chat Server with Spam Filtering bridge to Python model.
+ * Swing window for the chat server (ChatServerEngine) with spam filtering.
  *
  * Features:
- *  - Swing UI with message bubbles + timestamp
- *  - Accepts multiple clients
- *  - Broadcasts messages to clients (non-blocking)
- *  - Spam detection via external Python script (predict.py)
- *  - Toggle spam filter ON/OFF
- *  - Block high-confidence spam (configurable threshold)
- *  - Save chat log
+ *  - Swing UI with message bubbles + timestamp (MessageListView paints only visible rows)
+ *  - Subscribes to the engine's events; bubbles are built on the EDT, never on
+ *    network or classification threads
+ *  - Send messages as the server (classified before they are broadcast)
+ *  - Toggle spam filter ON/OFF
+ *  - Reload the model file or roll back to the previous version (Model menu); each verdict
+ *    shows the model version that produced it
+ *  - Right-click a classified message to mark it as spam or ham; the native model learns it at once
+ *  - Measures EDT queue lag into the engine's metrics (ui_edt_lag_seconds)
+ *  - Shows blocked spam (high-confidence, configurable threshold in the engine)
+ *  - --headless runs the engine without this window
  */
 public class Server {
 
     // ========== CONFIG ==========
-    private static final String PYTHON_CMD = "python";// or "python3" on some systems
-    private static final String PREDICT_SCRIPT = "predict.py";
-    private static final double SPAM_CONF_THRESHOLD = 0.80; // block if confidence >= threshold
-    private static final File CHAT_LOG = new File("chat_log.txt");
-    private static final int MAX_MESSAGES = 500;
+    private static final int SCROLLBACK = 20_000;   // messages kept in the window
+    private static final MessageListView.FloodPolicy FLOOD_POLICY = MessageListView.FloodPolicy.COLLAPSE_BLOCKED;
+    private static final int FLOOD_THRESHOLD = 50;   // messages per second before FLOOD_POLICY collapses them
+    private static final long EDT_PROBE_MILLIS = 100;  // how often a timestamped no-op is queued on the EDT
 
     // UI
     private final JFrame frame = new JFrame("Server Chat");
-    private final JPanel messagesPanel = new JPanel();
+    private final MessageListView messages = new MessageListView(SCROLLBACK, FLOOD_POLICY, FLOOD_THRESHOLD);
     private final JScrollPane scrollPane;
     private final JTextField messageField = new JTextField();
     private final JButton sendButton = new JButton("Send");
     private final JButton toggleSpamBtn = new JButton("Spam Filter: ON");
-    private final DefaultCaretEnforcer caretEnforcer;
-
-    // Networking
-    private final int port;
-    private ServerSocket serverSocket;
-    private final ExecutorService clientPool = Executors.newCachedThreadPool();
-    private final List<DataOutputStream> outputs = new CopyOnWriteArrayList<>();
 
-    // State
-    private volatile boolean spamFilterEnabled = true;
+    // Engine: networking, classification, relay and logging
+    private final ChatServerEngine engine;
 
     public Server(int port) {
-        this.port = port;
+        this(port, false, ThreadMode.PLATFORM);
+    }
+
+    public Server(int port, boolean useNio, ThreadMode threadMode) {
+        this(new ChatServerEngine(port, useNio, threadMode));
+    }
+
+    /** Builds the window (call on the EDT), subscribes to engine and starts it. */
+    public Server(ChatServerEngine engine) {
+        this.engine = engine;
 
         // build UI
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -112,18 +114,19 @@ public class Server {
         toggleSpamBtn.addActionListener(e -> toggleSpamFilter());
         header.add(toggleSpamBtn);
 
-        // messagesPanel setup
-        messagesPanel.setLayout(new BoxLayout(messagesPanel, BoxLayout.Y_AXIS));
-        messagesPanel.setBackground(Color.WHITE);
-
-        JPanel holder = new JPanel(new BorderLayout());
-        holder.setBackground(Color.WHITE);
-        holder.add(messagesPanel, BorderLayout.NORTH);
+        // model versions: reload / roll back
+        JButton modelBtn = new JButton("Model");
+        modelBtn.setBounds(frame.getWidth() - 240, 20, 75, 30);
+        modelBtn.setFocusable(false);
+        modelBtn.addActionListener(e -> showModelMenu(modelBtn));
+        header.add(modelBtn);
 
-        scrollPane = new JScrollPane(holder);
+        // message list
+        scrollPane = new JScrollPane(messages);
         scrollPane.setBounds(10, 90, frame.getWidth() - 30, 560);
         scrollPane.setBorder(BorderFactory.createEmptyBorder());
         frame.add(scrollPane);
+        installFeedbackMenu();
 
         // input area
         messageField.setBounds(10, 660, frame.getWidth() - 140, 46);
@@ -136,8 +139,6 @@ public class Server {
         sendButton.setBorderPainted(false);
         frame.add(sendButton);
 
-        caretEnforcer = new DefaultCaretEnforcer(scrollPane);
-
         // actions
         sendButton.addActionListener(e -> sendLocalMessage());
         messageField.addActionListener(e -> sendLocalMessage());
@@ -151,340 +152,183 @@ public class Server {
 
         frame.setVisible(true);
 
+        engine.addListener(new EngineEvents());
+        startEdtProbe();
+
         // start server
-        startServer();
+        try {
+            engine.start();
+        } catch (IOException e) {
+            appendMessage("Server stopped: " + e.getMessage(), true, false, null);
+        }
     }
 
-    // ---------------- UI / message helpers ----------------
+    // ---------------- Engine events ----------------
 
-    private void sendLocalMessage() {
-        String text = messageField.getText();
-        if (text == null || text.trim().isEmpty()) return;
+    /** Engine events, called on engine threads: only hands the text to the EDT. */
+    private class EngineEvents implements ChatServerEngine.Listener {
+        @Override
+        public void onStatus(String text) {
+            appendMessage(text, true, false, null);
+        }
 
-        SpamFilter.Result res = SpamFilter.classifyIfEnabled(text, spamFilterEnabled);
-        
-        String classification = (res != null) ? 
-            String.format("%s (%.2f)", res.label, res.confidence) : null;
-            
-        boolean isSpamAndBlock = (res != null && "spam".equals(res.label) && res.confidence >= SPAM_CONF_THRESHOLD);
-        
-        if (isSpamAndBlock) {
-            appendMessage(formatMessagePanel("[BLOCKED SPAM - Outgoing] " + text, true, true, classification));
-            writeLog("BLOCKED_OUTGOING", text, res.confidence);
-            // Notify connected clients that the server attempted to send a blocked message
-            String notif = "[BLOCKED SPAM - Outgoing from Server]";
-            broadcast(notif, null);
-            messageField.setText("");
-            return;
+        @Override
+        public void onClientConnected(String peer) {
+            appendMessage("Client connected: " + peer, false, false, null);
         }
 
-        appendMessage(formatMessagePanel(text, true, false, classification));
-        // broadcast server's outgoing message to all clients
-        broadcast(text, null);
-        writeLog("SERVER", text, (res == null ? -1.0 : res.confidence));
-        messageField.setText("");
+        @Override
+        public void onClientDisconnected(String peer) {
+            appendMessage("Client disconnected: " + peer, false, false, null);
+        }
+
+        @Override
+        public void onClientError(String peer, String error) {
+            appendMessage("Client error: " + peer + " (" + error + ")", false, false, null);
+        }
+
+        @Override
+        public void onIncoming(String peer, String text, ChatServerEngine.SpamFilter.Result res, boolean blocked) {
+            // blocked: left, red; the engine did not broadcast it
+            appendMessage(blocked ? "[BLOCKED SPAM] " + text : text, false, blocked, classification(res));
+        }
+
+        @Override
+        public void onOutgoing(String text, ChatServerEngine.SpamFilter.Result res, boolean blocked) {
+            appendMessage(blocked ? "[BLOCKED SPAM - Outgoing] " + text : text, true, blocked, classification(res));
+        }
+
+        @Override
+        public void onBlockedNotice(String peer, String origin, double confidence) {
+            appendMessage("[BLOCKED SPAM - Outgoing from " + origin + "]", false, true, null);
+        }
     }
 
-    private void appendMessage(JPanel panel) {
-        SwingUtilities.invokeLater(() -> {
-            // cap oldest messages
-            if (messagesPanel.getComponentCount() / 2 > MAX_MESSAGES) {
-                // remove earliest two entries (panel + spacer)
-                messagesPanel.remove(0);
-                if (messagesPanel.getComponentCount() > 0) messagesPanel.remove(0);
-            }
-            messagesPanel.add(panel);
-            messagesPanel.add(Box.createVerticalStrut(8));
-            messagesPanel.revalidate();
-            messagesPanel.repaint();
-            caretEnforcer.scrollToBottom();
-        });
+    private static String classification(ChatServerEngine.SpamFilter.Result res) {
+        if (res == null) return null;
+        String verdict = String.format("%s (%.2f)", res.label, res.confidence);
+        return res.model != null ? verdict + "  " + res.model : verdict;
+    }
+
+    // ---------------- UI / message helpers ----------------
+
+    private void sendLocalMessage() {
+        String text = messageField.getText();
+        if (text == null || text.trim().isEmpty()) return;
+        // shown through onOutgoing like every other message
+        engine.send(text);
+        messageField.setText("");
     }
 
     /**
-     * Create a message bubble panel.
+     * Add a message bubble; callable from any thread. The list applies posted messages
+     * on the EDT in frame-rate batches.
      *
-     * @param text        message text
+     * @param text        message text
      * @param sentByServer true -> right aligned (server), false -> left aligned (client)
-     * @param blocked     true -> render as blocked spam (red)
+     * @param blocked     true -> render as blocked spam (red)
      * @param classification Optional result from spam classification (label|confidence)
      */
-    private JPanel formatMessagePanel(String text, boolean sentByServer, boolean blocked, String classification) {
-        // 1. Message Content
-        JLabel label = new JLabel("<html>" + escapeHtml(text).replaceAll("\n", "<br>") + "</html>");
-        label.setFont(new Font("Tahoma", Font.PLAIN, 15));
-        label.setOpaque(true);
-        label.setBorder(new EmptyBorder(10, 12, 10, 12));
-        label.setMaximumSize(new Dimension(320, Integer.MAX_VALUE));
-        
-        Color bubbleColor, textColor;
-        if (blocked) {
-            bubbleColor = new Color(220, 40, 40); // red for blocked
-            textColor = Color.WHITE;
-        } else {
-            bubbleColor = sentByServer ? new Color(37, 211, 102) : new Color(236, 229, 221);
-            textColor = Color.BLACK;
-        }
-        label.setBackground(bubbleColor);
-        label.setForeground(textColor);
-
-        // 2. Time Stamp
-        Calendar cal = Calendar.getInstance();
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
-        JLabel time = new JLabel(sdf.format(cal.getTime()));
-        time.setFont(new Font("Tahoma", Font.PLAIN, 10));
-        time.setForeground(Color.GRAY);
-
-        // 3. Optional Spam/Ham Classification Info (NEW)
-        JLabel classificationLabel = null;
-        if (classification != null) {
-            classificationLabel = new JLabel(classification);
-            classificationLabel.setFont(new Font("Tahoma", Font.ITALIC, 10));
-            classificationLabel.setForeground(blocked ? Color.LIGHT_GRAY : Color.DARK_GRAY);
-            classificationLabel.setAlignmentX(Component.RIGHT_ALIGNMENT);
-            classificationLabel.setBorder(new EmptyBorder(0, 12, 0, 12)); // Match padding
-        }
-        
-        // 4. Inner Panel (Message + Classification Stacked)
-        JPanel bubbleContent = new JPanel();
-        bubbleContent.setLayout(new BoxLayout(bubbleContent, BoxLayout.Y_AXIS));
-        bubbleContent.setBackground(bubbleColor);
-        
-        label.setAlignmentX(Component.RIGHT_ALIGNMENT);
-        
-        // Add message label
-        bubbleContent.add(label);
-        
-        // Add classification info (only if blocked or for logging/transparency)
-        if (classificationLabel != null) {
-             bubbleContent.add(Box.createVerticalStrut(2)); 
-             bubbleContent.add(classificationLabel);
-        }
-        
-        bubbleContent.setMaximumSize(bubbleContent.getPreferredSize());
-
-
-        // 5. Outer Panel (Positioning the Bubble Left/Right)
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(Color.WHITE);
-        
-        JPanel timePanel = new JPanel(new BorderLayout());
-        timePanel.setBackground(Color.WHITE);
-        
-        // Use the combined bubbleContent panel in the row
-        if (sentByServer) {
-            panel.add(bubbleContent, BorderLayout.LINE_END); // Server's message: right side
-            timePanel.add(time, BorderLayout.LINE_END);
-        } else {
-            panel.add(bubbleContent, BorderLayout.LINE_START); // Client's message: left side
-            timePanel.add(time, BorderLayout.LINE_START);
-        }
-        
-        // 6. Overall Vertical Stack (Message Row + Time Row)
-        JPanel outerStack = new JPanel();
-        outerStack.setLayout(new BoxLayout(outerStack, BoxLayout.Y_AXIS));
-        outerStack.setBackground(Color.WHITE);
-        outerStack.add(panel);
-        outerStack.add(timePanel);
-        
-        return outerStack;
+    private void appendMessage(String text, boolean sentByServer, boolean blocked, String classification) {
+        messages.post(text, sentByServer, blocked, classification);
     }
 
-    // ------------------- Networking / Server -------------------
-
     /**
-     * Broadcast a message to all connected clients.
-     * If `exclude` is non-null the matching DataOutputStream will NOT receive the message
-     * (used to avoid echoing a client's own message back to them).
+     * Right-click menu on classified messages: "Mark as spam" / "Mark as ham" teaches the
+     * native model the message (ChatServerEngine.learn) on a background thread; the result
+     * comes back through onStatus.
      */
-    private void broadcast(String message, DataOutputStream exclude) {
-        for (DataOutputStream dout : outputs) {
-            if (exclude != null && dout == exclude) continue;
-            clientPool.submit(() -> {
-                try {
-                    synchronized (dout) {
-                        dout.writeUTF(message);
-                        dout.flush();
-                    }
-                } catch (IOException e) {
-                    // remove dead stream
-                    outputs.remove(dout);
-                    try { dout.close(); } catch (IOException ignored) {}
-                }
-            });
-        }
-    }
-
-    private void startServer() {
-        Thread t = new Thread(() -> {
-            try (ServerSocket ss = new ServerSocket(port)) {
-                serverSocket = ss;
-                // FIX: Added 'null' for classification argument
-                appendMessage(formatMessagePanel("Server listening on port " + port, true, false, null)); 
-                while (!ss.isClosed()) {
-                    Socket client = ss.accept();
-                    clientPool.submit(new ClientHandler(client));
-                }
-            } catch (IOException e) {
-                // FIX: Added 'null' for classification argument
-                appendMessage(formatMessagePanel("Server stopped: " + e.getMessage(), true, false, null)); 
+    private void installFeedbackMenu() {
+        messages.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                maybeShow(e);
             }
-        }, "Server-Accept-Thread");
-        t.setDaemon(true);
-        t.start();
-    }
 
-    private class ClientHandler implements Runnable {
-        private final Socket socket;
-        private DataInputStream din;
-        private DataOutputStream dout;
-
-        ClientHandler(Socket socket) {
-            this.socket = socket;
-        }
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                maybeShow(e);
+            }
 
-        @Override
-        public void run() {
-            String remoteAddr = socket.getRemoteSocketAddress().toString();
-            try {
-                din = new DataInputStream(socket.getInputStream());
-                dout = new DataOutputStream(socket.getOutputStream());
-                outputs.add(dout);
-
-                // FIX: Added 'null' for classification argument
-                appendMessage(formatMessagePanel("Client connected: " + remoteAddr, false, false, null)); 
-                writeLog("CONNECT", remoteAddr, -1.0);
-
-                while (!socket.isClosed()) {
-                    String msg;
-                    try {
-                        msg = din.readUTF();
-                    } catch (EOFException | SocketException se) {
-                        break;
-                    }
-                    if (msg == null) break;
-
-                    // classify incoming message
-                    SpamFilter.Result res = SpamFilter.classifyIfEnabled(msg, spamFilterEnabled);
-                    String classification = (res != null) ? 
-                        String.format("%s (%.2f)", res.label, res.confidence) : null;
-                    
-                    boolean isSpamAndBlock = (res != null && "spam".equals(res.label) && res.confidence >= SPAM_CONF_THRESHOLD);
-
-                    if (isSpamAndBlock) {
-                        // blocked: show in UI as blocked (left, red) and do NOT broadcast
-                        appendMessage(formatMessagePanel("[BLOCKED SPAM] " + msg, false, true, classification));
-                        writeLog("BLOCKED_INCOMING", msg, res.confidence);
-                        continue;
-                    }
-
-                    // normal message: show and broadcast (do not echo back to sender)
-                    appendMessage(formatMessagePanel(msg, false, false, classification));
-                    broadcast(msg, dout);
-                    writeLog("CLIENT", msg, (res == null ? -1.0 : res.confidence));
-                }
-            } catch (IOException e) {
-                // FIX: Added 'null' for classification argument
-                appendMessage(formatMessagePanel("Client error: " + remoteAddr + " (" + e.getMessage() + ")", false, false, null)); 
-            } finally {
-                if (dout != null) {
-                    outputs.remove(dout);
-                    try { dout.close(); } catch (IOException ignored) {}
+            private void maybeShow(MouseEvent e) {
+                if (!e.isPopupTrigger()) return;
+                String text = messages.textAt(e.getPoint());
+                if (text == null) return;
+                String message = stripBlockedPrefix(text);
+                JPopupMenu menu = new JPopupMenu();
+                for (String label : new String[]{"spam", "ham"}) {
+                    JMenuItem item = new JMenuItem("Mark as " + label);
+                    item.addActionListener(a -> CompletableFuture.runAsync(() -> engine.learn(message, label)));
+                    menu.add(item);
                 }
-                try { if (!socket.isClosed()) socket.close(); } catch (IOException ignored) {}
-                // FIX: Added 'null' for classification argument
-                appendMessage(formatMessagePanel("Client disconnected: " + remoteAddr, false, false, null)); 
-                writeLog("DISCONNECT", remoteAddr, -1.0);
+                menu.show(messages, e.getX(), e.getY());
             }
-        }
+        });
     }
 
-    // ----------------- Spam Filter Bridge -----------------
+    private static String stripBlockedPrefix(String text) {
+        for (String prefix : new String[]{"[BLOCKED SPAM] ", "[BLOCKED SPAM - Outgoing] "}) {
+            if (text.startsWith(prefix)) return text.substring(prefix.length());
+        }
+        return text;
+    }
 
     /**
-     * SpamFilter runs the external Python script and parses label|confidence output.
-     * If the filter is disabled, classifyIfEnabled returns null quickly (no blocking).
+     * Queues a timestamped no-op on the EDT every EDT_PROBE_MILLIS and records how long it
+     * waited behind the events ahead of it. One probe in flight at a time, so a stalled
+     * EDT shows as one long sample instead of a pile of queued probes.
      */
-    public static class SpamFilter {
-        public static class Result {
-            public final String label;
-            public final double confidence;
-            public Result(String label, double confidence) {
-                this.label = label;
-                this.confidence = confidence;
-            }
-        }
-
-        /**
-         * If enabled==false -> returns null (no classification performed).
-         * If enabled==true -> calls external script and returns a Result (never null unless error).
-         */
-        public static Result classifyIfEnabled(String message, boolean enabled) {
-            if (!enabled) return null;
-            return classify(message);
-        }
-
-        private static Result classify(String message) {
-            // sanitize message argument for command-line (we'll pass as single argument)
-            try {
-                ProcessBuilder pb = new ProcessBuilder(PYTHON_CMD, PREDICT_SCRIPT, message);
-                pb.redirectErrorStream(true);
-                Process p = pb.start();
-
-                // read one line of output
-                BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                String line = r.readLine();
-                // wait a short while but don't block too long
-                try { if (!p.waitFor(3, TimeUnit.SECONDS)) { p.destroyForcibly(); } } catch (InterruptedException ignored) {}
-
-                if (line != null) {
-                    // expected format: label|confidence  e.g. spam|0.9943
-                    String[] parts = line.trim().split("\\|");
-                    if (parts.length >= 2) {
-                        String label = parts[0].trim();
-                        double conf = 0.0;
-                        try { conf = Double.parseDouble(parts[1]); } catch (NumberFormatException ignore) {}
-                        return new Result(label, conf);
-                    } else {
-                        // if output just label, assume confidence 1.0
-                        return new Result(line.trim(), 1.0);
-                    }
-                }
-            } catch (IOException e) {
-                // log to console only — don't throw to UI thread
-                System.err.println("SpamFilter error: " + e.getMessage());
-            }
-            return new Result("error", 0.0);
-        }
+    private void startEdtProbe() {
+        Histogram lag = engine.metrics().histogram("ui_edt_lag_seconds", "Time a Swing event waits in the EDT queue");
+        AtomicBoolean inFlight = new AtomicBoolean();
+        ScheduledExecutorService probe = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Server-EDT-Probe");
+            t.setDaemon(true);
+            return t;
+        });
+        probe.scheduleAtFixedRate(() -> {
+            if (!inFlight.compareAndSet(false, true)) return;
+            long queued = System.nanoTime();
+            SwingUtilities.invokeLater(() -> {
+                lag.record((System.nanoTime() - queued) / 1000);
+                inFlight.set(false);
+            });
+        }, EDT_PROBE_MILLIS, EDT_PROBE_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     // ----------------- Utilities -----------------
 
     private void toggleSpamFilter() {
-        spamFilterEnabled = !spamFilterEnabled;
-        toggleSpamBtn.setText("Spam Filter: " + (spamFilterEnabled ? "ON" : "OFF"));
-        // FIX: Added 'null' for classification argument
-        appendMessage(formatMessagePanel("Spam filter turned " + (spamFilterEnabled ? "ON" : "OFF"), true, false, null)); 
+        boolean enabled = !engine.isSpamFilterEnabled();
+        toggleSpamBtn.setText("Spam Filter: " + (enabled ? "ON" : "OFF"));
+        engine.setSpamFilterEnabled(enabled);   // the notice comes back through onStatus
+    }
+
+    // current version, then the commands; results come back through onStatus
+    private void showModelMenu(JButton anchor) {
+        ModelRegistry.Version current = ModelRegistry.shared().current();
+        ModelRegistry.Version previous = ModelRegistry.shared().previous();
+        JPopupMenu menu = new JPopupMenu();
+        JMenuItem serving = new JMenuItem("Serving " + (current == null ? "Python bridge" : current.tag()));
+        serving.setEnabled(false);
+        menu.add(serving);
+        menu.addSeparator();
+        JMenuItem reload = new JMenuItem("Reload model file");
+        reload.addActionListener(e -> engine.reloadModel());
+        menu.add(reload);
+        JMenuItem rollback = new JMenuItem(previous == null ? "Roll back" : "Roll back to " + previous.tag());
+        rollback.setEnabled(previous != null);
+        rollback.addActionListener(e -> engine.rollbackModel());
+        menu.add(rollback);
+        menu.show(anchor, 0, anchor.getHeight());
     }
 
     private void shutdown() {
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
-        } catch (IOException ignored) {}
-        for (DataOutputStream dout : outputs) {
-            try { dout.close(); } catch (IOException ignored) {}
-        }
-        outputs.clear();
-        clientPool.shutdownNow();
+        engine.close();
         frame.dispose();
         System.exit(0);
     }
 
-    private static String escapeHtml(String s) {
-        if (s == null) return "";
-        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
-    }
-
     private JLabel loadIconLabel(String resourceName, int w, int h) {
         try {
             // Try classpath resource first
@@ -507,31 +351,16 @@ public class Server {
         }
     }
 
-    // Ensure scrollbar stays at bottom when new messages appended
-    private static class DefaultCaretEnforcer {
-        private final JScrollPane scrollPane;
-        DefaultCaretEnforcer(JScrollPane sp) { this.scrollPane = sp; }
-        void scrollToBottom() {
-            SwingUtilities.invokeLater(() -> {
-                JScrollBar bar = scrollPane.getVerticalScrollBar();
-                bar.setValue(bar.getMaximum());
-            });
-        }
-    }
-
-    // Simple chat log writer (append)
-    private synchronized void writeLog(String tag, String text, double confidence) {
-        try (FileWriter fw = new FileWriter(CHAT_LOG, true);
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-            String ts = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime());
-            out.printf("[%s] %s | conf=%.4f | %s%n", ts, tag, confidence, text);
-        } catch (IOException ignored) {}
-    }
-
     // ----------------- Main -----------------
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new Server(6001));
+    public static void main(String[] args) throws InterruptedException {
+        // java SpamDetector.Server [--nio] [--virtual] [--headless]
+        boolean nio = Arrays.asList(args).contains("--nio");
+        ThreadMode mode = ThreadMode.fromArgs(args);
+        if (Arrays.asList(args).contains("--headless") || GraphicsEnvironment.isHeadless()) {
+            ChatServerEngine.runHeadless(ChatServerEngine.DEFAULT_PORT, nio, mode);
+            return;
+        }
+        SwingUtilities.invokeLater(() -> new Server(ChatServerEngine.DEFAULT_PORT, nio, mode));
     }
-}
\ No newline at end of file
+}
@@ -14,8 +14,25 @@ public class SpamFilter {
         public double confidence;
     }
 
+    private static final ThreadLocal<double[]> PROBA = ThreadLocal.withInitial(() -> new double[2]);
+
     public static Result classify(String message) {
         Result result = new Result();
+
+        // in-JVM model (exported by ModelTraining.py) avoids one python process per message
+        NaiveBayesModel model = NaiveBayesModel.shared();
+        if (model != null) {
+            double[] proba = PROBA.get();
+            if (proba.length < model.classCount()) {
+                proba = new double[model.classCount()];
+                PROBA.set(proba);
+            }
+            int c = model.predict(message, proba);
+            result.label = model.label(c);
+            result.confidence = proba[c];
+            return result;
+        }
+
         try {
             ProcessBuilder pb = new ProcessBuilder(
                 PYTHON_PATH,
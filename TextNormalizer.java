@@ -0,0 +1,287 @@
+package SpamDetector;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Java port of predict.py's clean_text followed by CountVectorizer's tokenizer:
+ *
+ *   text.lower()                                   full lowercase (U+0130 becomes "i" + U+0307)
+ *   re.sub(r"http\S+", "", text)                   Python's \S, i.e. not str.isspace()
+ *   text.translate(... string.punctuation ...)     ASCII punctuation only
+ *   re.sub(r"\d+", "", text)                       Unicode decimal digits (category Nd)
+ *   re.findall(r"(?u)\b\w\w+\b", text)             runs of 2+ word chars (letters, Nd/Nl/No)
+ *
+ * One pass over the CharSequence, no regex and no intermediate Strings: each token is handed
+ * to a TokenSink as a reused char buffer plus its FNV-1a hash (the hash export_model.py uses
+ * for the vocabulary table), so the sink can resolve a vocabulary index without allocating.
+ *
+ * An instance owns its token buffer and is not thread-safe; keep one per thread.
+ *
+ * Verify against Python with:
+ *   python golden_tokens.py > tokens_golden.txt
+ *   java SpamDetector.TextNormalizer --verify spam.csv tokens_golden.txt
+ */
+public final class TextNormalizer {
+
+    /** Receives tokens; buf is only valid during the call. */
+    public interface TokenSink {
+        void token(char[] buf, int len, int hash);
+    }
+
+    static final int MAX_TOKEN_CHARS = 256;   // longer tokens are truncated (never in the vocabulary)
+
+    private final char[] buf = new char[MAX_TOKEN_CHARS + 1];
+
+    private static final ThreadLocal<TextNormalizer> SHARED = ThreadLocal.withInitial(TextNormalizer::new);
+    private static final ThreadLocal<StringBuilder> JOINED = ThreadLocal.withInitial(StringBuilder::new);
+
+    /**
+     * The message as the model sees it: its tokens joined by single spaces. Two messages with
+     * the same normalized text always get the same verdict, which makes this the cache key.
+     */
+    public static String normalize(CharSequence text) {
+        StringBuilder sb = JOINED.get();
+        sb.setLength(0);
+        SHARED.get().tokenize(text, (b, len, h) -> {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(b, 0, len);
+        });
+        return sb.toString();
+    }
+
+    /** Stream the tokens of one raw message into sink. Returns the number of tokens. */
+    public int tokenize(CharSequence text, TokenSink sink) {
+        int count = 0;
+        int len = 0;          // chars in buf
+        int wordChars = 0;    // code points in the current run of \w
+        int hash = 0x811c9dc5;
+        boolean skipUrl = false;
+        int length = text.length();
+        for (int i = 0; i <= length; ) {
+            int cp;
+            int next;
+            if (i < length) {
+                cp = Character.codePointAt(text, i);
+                next = i + Character.charCount(cp);
+            } else {
+                cp = ' ';     // sentinel flushes the last token
+                next = i + 1;
+            }
+            if (skipUrl) {
+                if (!isPySpace(cp)) { i = next; continue; }
+                skipUrl = false;
+            } else if ((cp == 'h' || cp == 'H') && startsUrl(text, i)) {
+                skipUrl = true;
+                i = next;
+                continue;
+            }
+
+            // str.lower(): U+0130 is the only code point whose full lowercase mapping is two chars
+            int lower = cp == 0x130 ? 'i' : Character.toLowerCase(cp);
+            int extra = cp == 0x130 ? 0x307 : -1;
+            for (int pass = 0; pass < 2; pass++) {
+                int c = pass == 0 ? lower : extra;
+                if (c < 0) break;
+                if (isPunctuation(c) || Character.getType(c) == Character.DECIMAL_DIGIT_NUMBER) continue;
+                if (isWordChar(c)) {
+                    if (len + 2 <= MAX_TOKEN_CHARS) {
+                        if (Character.isBmpCodePoint(c)) {
+                            buf[len++] = (char) c;
+                            hash = (hash ^ c) * 0x01000193;
+                        } else {
+                            char hi = Character.highSurrogate(c), lo = Character.lowSurrogate(c);
+                            buf[len++] = hi;
+                            buf[len++] = lo;
+                            hash = (hash ^ hi) * 0x01000193;
+                            hash = (hash ^ lo) * 0x01000193;
+                        }
+                    }
+                    wordChars++;
+                    continue;
+                }
+                if (wordChars >= 2) {
+                    sink.token(buf, len, hash);
+                    count++;
+                }
+                len = 0;
+                wordChars = 0;
+                hash = 0x811c9dc5;
+            }
+            i = next;
+        }
+        return count;
+    }
+
+    // re.sub(r"http\S+", "", text.lower()): "http" plus at least one non-space char
+    private static boolean startsUrl(CharSequence text, int i) {
+        if (i + 5 > text.length()) return false;
+        for (int k = 0; k < 4; k++) {
+            if (Character.toLowerCase(text.charAt(i + k)) != "http".charAt(k)) return false;
+        }
+        return !isPySpace(Character.codePointAt(text, i + 4));
+    }
+
+    /** Python's string.punctuation. */
+    static boolean isPunctuation(int c) {
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@')
+                || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+    }
+
+    /** Python's str.isspace(), which is what \s / \S match in a str pattern. */
+    static boolean isPySpace(int c) {
+        switch (c) {
+            case '\t': case '\n': case 0x0b: case '\f': case '\r':
+            case 0x1c: case 0x1d: case 0x1e: case 0x1f:
+            case ' ': case 0x85: case 0xa0: case 0x1680:
+            case 0x2028: case 0x2029: case 0x202f: case 0x205f: case 0x3000:
+                return true;
+            default:
+                return c >= 0x2000 && c <= 0x200a;
+        }
+    }
+
+    /** Python's \w: str.isalnum() (letters and Nd/Nl/No numerics) or '_'. */
+    static boolean isWordChar(int c) {
+        if (c == '_') return true;
+        if (Character.isLetter(c)) return true;
+        int t = Character.getType(c);
+        return t == Character.DECIMAL_DIGIT_NUMBER || t == Character.LETTER_NUMBER || t == Character.OTHER_NUMBER;
+    }
+
+    /** FNV-1a over UTF-16 code units, identical to the running hash given to TokenSink. */
+    static int hash(char[] chars, int off, int len) {
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++) {
+            h ^= chars[i];
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    // ----------------- Golden-file check -----------------
+
+    /**
+     * --verify spam.csv tokens_golden.txt
+     * Each golden line holds the space separated tokens Python produced for the matching CSV row.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !"--verify".equals(args[0])) {
+            System.err.println("usage: java SpamDetector.TextNormalizer --verify spam.csv tokens_golden.txt");
+            System.exit(2);
+        }
+        List<String> messages = readMessages(args[1]);
+        int rows = 0, mismatches = 0;
+        try (BufferedReader golden = new BufferedReader(
+                new InputStreamReader(new FileInputStream(args[2]), StandardCharsets.UTF_8))) {
+            for (String message : messages) {
+                String expected = golden.readLine();
+                if (expected == null) throw new IOException("golden file shorter than CSV at row " + rows);
+                String actual = normalize(message);
+                rows++;
+                if (!expected.equals(actual) && mismatches++ < 20) {
+                    System.out.println("row " + rows + "\n  python: " + expected + "\n  java:   " + actual);
+                }
+            }
+        }
+        System.out.println(rows + " rows, " + mismatches + " mismatches");
+        System.exit(mismatches == 0 ? 0 : 1);
+    }
+
+    // Message column of spam.csv (Category,Message), decoded as latin-1 like ModelTraining.py
+    static List<String> readMessages(String path) throws IOException {
+        List<String> messages = new ArrayList<>();
+        for (String[] row : readRows(path)) messages.add(row[1]);
+        return messages;
+    }
+
+    // Rows of spam.csv as {category, message}
+    static List<String[]> readRows(String path) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (CsvReader csv = new CsvReader(path)) {
+            for (String[] row; (row = csv.next()) != null; ) rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Streams the rows of spam.csv one at a time, decoded as latin-1 like ModelTraining.py:
+     * the first line is the header, the first two columns are category and message (v1/v2 in
+     * the original dataset; any further columns are ignored), quoted fields may contain
+     * commas, doubled quotes and line breaks. Holds one row in memory, so corpora of any size
+     * can be read (ModelTrainer).
+     */
+    static final class CsvReader implements Closeable {
+        private final Reader in;
+        private final char[] buf = new char[1 << 16];
+        private int pos, limit;
+        private final StringBuilder field = new StringBuilder();
+        private boolean header = true;
+
+        CsvReader(String path) throws IOException {
+            in = new InputStreamReader(new FileInputStream(path), StandardCharsets.ISO_8859_1);
+        }
+
+        /** The next row as {category, message}, or null at the end of the file. */
+        String[] next() throws IOException {
+            while (true) {
+                String category = null, message = null;
+                int column = 0;
+                boolean quoted = false;
+                field.setLength(0);
+                int c = read();
+                if (c < 0) return null;
+                for (; c >= 0; c = read()) {
+                    if (quoted) {
+                        if (c != '"') field.append((char) c);
+                        else if (peek() == '"') { field.append('"'); read(); }
+                        else quoted = false;
+                    } else if (c == '"') {
+                        quoted = true;
+                    } else if (c == ',') {
+                        if (column == 0) category = field.toString();
+                        else if (column == 1) message = field.toString();
+                        column++;
+                        field.setLength(0);
+                    } else if (c == '\n' || c == '\r') {
+                        if (c == '\r' && peek() == '\n') read();
+                        break;
+                    } else {
+                        field.append((char) c);
+                    }
+                }
+                if (column == 1) message = field.toString();
+                boolean skip = header || column == 0;   // header line, blank line
+                header = false;
+                if (!skip) return new String[]{category, message};
+            }
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            if (c >= 0) pos++;
+            return c;
+        }
+
+        private int peek() throws IOException {
+            if (pos == limit) {
+                limit = Math.max(0, in.read(buf, 0, buf.length));
+                pos = 0;
+                if (limit == 0) return -1;
+            }
+            return buf[pos];
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package SpamDetector;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * How the blocking networking code gets its threads.
+ *
+ * - PLATFORM: Executors.newCachedThreadPool(), one OS thread (and stack) per connection.
+ * - VIRTUAL:  one virtual thread per task (JDK 21+). readUTF and friends park the virtual
+ *   thread and free the carrier, so idle connections cost a small heap object instead of
+ *   an OS thread. The sources still compile for Java 17, so the JDK 21 API is looked up
+ *   reflectively; on an older runtime VIRTUAL falls back to PLATFORM with a warning.
+ *
+ * Code run in VIRTUAL mode must not block inside synchronized (that pins the carrier on
+ * JDK 21), which is why the socket writers use ReentrantLock.
+ *
+ * Selected with --virtual on the Server / Client command line.
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static ThreadMode fromArgs(String[] args) {
+        for (String a : args) {
+            if ("--virtual".equals(a)) return VIRTUAL;
+        }
+        return PLATFORM;
+    }
+
+    /** True when this runtime can actually run virtual threads. */
+    public static boolean virtualThreadsAvailable() {
+        return VirtualThreads.FACTORY != null;
+    }
+
+    /** Executor for per-connection and per-write tasks. */
+    public ExecutorService newExecutor(String name) {
+        if (this == VIRTUAL && virtualThreadsAvailable()) {
+            return VirtualThreads.executor(name);
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /** Starts a long-lived daemon thread (e.g. the accept loop) in this mode. */
+    public Thread start(String name, Runnable task) {
+        Thread t;
+        if (this == VIRTUAL && virtualThreadsAvailable()) {
+            t = VirtualThreads.factory(name).newThread(task);
+        } else {
+            t = new Thread(task, name);
+            t.setDaemon(true);
+        }
+        t.start();
+        return t;
+    }
+
+    /** What actually runs, for logs and the UI. */
+    public String describe() {
+        if (this == VIRTUAL && !virtualThreadsAvailable()) return "platform threads (virtual threads need JDK 21+)";
+        return this == VIRTUAL ? "virtual threads" : "platform threads";
+    }
+
+    // Thread.ofVirtual().name(prefix, 0).factory() and Executors.newThreadPerTaskExecutor,
+    // called through the public JDK 21 interfaces without a compile-time dependency on them
+    private static final class VirtualThreads {
+        static final Object FACTORY = probe();
+
+        private static Object probe() {
+            try {
+                return factory("probe");
+            } catch (RuntimeException e) {
+                return null;   // JDK < 21
+            }
+        }
+
+        static ThreadFactory factory(String prefix) {
+            try {
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 0L);
+                return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static ExecutorService executor(String prefix) {
+            try {
+                Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) m.invoke(null, factory(prefix));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package SpamDetector;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Platform vs virtual thread comparison for the blocking server path.
+ *
+ * Runs the same connection handling as Server (a readUTF loop per connection on the
+ * client pool, an OutboundQueue per client drained on the same pool) without the Swing UI,
+ * then reports:
+ *   1. memory per idle connection (RSS, heap and live threads per connection)
+ *   2. relay throughput: every sender's messages broadcast to every other client
+ *
+ * Run each mode in its own JVM so the RSS numbers do not mix:
+ *   java SpamDetector.ThreadModeComparison [--virtual] [idleConnections] [clients] [messagesPerClient]
+ */
+public class ThreadModeComparison {
+
+    public static void main(String[] args) throws Exception {
+        ThreadMode mode = ThreadMode.fromArgs(args);
+        List<Integer> nums = new ArrayList<>();
+        for (String a : args) if (!a.startsWith("--")) nums.add(Integer.parseInt(a));
+        int idle = nums.size() > 0 ? nums.get(0) : 5000;
+        int clients = nums.size() > 1 ? nums.get(1) : 20;
+        int perClient = nums.size() > 2 ? nums.get(2) : 1000;
+
+        System.out.println("mode: " + mode.describe());
+        try (Relay relay = new Relay(mode)) {
+            // 1. idle connections
+            long rss0 = rssKb(), heap0 = usedHeap();
+            int threads0 = Thread.activeCount();
+            List<Socket> idleSockets = new ArrayList<>();
+            for (int i = 0; i < idle; i++) idleSockets.add(new Socket("localhost", relay.port()));
+            relay.awaitConnections(idle);
+            Thread.sleep(500);
+            long rss1 = rssKb(), heap1 = usedHeap();
+            System.out.printf("idle connections: %d%n", idle);
+            System.out.printf("  RSS per connection:  %.1f KB%n", (rss1 - rss0) / (double) idle);
+            System.out.printf("  heap per connection: %.1f KB%n", (heap1 - heap0) / 1024.0 / idle);
+            System.out.printf("  platform threads:    %d (+%d)%n", Thread.activeCount(), Thread.activeCount() - threads0);
+            for (Socket s : idleSockets) s.close();
+            relay.awaitConnections(0);
+
+            // 2. throughput
+            long expected = (long) clients * perClient * (clients - 1);
+            AtomicLong received = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(1);
+            List<Socket> sockets = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                Socket s = new Socket("localhost", relay.port());
+                sockets.add(s);
+                Thread reader = new Thread(() -> {
+                    try {
+                        DataInputStream in = new DataInputStream(s.getInputStream());
+                        while (true) {
+                            in.readUTF();
+                            if (received.incrementAndGet() == expected) done.countDown();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                });
+                reader.setDaemon(true);
+                reader.start();
+            }
+            relay.awaitConnections(clients);
+            long start = System.nanoTime();
+            List<Thread> senders = new ArrayList<>();
+            for (Socket s : sockets) {
+                Thread t = new Thread(() -> {
+                    try {
+                        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                        for (int m = 0; m < perClient; m++) out.writeUTF("congratulations you won lottery " + m);
+                        out.flush();
+                    } catch (IOException ignored) {
+                    }
+                });
+                t.start();
+                senders.add(t);
+            }
+            for (Thread t : senders) t.join();
+            boolean finished = done.await(120, TimeUnit.SECONDS);
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("relay: %d clients x %d messages -> %d deliveries in %.2fs%s%n",
+                    clients, perClient, received.get(), secs, finished ? "" : " (timed out)");
+            System.out.printf("  throughput: %.0f deliveries/s%n", received.get() / secs);
+            for (Socket s : sockets) s.close();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // resident set size from /proc (Linux); 0 elsewhere
+    private static long rssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return 0;
+    }
+
+    /** Server's blocking connection handling, minus UI, classification and logging. */
+    private static final class Relay implements AutoCloseable {
+        private final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        private final ExecutorService clientPool;
+        private final List<OutboundQueue> outputs = new CopyOnWriteArrayList<>();
+
+        Relay(ThreadMode mode) throws IOException {
+            serverChannel.bind(new InetSocketAddress(0), 4096);
+            clientPool = mode.newExecutor("Relay-Client");
+            Thread accept = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket s = serverChannel.accept().socket();
+                        clientPool.submit(() -> handle(s));
+                    }
+                } catch (IOException ignored) {
+                }
+            }, "Relay-Accept");
+            accept.setDaemon(true);
+            accept.start();
+        }
+
+        int port() {
+            return serverChannel.socket().getLocalPort();
+        }
+
+        void awaitConnections(int n) throws InterruptedException {
+            while (outputs.size() != n) Thread.sleep(10);
+        }
+
+        private void handle(Socket socket) {
+            OutboundQueue outbound = null;
+            try {
+                DataInputStream din = new DataInputStream(socket.getInputStream());
+                // lossless, so the delivery count is exact
+                outbound = new OutboundQueue(String.valueOf(socket.getRemoteSocketAddress()), socket,
+                        256, OutboundQueue.SlowConsumerPolicy.BLOCK, clientPool, null);
+                outputs.add(outbound);
+                while (true) {
+                    String msg;
+                    try {
+                        msg = din.readUTF();
+                    } catch (EOFException | SocketException e) {
+                        break;
+                    }
+                    broadcast(msg, outbound);
+                }
+            } catch (IOException | InterruptedException ignored) {
+            } finally {
+                if (outbound != null) {
+                    outputs.remove(outbound);
+                    outbound.close();
+                }
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void broadcast(String message, OutboundQueue exclude) throws IOException, InterruptedException {
+            Frame frame = Frame.utf(message);   // encoded once for all recipients
+            for (OutboundQueue q : outputs) {
+                if (q != exclude && !q.offer(frame)) outputs.remove(q);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverChannel.close();
+            clientPool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package SpamDetector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Size-bounded verdict cache with W-TinyLFU eviction.
+ *
+ * - Keys are normalized message text (TextNormalizer.normalize), so "WIN cash!!!" and
+ *   "win cash" share one entry, exactly as they share one model input.
+ * - A small LRU window takes new entries; the main area is a segmented LRU (probation +
+ *   protected). A window victim only enters the main area if a CountMin sketch says it has
+ *   been seen more often than the probation victim, so one-off messages cannot flush out
+ *   the greetings and spam blasts that repeat all day.
+ * - Reads are lock-free map lookups; policy bookkeeping happens under a lock that readers
+ *   only try to take, so a busy cache drops some recency updates instead of queueing.
+ * - Entries belong to one model id; setModelId() with a different id clears the cache.
+ *   put(key, value, id) stores a verdict only if the cache still belongs to the model that
+ *   produced it, so a classification that straddles a model swap cannot leave a stale entry.
+ * - save()/load() keep the entries across restarts (one "key TAB value" line each).
+ */
+public class VerdictCache<V> {
+
+    // ========== CONFIG ==========
+    private static final double WINDOW_SHARE = 0.01;     // W-TinyLFU default: 1% window
+    private static final double PROTECTED_SHARE = 0.80;  // of the main area
+
+    private final ConcurrentHashMap<String, Node<V>> map = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final int windowMax, protectedMax, mainMax;
+    private final Node<V> window = Node.sentinel(), probation = Node.sentinel(), protect = Node.sentinel();
+    private int windowSize, probationSize, protectedSize;
+    private volatile long modelId;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public VerdictCache(int maximumSize) {
+        int max = Math.max(2, maximumSize);
+        windowMax = Math.max(1, (int) (max * WINDOW_SHARE));
+        mainMax = max - windowMax;
+        protectedMax = (int) (mainMax * PROTECTED_SHARE);
+        sketch = new FrequencySketch(max);
+    }
+
+    public V get(String key) {
+        Node<V> n = map.get(key);
+        if (n == null) {
+            misses.increment();
+            if (lock.tryLock()) {
+                try { sketch.increment(key.hashCode()); } finally { lock.unlock(); }
+            }
+            return null;
+        }
+        hits.increment();
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key.hashCode());
+                if (n.queue != null) onHit(n);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return n.value;
+    }
+
+    public void put(String key, V value) {
+        lock.lock();
+        try {
+            Node<V> n = map.get(key);
+            if (n != null) {
+                n.value = value;
+                return;
+            }
+            n = new Node<>(key, value);
+            map.put(key, n);
+            link(window, n);
+            windowSize++;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops one entry, e.g. a message a moderator has just corrected. */
+    public void remove(String key) {
+        lock.lock();
+        try {
+            Node<V> n = map.get(key);
+            if (n != null) detach(n);   // not an eviction
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a verdict computed by model id, unless the cache has moved on to another model
+     * since (checked under the lock, so a concurrent setModelId cannot slip in between).
+     */
+    public boolean put(String key, V value, long id) {
+        lock.lock();
+        try {
+            if (id != modelId) return false;
+            put(key, value);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Clears every entry if id differs from the model the cached verdicts came from. */
+    public void setModelId(long id) {
+        if (id == modelId) return;
+        lock.lock();
+        try {
+            if (id == modelId) return;
+            clearLocked();
+            modelId = id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try { clearLocked(); } finally { lock.unlock(); }
+    }
+
+    public int size() { return map.size(); }
+    public long hitCount() { return hits.sum(); }
+    public long missCount() { return misses.sum(); }
+    public long evictionCount() { return evictions.sum(); }
+
+    public double hitRate() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VerdictCache[size=%d, hits=%d, misses=%d, hitRate=%.1f%%, evictions=%d]",
+                size(), hitCount(), missCount(), hitRate() * 100, evictionCount());
+    }
+
+    // ----------------- Policy -----------------
+
+    private void onHit(Node<V> n) {
+        if (n.queue == window) {
+            moveToTail(window, n);
+        } else if (n.queue == probation) {
+            unlink(n);
+            probationSize--;
+            link(protect, n);
+            protectedSize++;
+            while (protectedSize > protectedMax) {
+                Node<V> demoted = protect.next;
+                unlink(demoted);
+                protectedSize--;
+                link(probation, demoted);
+                probationSize++;
+            }
+        } else {
+            moveToTail(protect, n);
+        }
+    }
+
+    private void evict() {
+        while (windowSize > windowMax) {
+            Node<V> candidate = window.next;
+            unlink(candidate);
+            windowSize--;
+            if (probationSize + protectedSize < mainMax) {
+                link(probation, candidate);
+                probationSize++;
+                continue;
+            }
+            Node<V> victim = probation.next != probation ? probation.next : protect.next;
+            // TinyLFU admission: the candidate must be more popular than what it would replace
+            if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                remove(victim);
+                link(probation, candidate);
+                probationSize++;
+            } else {
+                remove(candidate);
+            }
+        }
+    }
+
+    private void remove(Node<V> n) {
+        detach(n);
+        evictions.increment();
+    }
+
+    private void detach(Node<V> n) {
+        if (n.queue != null) {
+            if (n.queue == probation) probationSize--;
+            else if (n.queue == protect) protectedSize--;
+            else if (n.queue == window) windowSize--;
+            unlink(n);
+        }
+        map.remove(n.key, n);
+    }
+
+    private void clearLocked() {
+        map.clear();
+        for (Node<V> head : List.of(window, probation, protect)) {
+            head.next = head.prev = head;
+        }
+        windowSize = probationSize = protectedSize = 0;
+    }
+
+    private static <V> void link(Node<V> head, Node<V> n) {
+        n.queue = head;
+        n.prev = head.prev;
+        n.next = head;
+        head.prev.next = n;
+        head.prev = n;
+    }
+
+    private static <V> void unlink(Node<V> n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        n.prev = n.next = null;
+        n.queue = null;
+    }
+
+    private static <V> void moveToTail(Node<V> head, Node<V> n) {
+        unlink(n);
+        link(head, n);
+    }
+
+    // ----------------- Persistence -----------------
+
+    /** Writes the model id and entries, coldest first, so load() rebuilds the same order. */
+    public void save(File file, Function<V, String> encoder) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        lock.lock();
+        try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            w.write(Long.toHexString(modelId));
+            w.newLine();
+            for (Node<V> head : List.of(probation, protect, window)) {
+                for (Node<V> n = head.next; n != head; n = n.next) {
+                    w.write(n.key);
+                    w.write('\t');
+                    w.write(encoder.apply(n.value));
+                    w.newLine();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("cannot replace " + file);
+        }
+    }
+
+    /** Loads entries saved for the current model id; a file from another model is ignored. */
+    public int load(File file, Function<String, V> decoder) throws IOException {
+        if (!file.exists()) return 0;
+        int loaded = 0;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String header = r.readLine();
+            if (header == null || Long.parseUnsignedLong(header.trim(), 16) != modelId) return 0;
+            String line;
+            while ((line = r.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab < 0) continue;
+                V value = decoder.apply(line.substring(tab + 1));
+                if (value == null) continue;
+                String key = line.substring(0, tab);
+                lock.lock();
+                try {
+                    put(key, value);
+                    sketch.increment(key.hashCode());   // a reloaded entry counts as seen once
+                } finally {
+                    lock.unlock();
+                }
+                loaded++;
+            }
+        } catch (NumberFormatException e) {
+            return loaded;
+        }
+        return loaded;
+    }
+
+    // ----------------- Internals -----------------
+
+    private static final class Node<V> {
+        final String key;
+        volatile V value;
+        Node<V> prev, next, queue;
+
+        Node(String key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        static <V> Node<V> sentinel() {
+            Node<V> head = new Node<>(null, null);
+            head.prev = head.next = head;
+            return head;
+        }
+    }
+
+    /**
+     * CountMin sketch with four 4-bit counters per key packed into longs. Counts are halved
+     * every 10 * capacity increments so popularity ages out (TinyLFU "reset").
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int size = Integer.highestOneBit(Math.max(8, capacity) - 1) << 1;
+            table = new long[size];
+            mask = size - 1;
+            sampleSize = 10 * Math.max(8, capacity);
+        }
+
+        int frequency(int hash) {
+            hash = spread(hash);
+            int min = 15;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (counterOf(hash, i) << 2);
+                min = Math.min(min, (int) ((table[index] >>> offset) & 0xfL));
+            }
+            return min;
+        }
+
+        void increment(int hash) {
+            hash = spread(hash);
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (counterOf(hash, i) << 2);
+                if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) reset();
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            additions /= 2;
+        }
+
+        // String.hashCode is weak in the low bits for short keys
+        private static int spread(int hash) {
+            hash *= 0x9e3779b9;
+            return hash ^ (hash >>> 16);
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & mask;
+        }
+
+        // which of the 16 nibbles in the long this row uses
+        private static int counterOf(int hash, int i) {
+            return ((hash >>> (i << 3)) ^ (hash >>> 28)) & 0xf;
+        }
+    }
+}
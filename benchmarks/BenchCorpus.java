@@ -0,0 +1,52 @@
+package SpamDetector;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The input corpus for every benchmark: the Message column of spam.csv (5572 real SMS,
+ * ham and spam), read the same way TextNormalizer --verify reads it.
+ * -Dcorpus=path picks another file of the same shape (pass it with -jvmArgsAppend).
+ */
+final class BenchCorpus {
+
+    static final String PATH = System.getProperty("corpus", "spam.csv");
+
+    private static List<String> messages;
+
+    private BenchCorpus() {}
+
+    static synchronized List<String> messages() {
+        if (messages == null) {
+            try {
+                messages = Collections.unmodifiableList(TextNormalizer.readMessages(PATH));
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot read corpus " + PATH + " (run from the repository root)", e);
+            }
+            if (messages.isEmpty()) throw new IllegalStateException("corpus " + PATH + " is empty");
+        }
+        return messages;
+    }
+
+    /** Walks the corpus in file order, wrapping around; one per benchmark thread. */
+    static final class Cursor {
+        private final List<String> corpus = messages();
+        private int next;
+
+        String next() {
+            String m = corpus.get(next);
+            next = next + 1 == corpus.size() ? 0 : next + 1;
+            return m;
+        }
+
+        /** The next n messages (wrapping), as one batch. */
+        List<String> next(int n) {
+            String[] batch = new String[n];
+            for (int i = 0; i < n; i++) batch[i] = next();
+            return Arrays.asList(batch);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package SpamDetector;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcast fan-out as ChatServerEngine does it: the message is encoded once
+ * (ChatProtocol.Encoded) and offered to every recipient's OutboundQueue, whose writers
+ * drain into null streams on a shared pool. Measures what one broadcast costs the
+ * sending thread for 1 to 1000 recipients, v1 or v2 clients.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int recipients;
+
+    @Param({"v1", "v2"})
+    public String protocol;
+
+    private final BenchCorpus.Cursor cursor = new BenchCorpus.Cursor();
+    private final List<OutboundQueue> queues = new ArrayList<>();
+    private ExecutorService writers;
+    private long ids;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        writers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "Bench-Writer");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < recipients; i++) {
+            OutboundQueue q = new OutboundQueue("bench-" + i, OutputStream.nullOutputStream(), 256,
+                    OutboundQueue.SlowConsumerPolicy.DROP_OLDEST, writers, null);
+            if ("v2".equals(protocol)) q.switchProtocol(ChatProtocol.V2, ChatProtocol.HELLO_OK_FRAME);
+            queues.add(q);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        long dropped = 0;
+        for (OutboundQueue q : queues) {
+            dropped += q.droppedCount();
+            q.close();
+        }
+        writers.shutdownNow();
+        System.err.println("\nBroadcastBenchmark " + recipients + "x" + protocol + ": dropped " + dropped + " queued messages");
+    }
+
+    @Benchmark
+    public ChatProtocol.Encoded broadcast() throws InterruptedException {
+        ChatProtocol.Encoded message = new ChatProtocol.Encoded(new ChatProtocol.Message(ChatProtocol.CHAT, 0,
+                ++ids, System.currentTimeMillis(), "ham", 0.97, cursor.next()));
+        for (OutboundQueue q : queues) q.offer(message);
+        return message;
+    }
+}
@@ -0,0 +1,64 @@
+package SpamDetector;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * writeLog under contention: 4 threads append to one ChatLogWriter (ring + writer thread)
+ * backed by the text log or the MessageStore, for each SyncPolicy. The score is the
+ * producers' cost; records the ring could not take within the offer timeout are dropped
+ * and reported on stderr at the end of the trial.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ChatLogBenchmark {
+
+    @Param({"text", "store"})
+    public String sink;
+
+    @Param({"NONE", "GROUP_COMMIT", "EVERY_BATCH"})
+    public String sync;
+
+    private Path dir;
+    private ChatLogWriter log;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final BenchCorpus.Cursor cursor = new BenchCorpus.Cursor();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("chatlog-bench");
+        File text = "text".equals(sink) ? dir.resolve("chat_log.txt").toFile() : null;
+        MessageStore store = "store".equals(sink) ? new MessageStore(dir.resolve("chat_store").toFile()) : null;
+        // same ring, sync interval and offer timeout as the server; no rotation
+        log = new ChatLogWriter(text, store, 8192, ChatLogWriter.SyncPolicy.valueOf(sync), 1000, 0, 0, 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.close();
+        System.err.println("\nChatLogBenchmark " + sink + "/" + sync + ": " + log);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public boolean writeLog(Producer p) {
+        return log.append("CLIENT", "/127.0.0.1:52144", p.cursor.next(), 0.97);
+    }
+}
@@ -0,0 +1,102 @@
+package SpamDetector;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SpamFilter classification per backend, one message and a CLASSIFY_MAX_BATCH batch:
+ *
+ * - native: NaiveBayesModel.predict / predictBatch (needs spam_nb_model.bin)
+ * - cache:  TextNormalizer.normalize + a VerdictCache hit, which is what classifyIfEnabled
+ *           pays for a repeated message (the cache is warmed with the whole corpus)
+ * - python: the predict.py --serve worker pool (needs Python with scikit-learn and
+ *           spam_nb_model.pkl; the interpreter is -Dpython=..., default "python")
+ *
+ * Throughput and sampled latency (percentiles) in one run.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ClassifyBenchmark {
+
+    private static final int BATCH = 32;   // ChatServerEngine.CLASSIFY_MAX_BATCH
+
+    @Param({"native", "cache", "python"})
+    public String backend;
+
+    private final BenchCorpus.Cursor cursor = new BenchCorpus.Cursor();
+    private NaiveBayesModel model;
+    private double[] proba;
+    private int[] labels;
+    private VerdictCache<ChatServerEngine.SpamFilter.Result> cache;
+    private PythonWorkerPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch (backend) {
+            case "native":
+                model = NaiveBayesModel.shared();
+                if (model == null) throw new IllegalStateException(NaiveBayesModel.MODEL_PATH + " not found (run from the repository root)");
+                proba = new double[BATCH * model.classCount()];
+                labels = new int[BATCH];
+                break;
+            case "cache":
+                cache = new VerdictCache<>(10_000);
+                ChatServerEngine.SpamFilter.Result verdict = new ChatServerEngine.SpamFilter.Result("ham", 0.97);
+                for (String m : BenchCorpus.messages()) cache.put(TextNormalizer.normalize(m), verdict);
+                break;
+            case "python":
+                pool = new PythonWorkerPool(System.getProperty("python", "python"), "predict.py", PythonWorkerPool.defaultSize());
+                if (pool.classify(cursor.next()) == null) {
+                    pool.shutdown();
+                    throw new IllegalStateException("predict.py workers did not answer (Python, scikit-learn, spam_nb_model.pkl?)");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(backend);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) pool.shutdown();
+    }
+
+    @Benchmark
+    public void classify(Blackhole bh) {
+        String m = cursor.next();
+        switch (backend) {
+            case "native":
+                bh.consume(model.predict(m, proba));
+                break;
+            case "cache":
+                bh.consume(cache.get(TextNormalizer.normalize(m)));
+                break;
+            default:
+                bh.consume(pool.classify(m));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void classifyBatch(Blackhole bh) {
+        List<String> batch = cursor.next(BATCH);
+        switch (backend) {
+            case "native":
+                model.predictBatch(batch, labels, proba);
+                bh.consume(labels);
+                break;
+            case "cache":
+                for (String m : batch) bh.consume(cache.get(TextNormalizer.normalize(m)));
+                break;
+            default:
+                bh.consume(pool.classifyBatch(batch));
+        }
+    }
+}
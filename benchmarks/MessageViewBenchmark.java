@@ -0,0 +1,64 @@
+package SpamDetector;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of showing a message in the chat windows. formatMessagePanel (six Swing components
+ * per message) was replaced by MessageListView, so this measures its two parts: append()
+ * wraps and lays out one entry in a full 20,000-entry ring, paint() draws one 560 px
+ * viewport at the bottom of it. Headless; nothing is put on screen.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class MessageViewBenchmark {
+
+    private static final int SCROLLBACK = 20_000;
+    private static final int WIDTH = 440, VIEWPORT = 560;
+
+    private final BenchCorpus.Cursor cursor = new BenchCorpus.Cursor();
+    private MessageListView view;
+    private BufferedImage image;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        view = new MessageListView(SCROLLBACK);
+        view.setSize(WIDTH, VIEWPORT);
+        for (int i = 0; i < SCROLLBACK; i++) add();
+        view.setSize(WIDTH, view.getPreferredSize().height);
+        image = new BufferedImage(WIDTH, VIEWPORT, BufferedImage.TYPE_INT_RGB);
+    }
+
+    private void add() {
+        n++;
+        view.append(cursor.next(), n % 3 == 0, n % 7 == 0, n % 2 == 0 ? "ham (0.97)" : null);
+    }
+
+    @Benchmark
+    public int append() {
+        add();
+        return view.messageCount();
+    }
+
+    @Benchmark
+    public BufferedImage paint() {
+        Graphics2D g = image.createGraphics();
+        try {
+            int top = view.getHeight() - VIEWPORT;
+            g.translate(0, -top);
+            g.setClip(0, top, WIDTH, VIEWPORT);
+            view.paint(g);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+}
@@ -0,0 +1,35 @@
+package SpamDetector;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TextNormalizer over the corpus: tokenize() streams tokens into a sink (what the model's
+ * feature lookup costs on top), normalize() also builds the joined String used as the
+ * verdict cache key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NormalizeBenchmark {
+
+    private final BenchCorpus.Cursor cursor = new BenchCorpus.Cursor();
+    private final TextNormalizer normalizer = new TextNormalizer();
+    private int hashes;
+    private final TextNormalizer.TokenSink sink = (buf, len, hash) -> hashes += hash;
+
+    @Benchmark
+    public int tokenize() {
+        hashes = 0;
+        return normalizer.tokenize(cursor.next(), sink) + hashes;
+    }
+
+    @Benchmark
+    public String normalize() {
+        return TextNormalizer.normalize(cursor.next());
+    }
+}
@@ -0,0 +1,53 @@
+# ==============================
+# Compare two JMH result files (written with -rf json)
+# ==============================
+# One line per benchmark + parameters + mode: both scores, the change, and "!" when the
+# difference is larger than the two error margins together (worth a second look).
+# Percentile rows of SampleTime runs are left out; -p keeps them.
+#
+#   python benchmarks/compare.py benchmarks/results/before.json benchmarks/results/after.json
+
+import json
+import sys
+
+
+def load(path):
+    with open(path, encoding="utf-8") as f:
+        runs = json.load(f)
+    results = {}
+    for run in runs:
+        params = ",".join(f"{k}={v}" for k, v in sorted((run.get("params") or {}).items()))
+        key = (run["benchmark"].rsplit(".", 2)[-2] + "." + run["benchmark"].rsplit(".", 1)[-1], params, run["mode"])
+        metric = run["primaryMetric"]
+        results[key] = (metric["score"], metric.get("scoreError") or 0.0, metric["scoreUnit"])
+        if "-p" in sys.argv:
+            for pct, value in (metric.get("scorePercentiles") or {}).items():
+                results[(key[0] + ":p" + pct, params, run["mode"])] = (value, 0.0, metric["scoreUnit"])
+    return results
+
+
+def as_number(x):
+    return x if isinstance(x, (int, float)) else float("nan")
+
+
+def main():
+    files = [a for a in sys.argv[1:] if a != "-p"]
+    if len(files) != 2:
+        print("usage: python benchmarks/compare.py [-p] before.json after.json")
+        sys.exit(2)
+    before, after = load(files[0]), load(files[1])
+    print(f"{'benchmark':<40} {'params':<36} {'mode':<7} {'before':>12} {'after':>12}  change")
+    for key in sorted(set(before) | set(after)):
+        name, params, mode = key
+        if key not in before or key not in after:
+            print(f"{name:<40} {params:<36} {mode:<7} {'only in ' + ('after' if key in after else 'before'):>26}")
+            continue
+        (b, be, unit), (a, ae, _) = before[key], after[key]
+        b, a = as_number(b), as_number(a)
+        change = (a - b) / b * 100 if b else float("nan")
+        flag = "!" if abs(a - b) > as_number(be) + as_number(ae) else " "
+        print(f"{name:<40} {params:<36} {mode:<7} {b:>12.3f} {a:>12.3f}  {change:+7.1f}% {flag} {unit}")
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,140 @@
+import os
+import sys
+import pickle
+import struct
+import hashlib
+
+# ==============================
+# Binary model format read by NaiveBayesModel.java (memory mapped, little endian)
+# ==============================
+# offset  0  magic "SNBM"
+#         4  u32 version
+#         8  u32 n_classes
+#        12  u32 n_features
+#        16  u32 vocabulary hash table size (power of two)
+#        20  u32 n_stop_words
+#        24  f64 alpha
+#        32  u64 model id (hash of everything after the header)
+#        40  u64[11] section offsets, each section 8-byte aligned:
+#             0 class names       (u32 byte length + utf-8, per class)
+#             1 class_log_prior_  f64[n_classes]
+#             2 class_count_      f64[n_classes]
+#             3 idf_              f64[n_features]
+#             4 feature_log_prob_ f64[n_features * n_classes]  (feature-major)
+#             5 feature_count_    f64[n_features * n_classes]  (feature-major)
+#             6 hash slots        i32[table size], feature index or -1
+#             7 term offsets      i32[n_features + 1], in UTF-16 code units
+#             8 term chars        UTF-16LE
+#             9 stop offsets      i32[n_stop_words + 1]
+#            10 stop word chars   UTF-16LE
+# Vocabulary slots use FNV-1a over the UTF-16 code units with linear probing.
+
+MAGIC = b"SNBM"
+VERSION = 1
+HEADER_SIZE = 128
+N_SECTIONS = 11
+
+
+def fnv1a(term):
+    h = 0x811C9DC5
+    data = term.encode("utf-16-le")
+    for i in range(0, len(data), 2):
+        h ^= data[i] | (data[i + 1] << 8)
+        h = (h * 0x01000193) & 0xFFFFFFFF
+    return h
+
+
+def _chars(words):
+    offsets = [0]
+    blob = bytearray()
+    for w in words:
+        blob += w.encode("utf-16-le")
+        offsets.append(len(blob) // 2)
+    return struct.pack("<%di" % len(offsets), *offsets), bytes(blob)
+
+
+def write_model(path, classes, class_log_prior, class_count, idf,
+                feature_log_prob, feature_count, vocabulary, stop_words, alpha):
+    """feature_log_prob / feature_count are indexed [class][feature] like sklearn."""
+    n_classes = len(classes)
+    n_features = len(idf)
+    terms = [None] * n_features
+    for term, idx in vocabulary.items():
+        terms[int(idx)] = term
+
+    table_size = 2
+    while table_size < 2 * n_features:
+        table_size *= 2
+    slots = [-1] * table_size
+    for idx, term in enumerate(terms):
+        h = fnv1a(term) & (table_size - 1)
+        while slots[h] != -1:
+            h = (h + 1) & (table_size - 1)
+        slots[h] = idx
+
+    def feature_major(table):
+        return [float(table[c][f]) for f in range(n_features) for c in range(n_classes)]
+
+    names = b"".join(struct.pack("<I", len(c.encode("utf-8"))) + c.encode("utf-8") for c in classes)
+    term_offsets, term_chars = _chars(terms)
+    stop_sorted = sorted(stop_words)
+    stop_offsets, stop_chars = _chars(stop_sorted)
+    sections = [
+        names,
+        struct.pack("<%dd" % n_classes, *[float(v) for v in class_log_prior]),
+        struct.pack("<%dd" % n_classes, *[float(v) for v in class_count]),
+        struct.pack("<%dd" % n_features, *[float(v) for v in idf]),
+        struct.pack("<%dd" % (n_features * n_classes), *feature_major(feature_log_prob)),
+        struct.pack("<%dd" % (n_features * n_classes), *feature_major(feature_count)),
+        struct.pack("<%di" % table_size, *slots),
+        term_offsets,
+        term_chars,
+        stop_offsets,
+        stop_chars,
+    ]
+
+    body = bytearray()
+    offsets = []
+    for sec in sections:
+        offsets.append(HEADER_SIZE + len(body))
+        body += sec
+        body += b"\0" * (-len(body) % 8)
+    model_id = struct.unpack("<Q", hashlib.blake2b(bytes(body), digest_size=8).digest())[0]
+
+    header = MAGIC + struct.pack("<5Id", VERSION, n_classes, n_features, table_size, len(stop_sorted), float(alpha))
+    header += struct.pack("<Q", model_id) + struct.pack("<%dQ" % N_SECTIONS, *offsets)
+    # write a new file and rename it over the old one: a server may have the old one mapped
+    tmp = path + ".tmp"
+    with open(tmp, "wb") as f:
+        f.write(header)
+        f.write(body)
+    os.replace(tmp, path)
+    return model_id
+
+
+def export_model(pipeline, path):
+    vect = pipeline.named_steps["vect"]
+    tfidf = pipeline.named_steps["tfidf"]
+    clf = pipeline.named_steps["clf"]
+    return write_model(
+        path,
+        [str(c) for c in clf.classes_],
+        clf.class_log_prior_,
+        clf.class_count_,
+        tfidf.idf_,
+        clf.feature_log_prob_,
+        clf.feature_count_,
+        vect.vocabulary_,
+        vect.get_stop_words() or [],
+        clf.alpha,
+    )
+
+
+if __name__ == "__main__":
+    # python export_model.py [spam_nb_model.pkl] [spam_nb_model.bin]
+    src = sys.argv[1] if len(sys.argv) > 1 else "spam_nb_model.pkl"
+    dst = sys.argv[2] if len(sys.argv) > 2 else "spam_nb_model.bin"
+    with open(src, "rb") as f:
+        model = pickle.load(f)
+    model_id = export_model(model, dst)
+    print(f"Exported {src} -> {dst} (model id {model_id:016x})")
@@ -0,0 +1,40 @@
+import ast
+import csv
+import re
+import string
+import sys
+
+# ==============================
+# Golden tokens for TextNormalizer.java
+# ==============================
+# One output line per spam.csv row: the space separated tokens that predict.py's
+# clean_text followed by CountVectorizer's default analyzer (lowercase + token_pattern,
+# before stop word removal) produce. The CSV is decoded as latin-1, like ModelTraining.py.
+#
+#   python golden_tokens.py [spam.csv] > tokens_golden.txt
+#   java SpamDetector.TextNormalizer --verify spam.csv tokens_golden.txt
+
+TOKEN_PATTERN = re.compile(r"(?u)\b\w\w+\b")   # CountVectorizer default
+
+
+def load_clean_text(path="predict.py"):
+    # predict.py runs on import, so take just the clean_text definition from its source
+    with open(path, encoding="utf-8") as f:
+        tree = ast.parse(f.read())
+    fn = next(n for n in tree.body if isinstance(n, ast.FunctionDef) and n.name == "clean_text")
+    scope = {"re": re, "string": string}
+    exec(compile(ast.Module(body=[fn], type_ignores=[]), path, "exec"), scope)
+    return scope["clean_text"]
+
+
+if __name__ == "__main__":
+    src = sys.argv[1] if len(sys.argv) > 1 else "spam.csv"
+    clean_text = load_clean_text()
+    out = open(sys.stdout.fileno(), "w", encoding="utf-8", newline="\n", closefd=False)
+    with open(src, encoding="latin-1", newline="") as f:
+        rows = csv.reader(f)
+        next(rows)
+        for row in rows:
+            text = clean_text(row[1] if len(row) > 1 else "")
+            out.write(" ".join(TOKEN_PATTERN.findall(text.lower())) + "\n")
+    out.flush()
@@ -16,6 +16,64 @@ def clean_text(text):
     text = text.strip()
     return text
 
+def unescape(s):
+    # inverse of the Java side escaping: \\ \n \r \t
+    out = []
+    i = 0
+    while i < len(s):
+        c = s[i]
+        if c == "\\" and i + 1 < len(s):
+            i += 1
+            out.append({"n": "\n", "r": "\r", "t": "\t"}.get(s[i], s[i]))
+        else:
+            out.append(c)
+        i += 1
+    return "".join(out)
+
+def serve():
+    # Long-lived worker mode used by PythonWorkerPool.java.
+    # The model is loaded once; requests are one line each on stdin:
+    #   <id>\tP\t<escaped message>   -> <id>\t<label>|<confidence>
+    #   <id>\tH                      -> <id>\tok
+    #   <id>\tB\t<msg>\t<msg>...      -> <id>\t<label>|<confidence>\t...   (one predict_proba call)
+    # Responses may be pipelined; the id ties each answer to its request.
+    # The pool starts us with PYTHONIOENCODING=utf-8.
+    try:
+        with open(MODEL_PATH, "rb") as f:
+            model = pickle.load(f)
+    except Exception:
+        print("0\terror|0.0", flush=True)
+        sys.exit(1)
+
+    for line in sys.stdin:
+        parts = line.rstrip("\n").split("\t", 2)
+        req_id = parts[0]
+        if len(parts) >= 2 and parts[1] == "H":
+            print(f"{req_id}\tok", flush=True)
+            continue
+        if len(parts) >= 2 and parts[1] == "B":
+            try:
+                texts = [clean_text(unescape(m)) for m in line.rstrip("\n").split("\t")[2:]]
+                probs = model.predict_proba(texts)
+                labels = model.classes_[probs.argmax(axis=1)]
+                answers = [f"{lab}|{max(row)}" for lab, row in zip(labels, probs)]
+                print(req_id + "\t" + "\t".join(answers), flush=True)
+            except Exception:
+                print(f"{req_id}\terror|0.0", flush=True)
+            continue
+        try:
+            text = clean_text(unescape(parts[2] if len(parts) > 2 else ""))
+            pred = model.predict([text])[0]
+            probs = model.predict_proba([text])[0]
+            prob = max(probs) if len(probs) > 0 else 0.0
+            print(f"{req_id}\t{pred}|{prob}", flush=True)
+        except Exception:
+            print(f"{req_id}\terror|0.0", flush=True)
+    sys.exit(0)
+
+if len(sys.argv) >= 2 and sys.argv[1] == "--serve":
+    serve()
+
 if len(sys.argv) < 2:
     # consistent output format: label|confidence
     print("error|0.0")